@@ -5,6 +5,10 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 // 3rd party library import
 import org.apache.log4j.Level;
@@ -100,6 +104,32 @@ public class KVClient implements IKVClient {
             } else {
             	printError("Wrong number of parameters passed. Please Check Help Manual");
         	}
+        } else if (tokens[0].equals("mget") || tokens[0].equals("mdelete")) {
+        	if(tokens.length >= 2) {
+        		try{
+        			List<String> keys = Arrays.asList(tokens).subList(1, tokens.length);
+        			List<KVMessage> res = tokens[0].equals("mget")
+        					? kvstore.getAll(keys) : kvstore.deleteAll(keys);
+        			printBatch(res);
+        		} catch (Exception e) {
+        			printError("Failed to " + tokens[0] + " keys");
+        		}
+            } else {
+            	printError("Wrong number of parameters passed. Please Check Help Manual");
+        	}
+        } else if (tokens[0].equals("mput")) {
+        	if(tokens.length >= 3 && tokens.length % 2 == 1) {
+        		try{
+        			Map<String, String> pairs = new LinkedHashMap<String, String>();
+        			for (int i = 1; i < tokens.length; i += 2)
+        				pairs.put(tokens[i], tokens[i + 1]);
+        			printBatch(kvstore.putAll(pairs));
+        		} catch (Exception e) {
+        			printError("Failed to put kv pairs");
+        		}
+            } else {
+            	printError("Wrong number of parameters passed. Please Check Help Manual");
+        	}
         } else if(tokens[0].equals("disconnect")) {
         	kvstore.disconnect();
         } else if(tokens[0].equals("logLevel")) {
@@ -144,6 +174,12 @@ public class KVClient implements IKVClient {
         sb.append("\t\t Store a KV pair on the server \n");
         sb.append(PROMPT).append("get <key>");
         sb.append("\t\t\t Retrieve a KV pair on the server \n");
+        sb.append(PROMPT).append("mget <key> ...");
+        sb.append("\t\t\t Retrieve many KV pairs at once \n");
+        sb.append(PROMPT).append("mput <key> <value> ...");
+        sb.append("\t\t Store many KV pairs at once \n");
+        sb.append(PROMPT).append("mdelete <key> ...");
+        sb.append("\t\t Delete many keys at once \n");
         sb.append(PROMPT).append("logLevel");
         sb.append("\t\t\t ");
         sb.append("ALL | DEBUG | INFO | WARN | ERROR | FATAL | OFF \n");
@@ -152,6 +188,13 @@ public class KVClient implements IKVClient {
         System.out.println(sb.toString());
     }
 
+    private void printBatch(List<KVMessage> res) {
+    	for (KVMessage entry : res) {
+    		System.out.println(PROMPT + entry.getKey() + " " + entry.getStatus()
+    				+ (entry.getValue() == null ? "" : " " + entry.getValue()));
+    	}
+    }
+
     private void printPossibleLogLevels() {
         System.out.println(PROMPT 
                 + "Possible log levels are:");
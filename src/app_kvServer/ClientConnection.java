@@ -1,14 +1,24 @@
 package app_kvServer;
 
+import java.io.BufferedOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.*;
 
+import common.messages.BinaryMessage;
+import common.messages.KVMessage;
 import common.messages.KVMessage.StatusType;
+import common.messages.MessageReader;
 import common.messages.TextMessage;
+import storage.StoredValue;
 
 
 /**
@@ -23,14 +33,24 @@ public class ClientConnection implements Runnable {
 	private static Logger logger = Logger.getRootLogger();
 	
 	private boolean isOpen;
-	private static final int BUFFER_SIZE = 1024;
-	private static final int DROP_SIZE = 128 * BUFFER_SIZE;
+	private static final byte LINE_FEED = 0x0A;
+	private static final int DROP_SIZE = 128 * 1024;
+	/** Pause after which an idle subscription checks its client is there. */
+	private static final long SUBSCRIPTION_CHECK_MILLIS = 1000;
+	/** Invalidations queued beyond which the client is told to drop all. */
+	private static final int MAX_QUEUED_INVALIDATIONS = 10000;
+	/** Queued in place of a null key, which the queue does not take. */
+	private static final String ALL_KEYS = new String("");
 	
 	private Socket clientSocket;
 	private InputStream input;
+	private MessageReader reader;
 	private OutputStream output;
 	
-	private KVServer kvServer;
+	private RequestHandler handler;
+	private final Invalidations invalidations;
+	/** Whether the client chose the binary protocol. */
+	private boolean binary;
 	
 	/**
 	 * Constructs a new CientConnection object for a given TCP socket.
@@ -38,7 +58,8 @@ public class ClientConnection implements Runnable {
 	 */
 	public ClientConnection(Socket clientSocket, KVServer kvServer) {
 		this.clientSocket = clientSocket;
-		this.kvServer = kvServer;
+		this.invalidations = kvServer.getInvalidations();
+		this.handler = new RequestHandler(kvServer);
 		this.isOpen = true;
 	}
 	
@@ -48,8 +69,15 @@ public class ClientConnection implements Runnable {
 	 */
 	public void run() {
 		try {
-			output = clientSocket.getOutputStream();
+			output = new BufferedOutputStream(clientSocket.getOutputStream());
 			input = clientSocket.getInputStream();
+			reader = new MessageReader(input, LINE_FEED, DROP_SIZE);
+			if (reader.peek() == (BinaryMessage.HANDSHAKE & 0xFF)) {
+				reader.readFully(1);
+				output.write(BinaryMessage.HANDSHAKE);
+				output.flush();
+				binary = true;
+			}
 		
 //			sendMessage(new TextMessage(
 //					"Connection to MSRG Echo server established: " 
@@ -58,68 +86,36 @@ public class ClientConnection implements Runnable {
 			
 			while(isOpen) {
 				try {
-					TextMessage latestMsg = receiveMessage();
-					if (latestMsg.getMsg().trim().length() == 0) {
-						throw new IOException();
+					KVMessage latestMsg;
+					if (binary) {
+						latestMsg = receiveBinaryMessage();
+					} else {
+						TextMessage textMsg = receiveMessage();
+						if (textMsg.getMsg().trim().length() == 0) {
+							throw new IOException();
+						}
+						latestMsg = textMsg;
 					}
-					StatusType operation = latestMsg.getStatus();
-					
-					String key = null;
-					String value = null;
-					StatusType status = StatusType.PUT_SUCCESS;
-					switch (operation) {
-						case PUT:
-							key = latestMsg.getKey();
-							value = latestMsg.getValue();
-							if (key.isEmpty() || key.contains(" ") || key.length() > 20 || value.length() > 120000) {
-								logger.error("Error! Unable to PUT due to invalid key or value!");
-								status = StatusType.PUT_ERROR;
-								break;
-							}
-							try {
-								if (kvServer.inStorage(key))
-									status = StatusType.PUT_UPDATE;
-								kvServer.putKV(key, value);
-							} catch (Exception e) {
-								logger.error("Error! Unable to PUT key-value pair!", e);
-								status = StatusType.PUT_ERROR;
-							}
-							break;
-						case GET:
-							key = latestMsg.getKey();
-							if (key.isEmpty() || key.contains(" ") || key.length() > 20) {
-								logger.error("Error! Unable to GET due to invalid key");
-								status = StatusType.GET_ERROR;
-								break;
-							}
-							try {
-								value = kvServer.getKV(latestMsg.getKey());
-								if (value == null)
-									status = StatusType.GET_ERROR;
-								else
-									status = StatusType.GET_SUCCESS;
-							} catch (Exception e) {
-								logger.error("Error! Unable to GET key-value pair!", e);
-								status = StatusType.GET_ERROR;
-							}
-							break;
-						case DELETE:
-							key = latestMsg.getKey();
-							value = "";
-							try {
-								kvServer.deleteKV(key);
-								status = StatusType.DELETE_SUCCESS;
-							} catch (Exception e) {
-								logger.error("Error! Unable to DELETE key-value pair!", e);
-								status = StatusType.DELETE_ERROR;
-							}
-							break;
-						default:
-							break;
+					if (latestMsg.getStatus() == StatusType.SUBSCRIBE) {
+						serveSubscription();
+						break;
+					}
+					RequestHandler.Response response = handler.handle(latestMsg);
+					if (binary) {
+						sendBinaryResponse(response);
+					} else if (response.storedValue != null) {
+						TextMessage header = response.toTextMessage();
+						sendStoredValue(header.getMsgBytes(), header.getMsg(),
+								response.storedValue);
+					} else {
+						sendMessage(response.toTextMessage());
+					}
+					// Responses to pipelined requests go out together. A
+					// binary request once begun is sent whole, while what
+					// is left of a JSON one may be the carriage return.
+					if (binary ? !reader.hasBuffered() : !reader.hasMessage()) {
+						output.flush();
 					}
-					TextMessage resultMsg = new TextMessage(status, key, value);
-					
-					sendMessage(resultMsg);
 					
 				/* connection either terminated by the client or lost due to 
 				 * network problems*/	
@@ -147,79 +143,141 @@ public class ClientConnection implements Runnable {
 	}
 	
 	/**
-	 * Method sends a TextMessage using this socket.
+	 * Turns the connection into a subscription, whose invalidations it
+	 * sends until the client goes away. The client sends nothing more.
+	 * @throws IOException some I/O error regarding the socket
+	 */
+	private void serveSubscription() throws IOException {
+		final LinkedBlockingQueue<String> keys = new LinkedBlockingQueue<String>();
+		long id = invalidations.subscribe(new Invalidations.Subscriber() {
+			public void invalidate(String key) {
+				if (keys.size() >= MAX_QUEUED_INVALIDATIONS) {
+					// The client is behind, and may as well drop all.
+					keys.clear();
+					keys.offer(ALL_KEYS);
+				} else {
+					keys.offer(key == null ? ALL_KEYS : key);
+				}
+			}
+		});
+		try {
+			sendResponse(new RequestHandler.Response(
+					StatusType.SUBSCRIBE_SUCCESS, String.valueOf(id), null,
+					null, -1));
+			output.flush();
+			while (isOpen) {
+				String key;
+				try {
+					key = keys.poll(SUBSCRIPTION_CHECK_MILLIS,
+							TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				if (key == null) {
+					if (!isClientThere())
+						return;
+					continue;
+				}
+				// Invalidations queued meanwhile go out together.
+				do {
+					sendResponse(new RequestHandler.Response(
+							StatusType.INVALIDATE, key == ALL_KEYS ? null : key,
+							null, null, -1));
+				} while ((key = keys.poll()) != null);
+				output.flush();
+			}
+		} finally {
+			invalidations.unsubscribe(id);
+		}
+	}
+
+	/**
+	 * @return false if the client of a subscription closed the connection,
+	 * 		or sent something it should not have.
+	 */
+	private boolean isClientThere() throws IOException {
+		if (reader.hasBuffered())
+			return false;
+		clientSocket.setSoTimeout(1);
+		try {
+			reader.peek();
+			return false;
+		} catch (SocketTimeoutException e) {
+			return true;
+		} finally {
+			clientSocket.setSoTimeout(0);
+		}
+	}
+
+	private void sendResponse(RequestHandler.Response response)
+			throws IOException {
+		if (binary)
+			sendBinaryResponse(response);
+		else
+			sendMessage(response.toTextMessage());
+	}
+
+	/**
+	 * Method sends a TextMessage using this socket, buffered until the
+	 * output is flushed.
 	 * @param msg the message that is to be sent.
 	 * @throws IOException some I/O error regarding the output stream 
 	 */
 	public void sendMessage(TextMessage msg) throws IOException {
 		byte[] msgBytes = msg.getMsgBytes();
 		output.write(msgBytes, 0, msgBytes.length);
-		output.flush();
 		logger.info("SEND \t<" 
 				+ clientSocket.getInetAddress().getHostAddress() + ":" 
 				+ clientSocket.getPort() + ">: '" 
 				+ msg.getMsg() +"'");
     }
 	
+	/**
+	 * Sends the header of a GET_SUCCESS response followed by the raw bytes
+	 * of value, which are transferred from storage without passing through
+	 * the heap.
+	 * A failure halfway leaves the client with a partial value, so it is
+	 * thrown on to drop the connection.
+	 * @throws IOException some I/O error regarding the socket or storage
+	 */
+	private void sendStoredValue(byte[] header, String description,
+			StoredValue value) throws IOException {
+		output.write(header, 0, header.length);
+		WritableByteChannel channel = clientSocket.getChannel();
+		if (channel == null)
+			channel = Channels.newChannel(output);
+		else
+			output.flush();
+		value.transferTo(channel);
+		logger.info("SEND \t<" 
+				+ clientSocket.getInetAddress().getHostAddress() + ":" 
+				+ clientSocket.getPort() + ">: '" 
+				+ description +"' + " + value.getLength() + " bytes");
+	}
 	
-	private TextMessage receiveMessage() throws IOException {
-		
-		int index = 0;
-		byte[] msgBytes = null, tmp = null;
-		byte[] bufferBytes = new byte[BUFFER_SIZE];
-		
-		/* read first char from stream */
-		byte read = (byte) input.read();	
-		boolean reading = true;
-		
-//		logger.info("First Char: " + read);
-//		Check if stream is closed (read returns -1)
-//		if (read == -1){
-//			TextMessage msg = new TextMessage("");
-//			return msg;
-//		}
-
-		while(/*read != 13  && */ read != 10 && read !=-1 && reading) {/* CR, LF, error */
-			/* if buffer filled, copy to msg array */
-			if(index == BUFFER_SIZE) {
-				if(msgBytes == null){
-					tmp = new byte[BUFFER_SIZE];
-					System.arraycopy(bufferBytes, 0, tmp, 0, BUFFER_SIZE);
-				} else {
-					tmp = new byte[msgBytes.length + BUFFER_SIZE];
-					System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-					System.arraycopy(bufferBytes, 0, tmp, msgBytes.length,
-							BUFFER_SIZE);
-				}
-
-				msgBytes = tmp;
-				bufferBytes = new byte[BUFFER_SIZE];
-				index = 0;
-			} 
-			
-			/* only read valid characters, i.e. letters and constants */
-			bufferBytes[index] = read;
-			index++;
-			
-			/* stop reading is DROP_SIZE is reached */
-			if(msgBytes != null && msgBytes.length + index >= DROP_SIZE) {
-				reading = false;
-			}
-			
-			/* read next char from stream */
-			read = (byte) input.read();
-		}
-		
-		if(msgBytes == null){
-			tmp = new byte[index];
-			System.arraycopy(bufferBytes, 0, tmp, 0, index);
-		} else {
-			tmp = new byte[msgBytes.length + index];
-			System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-			System.arraycopy(bufferBytes, 0, tmp, msgBytes.length, index);
+	/**
+	 * Sends a response in the binary protocol, the value of a GET streamed
+	 * from storage after the header if it was not in the cache.
+	 * @throws IOException some I/O error regarding the socket or storage
+	 */
+	private void sendBinaryResponse(RequestHandler.Response response)
+			throws IOException {
+		byte[] msgBytes = response.toBinary();
+		String description = response.status + " " + response.key;
+		if (response.storedValue != null) {
+			sendStoredValue(msgBytes, description, response.storedValue);
+			return;
 		}
-		
-		msgBytes = tmp;
+		output.write(msgBytes, 0, msgBytes.length);
+		logger.info("SEND \t<" 
+				+ clientSocket.getInetAddress().getHostAddress() + ":" 
+				+ clientSocket.getPort() + ">: '" + description + "'");
+	}
+	
+	
+	private TextMessage receiveMessage() throws IOException {
+		byte[] msgBytes = reader.readMessage();
 		TextMessage msg = new TextMessage(msgBytes);
 		logger.info("RECEIVE \t<" 
 				+ clientSocket.getInetAddress().getHostAddress() + ":" 
@@ -228,6 +286,14 @@ public class ClientConnection implements Runnable {
 		return msg;
     }
 	
+	private BinaryMessage receiveBinaryMessage() throws IOException {
+		BinaryMessage msg = BinaryMessage.read(reader, DROP_SIZE);
+		logger.info("RECEIVE \t<" 
+				+ clientSocket.getInetAddress().getHostAddress() + ":" 
+				+ clientSocket.getPort() + ">: '" + msg + "'");
+		return msg;
+	}
+	
 
 	
 }
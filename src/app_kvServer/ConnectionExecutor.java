@@ -0,0 +1,171 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the {@link ClientConnection} of every accepted socket, either on a
+ * bounded pool of threads or on one virtual thread per connection. A pool
+ * serves at most maxThreads connections at a time; further connections
+ * wait in a bounded queue until a thread is free, and once the queue is
+ * full as well they are closed right away, so a connection storm costs
+ * neither unbounded threads nor unbounded memory. Virtual threads are
+ * cheap enough to give every connection its own, but need a JDK that has
+ * them, otherwise a pool is used.
+ */
+class ConnectionExecutor {
+
+	private static final long KEEP_ALIVE_SECONDS = 60;
+
+	private static Logger logger = Logger.getRootLogger();
+
+	private final ExecutorService executor;
+	private final ThreadPoolExecutor pool;
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicLong rejected = new AtomicLong();
+
+	private ConnectionExecutor(ExecutorService executor) {
+		this.executor = executor;
+		this.pool = executor instanceof ThreadPoolExecutor
+				? (ThreadPoolExecutor) executor : null;
+	}
+
+	/**
+	 * @param maxThreads number of connections served at a time.
+	 * @param maxQueued number of connections waiting for a thread beyond
+	 * 			which new ones are rejected.
+	 */
+	static ConnectionExecutor pool(int maxThreads, int maxQueued) {
+		BlockingQueue<Runnable> queue = maxQueued > 0
+				? new ArrayBlockingQueue<Runnable>(maxQueued)
+				: new SynchronousQueue<Runnable>();
+		final AtomicInteger threads = new AtomicInteger();
+		// Threads are started up to the bound before anything is queued and
+		// go away again when idle.
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads,
+				maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, queue,
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						return new Thread(r, "kv-connection-"
+								+ threads.incrementAndGet());
+					}
+				});
+		pool.allowCoreThreadTimeOut(true);
+		return new ConnectionExecutor(pool);
+	}
+
+	/**
+	 * @return an executor starting a virtual thread per connection, or a
+	 * 		pool of the given bounds if the JDK has no virtual threads.
+	 */
+	static ConnectionExecutor virtual(int maxThreads, int maxQueued) {
+		try {
+			// Looked up at runtime, as the sources target older JDKs.
+			ExecutorService executor = (ExecutorService) Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			return new ConnectionExecutor(executor);
+		} catch (ReflectiveOperationException e) {
+			logger.warn("Virtual threads are not available, serving "
+					+ "connections on a pool of " + maxThreads + " threads");
+			return pool(maxThreads, maxQueued);
+		}
+	}
+
+	/**
+	 * Serves connection, or closes socket if the executor is saturated or
+	 * shut down.
+	 */
+	void execute(Socket socket, ClientConnection connection) {
+		Task task = new Task(socket, connection);
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			logger.warn("Rejected connection from "
+					+ socket.getInetAddress().getHostAddress() + ", "
+					+ getActiveCount() + " active and " + getQueuedCount()
+					+ " queued");
+			task.close();
+		}
+	}
+
+	/**
+	 * Stops accepting connections and closes those still waiting for a
+	 * thread. Connections being served carry on until their client leaves.
+	 */
+	void shutdown() {
+		executor.shutdown();
+		if (pool != null) {
+			List<Runnable> queued = new ArrayList<Runnable>();
+			pool.getQueue().drainTo(queued);
+			for (Runnable task : queued) {
+				((Task) task).close();
+			}
+		}
+	}
+
+	/**
+	 * @return number of connections being served.
+	 */
+	int getActiveCount() {
+		return active.get();
+	}
+
+	/**
+	 * @return number of connections waiting for a thread.
+	 */
+	int getQueuedCount() {
+		return pool == null ? 0 : pool.getQueue().size();
+	}
+
+	/**
+	 * @return number of connections closed because the executor was
+	 * 		saturated.
+	 */
+	long getRejectedCount() {
+		return rejected.get();
+	}
+
+	private final class Task implements Runnable {
+
+		private final Socket socket;
+		private final ClientConnection connection;
+
+		Task(Socket socket, ClientConnection connection) {
+			this.socket = socket;
+			this.connection = connection;
+		}
+
+		public void run() {
+			active.incrementAndGet();
+			try {
+				connection.run();
+			} finally {
+				active.decrementAndGet();
+			}
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				logger.error("Error! Unable to close rejected connection", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package app_kvServer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+/**
+ * Keys that subscribed clients read and may keep in a near cache, so that
+ * writes of those keys can be pushed to them. A GET_TRACKED tracks its key
+ * for the subscription until the next write of the key, which the
+ * subscriber is told of once; the client reads the key again to be told
+ * of the write after.
+ * <p>
+ * A key is tracked before its value is read, and writers look for
+ * subscribers after their write, so a subscriber either reads the new
+ * value or is told of it.
+ */
+class Invalidations {
+
+	/**
+	 * Told of keys written, on the thread of the writer, so it must not
+	 * block.
+	 */
+	interface Subscriber {
+
+		/**
+		 * @param key the key written, or null if all keys may have been.
+		 */
+		void invalidate(String key);
+	}
+
+	private static final class Subscription {
+
+		final long id;
+		final Subscriber subscriber;
+		/** Keys tracked for the subscription. */
+		final Set<String> keys = Collections.newSetFromMap(
+				new ConcurrentHashMap<String, Boolean>());
+
+		Subscription(long id, Subscriber subscriber) {
+			this.id = id;
+			this.subscriber = subscriber;
+		}
+	}
+
+	private final AtomicLong nextId = new AtomicLong();
+	private final ConcurrentHashMap<Long, Subscription> subscriptions =
+			new ConcurrentHashMap<Long, Subscription>();
+	/**
+	 * Sets, and the keys of their subscriptions, are only changed within
+	 * compute on their key.
+	 */
+	private final ConcurrentHashMap<String, Set<Subscription>> tracked =
+			new ConcurrentHashMap<String, Set<Subscription>>();
+
+	/**
+	 * @return the id of the new subscription, which GET_TRACKED requests
+	 * 		name.
+	 */
+	long subscribe(Subscriber subscriber) {
+		long id = nextId.incrementAndGet();
+		subscriptions.put(id, new Subscription(id, subscriber));
+		return id;
+	}
+
+	void unsubscribe(long id) {
+		final Subscription subscription = subscriptions.remove(id);
+		if (subscription == null) {
+			return;
+		}
+		for (String key : subscription.keys) {
+			tracked.computeIfPresent(key,
+					new BiFunction<String, Set<Subscription>, Set<Subscription>>() {
+				public Set<Subscription> apply(String key,
+						Set<Subscription> subscribers) {
+					subscribers.remove(subscription);
+					return subscribers.isEmpty() ? null : subscribers;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Tracks key for subscription id, to be called before its value is
+	 * read.
+	 * @return false if there is no such subscription.
+	 */
+	boolean track(String key, long id) {
+		final Subscription subscription = subscriptions.get(id);
+		if (subscription == null) {
+			return false;
+		}
+		tracked.compute(key,
+				new BiFunction<String, Set<Subscription>, Set<Subscription>>() {
+			public Set<Subscription> apply(String key,
+					Set<Subscription> subscribers) {
+				if (subscribers == null) {
+					subscribers = new HashSet<Subscription>(4);
+				}
+				subscribers.add(subscription);
+				subscription.keys.add(key);
+				return subscribers;
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Tells the subscribers tracking key that it was written, to be called
+	 * once the write is visible to readers.
+	 */
+	void invalidate(String key) {
+		if (tracked.isEmpty()) {
+			return;
+		}
+		final List<Subscription> told = new ArrayList<Subscription>(1);
+		tracked.computeIfPresent(key,
+				new BiFunction<String, Set<Subscription>, Set<Subscription>>() {
+			public Set<Subscription> apply(String key,
+					Set<Subscription> subscribers) {
+				for (Subscription subscription : subscribers) {
+					subscription.keys.remove(key);
+					told.add(subscription);
+				}
+				return null;
+			}
+		});
+		for (Subscription subscription : told) {
+			subscription.subscriber.invalidate(key);
+		}
+	}
+
+	/**
+	 * Tells all subscribers that any key may have been written.
+	 */
+	void invalidateAll() {
+		tracked.clear();
+		for (Subscription subscription : subscriptions.values()) {
+			subscription.keys.clear();
+			subscription.subscriber.invalidate(null);
+		}
+	}
+
+	/**
+	 * @return number of keys tracked for some subscription
+	 */
+	int getTrackedCount() {
+		return tracked.size();
+	}
+}
@@ -1,20 +1,19 @@
 package app_kvServer;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.BindException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.StampedLock;
 
 
 import logger.LogSetup;
@@ -22,10 +21,22 @@ import logger.LogSetup;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
+import common.messages.KVEntry;
+import common.messages.KVMessage.StatusType;
+
 import cache.KVCache;
+import cache.KVCacheWriter;
 import cache.KVFIFOCache;
 import cache.KVLFUCache;
 import cache.KVLRUCache;
+import cache.KVWriteBackCache;
+import storage.CountingBloomFilter;
+import storage.KVLogCompactor;
+import storage.KVLogStore;
+import storage.KVLsmStore;
+import storage.KVMemoryStore;
+import storage.StorageEngine;
+import storage.StoredValue;
 
 import app_kvServer.IKVServer;
 
@@ -48,34 +59,161 @@ public class KVServer implements IKVServer {
 	private int port;
 	private int cacheSize;
 	private CacheStrategy strategy;
-	private KVCache cache;
+	private volatile KVCache cache;
+	private volatile KVWriteBackCache writeBackCache;
+	private final KeyLocks keyLocks;
+	private final ConnectionExecutor connections;
+	private volatile SelectorServer selectorServer;
+	/** Shared with the shards, if sharded. */
+	private Invalidations invalidations = new Invalidations();
+	
+	private final String dbPath;
+	private KVServer[] shards;
+	private StorageEngine storage;
+	private KVLogCompactor compactor;
+	private CountingBloomFilter keyFilter;
+	private final AtomicLong filterMisses = new AtomicLong();
+	private final AtomicLong filterFalsePositives = new AtomicLong();
+	private Properties options;
+	
+	// Optional settings, passed to main as name=value arguments after the
+	// port, cache size and strategy.
+	/** Longest time in microseconds a PUT waits to share an fsync. */
+	public static final String SYNC_DELAY_MICROS = "syncDelayMicros";
+	/** Number of pending PUTs that triggers an fsync right away. */
+	public static final String SYNC_BATCH_SIZE = "syncBatchSize";
+	/**
+	 * "log" for the log-structured store, "lsm" for the LSM-tree store,
+	 * "memory" for the in-memory store that is only saved in snapshots.
+	 */
+	public static final String STORAGE_ENGINE = "storageEngine";
+	/** "mmap" to read values from memory-mapped segments, "channel" otherwise. */
+	public static final String READ_MODE = "readMode";
+	/** Size in bytes after which the LSM-tree store flushes its memtable. */
+	public static final String MEMTABLE_SIZE = "memTableSize";
+	/** Pause in milliseconds between two snapshots of the in-memory store. */
+	public static final String SNAPSHOT_INTERVAL_MILLIS = "snapshotIntervalMillis";
+	/** "true" to make the cache write-back instead of write-through. */
+	public static final String WRITE_BACK = "writeBack";
+	/** Pause in milliseconds between two flushes of a write-back cache. */
+	public static final String FLUSH_INTERVAL_MILLIS = "flushIntervalMillis";
+	/** Bound on the bytes of dirty entries a write-back cache may hold. */
+	public static final String MAX_DIRTY_BYTES = "maxDirtyBytes";
+	/** Directory the server keeps its data in, "./db/" by default. */
+	public static final String DB_PATH = "dbPath";
+	
+	/**
+	 * Number of shards, e.g. one per core, each owning the keys that hash to
+	 * it with a cache and storage of its own and served by an event loop of
+	 * its own. 1 to not shard.
+	 */
+	public static final String SHARDS = "shards";
+	/**
+	 * "threads" to serve each connection on a thread of its own, "selector"
+	 * to serve many connections per thread with non-blocking I/O.
+	 */
+	public static final String FRONT_END = "frontEnd";
+	/** Number of threads watching sockets in the selector front end. */
+	public static final String EVENT_LOOPS = "eventLoops";
+	/** Number of threads carrying out requests in the selector front end. */
+	public static final String WORKER_THREADS = "workerThreads";
+	/**
+	 * "pool" to serve connections on a bounded pool of threads, "virtual"
+	 * for one virtual thread per connection if the JDK has them.
+	 */
+	public static final String CONNECTION_EXECUTOR = "connectionExecutor";
+	/** Number of connections the pool serves at a time. */
+	public static final String MAX_CONNECTION_THREADS = "maxConnectionThreads";
+	/** Number of connections waiting for a thread beyond which new ones are closed. */
+	public static final String MAX_QUEUED_CONNECTIONS = "maxQueuedConnections";
 	
-	private String dbPath = "./db/";
+	/** Number of locks keys are spread over, rounded up to a power of two. */
+	public static final String LOCK_STRIPES = "lockStripes";
+	
+	/** False positive rate of the key filter for GET misses, 0 to disable it. */
+	public static final String FILTER_FALSE_POSITIVE_RATE = "filterFalsePositiveRate";
+	/** Number of keys the key filter is sized for. */
+	public static final String FILTER_EXPECTED_KEYS = "filterExpectedKeys";
+	
+	private static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+	private static final long DEFAULT_MAX_DIRTY_BYTES = 64 * 1024 * 1024;
+	private static final long DEFAULT_WORKER_THREADS = 64;
+	private static final long DEFAULT_MAX_CONNECTION_THREADS = 256;
+	private static final long DEFAULT_MAX_QUEUED_CONNECTIONS = 1024;
+	private static final double DEFAULT_FILTER_FALSE_POSITIVE_RATE = 0.01;
+	private static final long DEFAULT_FILTER_EXPECTED_KEYS = 1000000;
 	
 	public KVServer(int port, int cacheSize, String strategy) {
+		this(port, cacheSize, strategy, new Properties());
+	}
+	
+	/**
+	 * Start KV Server at given port with additional settings
+	 * @param options optional settings, keyed by the option names above
+	 */
+	public KVServer(int port, int cacheSize, String strategy, Properties options) {
+		this(port, cacheSize, strategy, options,
+				options.getProperty(DB_PATH, "./db").replaceAll("/*$", "") + "/");
+	}
+
+	private KVServer(int port, int cacheSize, String strategy, Properties options,
+			String dbPath) {
 		this.port = port;
+		this.dbPath = dbPath;
 		this.cacheSize = cacheSize;
 		this.strategy = CacheStrategy.valueOf(strategy);
+		this.options = options;
+		this.keyLocks = new KeyLocks((int) getOption(LOCK_STRIPES,
+				16L * Runtime.getRuntime().availableProcessors()));
+		this.connections = createConnectionExecutor();
+		int shardCount = (int) getOption(SHARDS, 1);
+		if (shardCount > 1) {
+			// All data lives in the shards.
+			shards = createShards(shardCount);
+			return;
+		}
 		this.cache = createCache(this.strategy);
-		File dbDir = new File(dbPath);
-		try{
-		 	dbDir.mkdir();
-	    } 
-	    catch(SecurityException se){
-	    	logger.error("Error! Can't create database folder");
-	    }        
+		this.storage = createStorage();
+		try {
+			storage.open();
+			if (storage instanceof KVLogStore) {
+				compactor = new KVLogCompactor((KVLogStore) storage);
+				compactor.start();
+			}
+			double falsePositiveRate = Double.parseDouble(options.getProperty(
+					FILTER_FALSE_POSITIVE_RATE,
+					String.valueOf(DEFAULT_FILTER_FALSE_POSITIVE_RATE)));
+			if (falsePositiveRate > 0) {
+				Collection<String> keys = storage.keys();
+				long expectedKeys = Math.max(2L * keys.size(),
+						getOption(FILTER_EXPECTED_KEYS, DEFAULT_FILTER_EXPECTED_KEYS));
+				keyFilter = new CountingBloomFilter(expectedKeys, falsePositiveRate);
+				for (String key : keys) {
+					keyFilter.add(key);
+				}
+			}
+		} catch (IOException e) {
+			logger.error("Error! Can't open storage at '" + dbPath + "'", e);
+		}
 	}
 	
 	public static void main(String[] args) {
 		try {
-			if (args.length != 4) {
+			if (args.length < 3) {
 				System.out.println("Wrong number of arguments passed to server");
 			}
 			new LogSetup("logs/server.log", Level.ALL);
 			int port = Integer.parseInt(args[0]);
 			int cacheSize = Integer.parseInt(args[1]);
 			String cacheStrategy = args[2];
-			KVServer server = new KVServer(port, cacheSize, cacheStrategy);
+			Properties options = new Properties();
+			for (int i = 3; i < args.length; i++) {
+				String[] option = args[i].split("=", 2);
+				if (option.length == 2) {
+					options.setProperty(option[0], option[1]);
+				}
+			}
+			KVServer server = new KVServer(port, cacheSize, cacheStrategy, options);
 			server.run();
 		} catch(Exception e) {
 			logger.error("Error! Can't start server");
@@ -107,134 +245,500 @@ public class KVServer implements IKVServer {
 		return cacheSize;
 	}
 		
-    public synchronized void deleteKV(String key) throws Exception{
-    	if (inCache(key))
-    		cache.delete(key);
-    	key += ".kv";
-    	File kvFile = new File(dbPath + key);
-    	if (kvFile.exists()) {
-    		kvFile.delete();
+    public void deleteKV(String key) throws Exception{
+    	if (shards != null) {
+    		shardFor(key).deleteKV(key);
+    		return;
+    	}
+    	long ticket;
+    	Lock lock = keyLocks.forKey(key).asWriteLock();
+    	lock.lock();
+    	try {
+    		ticket = deleteLocked(key);
+    	} finally {
+    		lock.unlock();
     	}
+    	invalidations.invalidate(key);
+    	storage.awaitDurable(ticket);
+	}
+
+	/**
+	 * deleteKV for callers holding the write lock of key.
+	 * @return ticket to wait for outside of the lock.
+	 */
+	private long deleteLocked(String key) throws IOException {
+		boolean stored = keyFilter != null && isStored(key);
+		KVCache cache = this.cache;
+		// A write-back cache also has to drop a pending write of the key.
+		if (cache != null && (cache.get(key) != null || writeBackCache != null))
+			cache.delete(key);
+		long ticket = storage.write(key, null);
+		if (stored)
+			keyFilter.remove(key);
+		return ticket;
 	}
 
 	@Override
-    public synchronized boolean inStorage(String key){
-		boolean result = false;
-		key += ".kv";
-		File kvFile = new File(dbPath + key);     
-        if (kvFile.exists()) {
-        	result = true;
-        }
-		return result;
+    public boolean inStorage(String key){
+		if (shards != null)
+			return shardFor(key).inStorage(key);
+		if (keyFilter != null && !keyFilter.mightContain(key))
+			return false;
+		Lock lock = keyLocks.forKey(key).asReadLock();
+		lock.lock();
+		try {
+			return isStored(key);
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	@Override
-    public synchronized boolean inCache(String key){
-		if (cache != null && cache.get(key) != null) {
+    public boolean inCache(String key){
+		if (shards != null)
+			return shardFor(key).inCache(key);
+		StampedLock stripe = keyLocks.forKey(key);
+		if (getCachedOptimistically(key, stripe) != null)
 			return true;
+		Lock lock = stripe.asReadLock();
+		lock.lock();
+		try {
+			KVCache cache = this.cache;
+			return cache != null && cache.get(key) != null;
+		} finally {
+			lock.unlock();
 		}
-		return false;
 	}
 
 	@Override
-    public synchronized String getKV(String key) throws Exception{
-		String value = null;
+    public String getKV(String key) throws Exception{
+		if (shards != null)
+			return shardFor(key).getKV(key);
+		// A definite miss is answered without taking a lock or touching
+		// the cache.
+		if (keyFilter != null && !keyFilter.mightContain(key)) {
+			filterMisses.incrementAndGet();
+			return null;
+		}
+		StampedLock stripe = keyLocks.forKey(key);
+		String value = getCachedOptimistically(key, stripe);
+		if (value != null)
+			return value;
+		Lock lock = stripe.asReadLock();
+		lock.lock();
+		try {
+			return getLocked(key);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * getKV for callers holding the lock of key.
+	 */
+	private String getLocked(String key) throws IOException {
+		if (keyFilter != null && !keyFilter.mightContain(key)) {
+			filterMisses.incrementAndGet();
+			return null;
+		}
+		KVCache cache = this.cache;
 		if (cache != null) {
-			value = cache.get(key);
+			String value = cache.get(key);
 			if (value != null) {
 				return value;
 			}
 		}
-		key += ".kv";
-		try {
-            File kvFile = new File(dbPath + key);
-            if (kvFile.exists()) {
-            	FileReader fileReader = new FileReader(kvFile);
-                BufferedReader bufferedReader = new BufferedReader(fileReader);
-                value = bufferedReader.readLine();
-            	bufferedReader.close();
-            }
-            return value;
-        }
-        catch(FileNotFoundException ex) {
-        	logger.error("Error! " +
-                "Unable to open kv file '" + 
-                key + "'" + ex);                
-        }
-        catch(IOException ex) {
-        	logger.error(
-                "Error! reading file '" 
-                + key + "'" + ex);                  
-        }
+		String value = storage.get(key);
+		if (value == null && keyFilter != null)
+			filterFalsePositives.incrementAndGet();
 		return value;
 	}
 
+	/**
+	 * First half of getKV: looks key up in the cache only.
+	 * @return the cached value, or null if the value has to come from
+	 * 		{@link #getStoredKV(String)}.
+	 */
+	public String getCachedKV(String key) {
+		if (shards != null)
+			return shardFor(key).getCachedKV(key);
+		if (keyFilter != null && !keyFilter.mightContain(key)) {
+			filterMisses.incrementAndGet();
+			return null;
+		}
+		StampedLock stripe = keyLocks.forKey(key);
+		String value = getCachedOptimistically(key, stripe);
+		if (value != null)
+			return value;
+		Lock lock = stripe.asReadLock();
+		lock.lock();
+		try {
+			KVCache cache = this.cache;
+			return cache == null ? null : cache.get(key);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Looks key up in the cache without locking its stripe. A hit only
+	 * counts if no writer held the stripe meanwhile, so it is as good as
+	 * one under the read lock.
+	 * @return the cached value, or null on a miss or if a writer got in the
+	 * 		way, in which case the caller has to look again under the lock.
+	 */
+	private String getCachedOptimistically(String key, StampedLock stripe) {
+		long stamp = stripe.tryOptimisticRead();
+		if (stamp == 0)
+			return null;
+		KVCache cache = this.cache;
+		String value = cache == null ? null : cache.get(key);
+		return value != null && stripe.validate(stamp) ? value : null;
+	}
+
+	/**
+	 * Second half of getKV: locates the value of key in storage without
+	 * reading it, so that it can be streamed to a client from its file.
+	 * @return the stored value, or null if key is not stored.
+	 */
+	public StoredValue getStoredKV(String key) throws IOException {
+		if (shards != null)
+			return shardFor(key).getStoredKV(key);
+		if (keyFilter != null && !keyFilter.mightContain(key))
+			return null;
+		Lock lock = keyLocks.forKey(key).asReadLock();
+		lock.lock();
+		try {
+			StoredValue value = storage.locate(key);
+			if (value == null && keyFilter != null)
+				filterFalsePositives.incrementAndGet();
+			return value;
+		} finally {
+			lock.unlock();
+		}
+	}
+
 	@Override
-    public synchronized void putKV(String key, String value) throws Exception{
+    public void putKV(String key, String value) throws Exception{
+		if (shards != null) {
+			shardFor(key).putKV(key, value);
+			return;
+		}
+		long ticket;
+		Lock lock = keyLocks.forKey(key).asWriteLock();
+		lock.lock();
+		try {
+			ticket = putLocked(key, value);
+		} finally {
+			lock.unlock();
+		}
+		invalidations.invalidate(key);
+		// Wait for the fsync outside of the lock, so that concurrent
+		// writers can share it.
+		storage.awaitDurable(ticket);
+	}
+
+	/**
+	 * putKV for callers holding the write lock of key.
+	 * @return ticket to wait for outside of the lock, 0 if nothing was
+	 * 		written to storage.
+	 */
+	private long putLocked(String key, String value) throws IOException {
+		if (keyFilter != null && !isStored(key))
+			keyFilter.add(key);
+		KVCache cache = this.cache;
 		if (cache != null) {
 			if (value == cache.get(key)) {
 				// Update recency in case of LRU or count in case of LFU.
 				cache.set(key, value);
 				// Avoid writing to DB.
-				return;
+				return 0;
 			}
 			cache.set(key, value);
+			if (writeBackCache != null) {
+				// Written to storage by the cache's flusher.
+				return 0;
+			}
 		}
-        key += ".kv";
-        File kvFile = new File(dbPath + key);
-        if (!kvFile.exists()) {
-            try {
-                kvFile.createNewFile();
-            } catch (IOException e1) {
-                logger.error("Error! " +
-                        "Unable to create key-value file '" + 
-                        key + "'");  
-            }
-        } 
-        try {
-            FileWriter fileWriter = new FileWriter(kvFile);
-            BufferedWriter bufferedWriter = new BufferedWriter(fileWriter);
-            bufferedWriter.write(value);
-            bufferedWriter.close();
-        }
-        catch(FileNotFoundException ex) {
-            logger.error("Error! " +
-                "Unable to open kv file '" + 
-                key + "'" + ex);                
-        }
-        catch(IOException ex) {
-            logger.error(
-                "Error! reading file '" 
-                + key + "'");                  
-        }
+		return storage.write(key, value);
+	}
+
+	/**
+	 * Carries out an MGET, MPUT or MDELETE of keys. The keys are grouped
+	 * by stripe, whose lock is taken once for all of its keys, and the
+	 * writes are waited for once, as the last one to become durable
+	 * brings all others along.
+	 * @param values the values of an MPUT, null otherwise. An empty value
+	 * 			is refused, as it would be taken for a delete elsewhere.
+	 * @return an entry for each key, in order, with the status of its own
+	 * 		operation, which is as if it came alone.
+	 */
+	public List<KVEntry> batchKV(StatusType operation, List<String> keys,
+			List<String> values) {
+		if (shards != null)
+			return batchOnShards(operation, keys, values);
+		int count = keys.size();
+		KVEntry[] results = new KVEntry[count];
+		final int[] stripeOf = new int[count];
+		Integer[] order = new Integer[count];
+		for (int i = 0; i < count; i++) {
+			stripeOf[i] = keyLocks.stripeOf(keys.get(i));
+			order[i] = i;
+		}
+		// Stable, so that a key given twice is written in order.
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Integer.compare(stripeOf[a], stripeOf[b]);
+			}
+		});
+		boolean write = operation != StatusType.MGET;
+		long ticket = 0;
+		for (int start = 0, end; start < count; start = end) {
+			int stripe = stripeOf[order[start]];
+			for (end = start + 1; end < count && stripeOf[order[end]] == stripe; end++)
+				;
+			Lock lock = write ? keyLocks.stripe(stripe).asWriteLock()
+					: keyLocks.stripe(stripe).asReadLock();
+			lock.lock();
+			try {
+				for (int j = start; j < end; j++) {
+					int i = order[j];
+					String key = keys.get(i);
+					try {
+						if (operation == StatusType.MGET) {
+							String value = getLocked(key);
+							results[i] = new KVEntry(value == null
+									? StatusType.GET_ERROR
+									: StatusType.GET_SUCCESS, key, value);
+						} else if (operation == StatusType.MPUT
+								&& values.get(i).isEmpty()) {
+							results[i] = errorEntry(operation, key, values, i);
+						} else if (operation == StatusType.MPUT) {
+							StatusType status = isStored(key)
+									? StatusType.PUT_UPDATE
+									: StatusType.PUT_SUCCESS;
+							ticket = Math.max(ticket, putLocked(key, values.get(i)));
+							results[i] = new KVEntry(status, key, values.get(i));
+						} else {
+							ticket = Math.max(ticket, deleteLocked(key));
+							results[i] = new KVEntry(StatusType.DELETE_SUCCESS,
+									key, null);
+						}
+					} catch (IOException e) {
+						logger.error("Error! Unable to " + operation
+								+ " key '" + key + "'", e);
+						results[i] = errorEntry(operation, key, values, i);
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+		if (write) {
+			for (String key : keys)
+				invalidations.invalidate(key);
+		}
+		try {
+			storage.awaitDurable(ticket);
+		} catch (IOException e) {
+			logger.error("Error! Unable to make " + operation + " durable", e);
+			for (int i = 0; i < count; i++)
+				results[i] = errorEntry(operation, keys.get(i), values, i);
+		}
+		return Arrays.asList(results);
+	}
+
+	private static KVEntry errorEntry(StatusType operation, String key,
+			List<String> values, int index) {
+		switch (operation) {
+			case MGET:
+				return new KVEntry(StatusType.GET_ERROR, key, null);
+			case MPUT:
+				return new KVEntry(StatusType.PUT_ERROR, key, values.get(index));
+			default:
+				return new KVEntry(StatusType.DELETE_ERROR, key, null);
+		}
+	}
+
+	/**
+	 * Splits a batch by shard, each shard carrying out its part as a batch
+	 * of its own.
+	 */
+	private List<KVEntry> batchOnShards(StatusType operation, List<String> keys,
+			List<String> values) {
+		List<List<Integer>> indices = new ArrayList<List<Integer>>();
+		for (int s = 0; s < shards.length; s++)
+			indices.add(new ArrayList<Integer>());
+		for (int i = 0; i < keys.size(); i++)
+			indices.get(shardOf(keys.get(i), shards.length)).add(i);
+		KVEntry[] results = new KVEntry[keys.size()];
+		for (int s = 0; s < shards.length; s++) {
+			List<Integer> shardIndices = indices.get(s);
+			if (shardIndices.isEmpty())
+				continue;
+			List<String> shardKeys = new ArrayList<String>(shardIndices.size());
+			List<String> shardValues = values == null ? null
+					: new ArrayList<String>(shardIndices.size());
+			for (int i : shardIndices) {
+				shardKeys.add(keys.get(i));
+				if (values != null)
+					shardValues.add(values.get(i));
+			}
+			List<KVEntry> shardResults = shards[s].batchKV(operation,
+					shardKeys, shardValues);
+			for (int j = 0; j < shardIndices.size(); j++)
+				results[shardIndices.get(j)] = shardResults.get(j);
+		}
+		return Arrays.asList(results);
 	}
 
 	@Override
-    public synchronized void clearCache(){
-		cache = createCache(strategy);
+    public void clearCache(){
+		if (shards != null) {
+			for (KVServer shard : shards)
+				shard.clearCache();
+			return;
+		}
+		keyLocks.lockAll();
+		try {
+			resetCache();
+		} finally {
+			keyLocks.unlockAll();
+		}
 	}
 
 	@Override
-    public synchronized void clearStorage(){
-		File[] files = new File(dbPath).listFiles();
-		for (File file: files) {
-			if (file.toString().endsWith(".kv")) {
-				file.delete();
+    public void clearStorage(){
+		if (shards != null) {
+			for (KVServer shard : shards)
+				shard.clearStorage();
+			return;
+		}
+		keyLocks.lockAll();
+		try {
+			if (writeBackCache != null)
+				writeBackCache.discardDirty();
+			try {
+				storage.clear();
+			} catch (IOException e) {
+				logger.error("Error! Unable to clear storage", e);
 			}
+			// Cached entries would otherwise outlive the storage they mirror,
+			// and the key filter no longer vouches for them.
+			resetCache();
+			if (keyFilter != null)
+				keyFilter.clear();
+		} finally {
+			keyLocks.unlockAll();
 		}
+		invalidations.invalidateAll();
+	}
+
+	/**
+	 * @return share of GETs for absent keys that the key filter failed to
+	 * 		answer without a storage lookup
+	 */
+	public double getKeyFilterFalsePositiveRate() {
+		long falsePositives = filterFalsePositives.get();
+		long misses = filterMisses.get() + falsePositives;
+		return misses == 0 ? 0 : (double) falsePositives / misses;
+	}
+
+	/**
+	 * @return false positive rate the key filter is expected to have at its
+	 * 		current number of keys
+	 */
+	public double getKeyFilterExpectedFalsePositiveRate() {
+		return keyFilter == null ? 0 : keyFilter.expectedFalsePositiveRate();
+	}
+
+	/**
+	 * @return keys read by clients with a near cache, whose next write is
+	 * 		pushed to them
+	 */
+	Invalidations getInvalidations() {
+		return invalidations;
+	}
+
+	/**
+	 * @return number of keys tracked for clients with a near cache
+	 */
+	public int getTrackedKeys() {
+		return invalidations.getTrackedCount();
+	}
+
+	/**
+	 * @return number of client connections being served
+	 */
+	public int getActiveConnections() {
+		SelectorServer selectorServer = this.selectorServer;
+		if (selectorServer != null)
+			return selectorServer.getConnectionCount();
+		return connections.getActiveCount();
+	}
+
+	/**
+	 * @return number of client connections waiting for a thread
+	 */
+	public int getQueuedConnections() {
+		return connections.getQueuedCount();
+	}
+
+	/**
+	 * @return number of client connections closed right away because all
+	 * 		threads were busy and the queue was full
+	 */
+	public long getRejectedConnections() {
+		return connections.getRejectedCount();
+	}
+
+	/**
+	 * @return number of requests each shard carried out since the server
+	 * 		started, empty if the server is not sharded
+	 */
+	public long[] getShardRequestCounts() {
+		SelectorServer selectorServer = this.selectorServer;
+		if (shards == null || selectorServer == null)
+			return new long[0];
+		return selectorServer.getShardRequestCounts();
 	}
 
 	@Override
     public void run(){
 		running = initializeServer();
+		if (running && shards != null) {
+			try {
+				selectorServer = new SelectorServer(this, shards);
+				selectorServer.start();
+			} catch (IOException e) {
+				logger.error("Error! Unable to start shards", e);
+				running = false;
+			}
+		} else if (running && options.getProperty(FRONT_END, "threads").trim()
+				.equalsIgnoreCase("selector")) {
+			try {
+				selectorServer = new SelectorServer(this,
+						(int) getOption(EVENT_LOOPS,
+								Runtime.getRuntime().availableProcessors()),
+						(int) getOption(WORKER_THREADS, DEFAULT_WORKER_THREADS));
+				selectorServer.start();
+			} catch (IOException e) {
+				logger.error("Error! Unable to start selector front end", e);
+				running = false;
+			}
+		}
         
         if(serverSocket != null) {
 	        while(running){
 	            try {
 	            	port = serverSocket.getLocalPort();
 	                Socket client = serverSocket.accept();                
-	                ClientConnection connection = new ClientConnection(client, this);
-	                new Thread(connection).start();
+	                if (selectorServer != null) {
+	                	selectorServer.register(client.getChannel());
+	                } else {
+	                	ClientConnection connection = new ClientConnection(client, this);
+	                	connections.execute(client, connection);
+	                }
 	                
 	                logger.info("Connected to " 
 	                		+ client.getInetAddress().getHostName() 
@@ -255,12 +759,28 @@ public class KVServer implements IKVServer {
 
 	@Override
     public void close(){
-		// Cache is write-through, so saving is not necessary.
 		stopServer();
+		if (shards != null) {
+			for (KVServer shard : shards)
+				shard.close();
+			return;
+		}
+		// A write-through cache holds nothing that is not in storage yet.
+		if (writeBackCache != null)
+			writeBackCache.close();
+		if (compactor != null)
+			compactor.stop();
+		storage.close();
 	}
 	
 	private void stopServer() {
 		running = false;
+		connections.shutdown();
+		if (selectorServer != null)
+			selectorServer.stop();
+		// Shards and servers that never ran have no socket.
+		if (serverSocket == null)
+			return;
         try {
 			serverSocket.close();
 		} catch (IOException e) {
@@ -269,6 +789,103 @@ public class KVServer implements IKVServer {
 		}
 	}
 
+	/**
+	 * @return index of the shard owning key, out of count shards.
+	 */
+	static int shardOf(String key, int count) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return (h & Integer.MAX_VALUE) % count;
+	}
+
+	private KVServer shardFor(String key) {
+		return shards[shardOf(key, shards.length)];
+	}
+
+	private KVServer[] createShards(int count) {
+		Properties shardOptions = new Properties();
+		shardOptions.putAll(options);
+		shardOptions.remove(SHARDS);
+		// A shard has a single writer, so there is nobody to share an fsync
+		// with by waiting.
+		if (!options.containsKey(SYNC_DELAY_MICROS))
+			shardOptions.setProperty(SYNC_DELAY_MICROS, "0");
+		KVServer[] shards = new KVServer[count];
+		for (int i = 0; i < count; i++) {
+			shards[i] = new KVServer(port, (cacheSize + count - 1) / count,
+					strategy.name(), shardOptions, dbPath + "shard-" + i + "/");
+			shards[i].invalidations = invalidations;
+		}
+		logger.info("Split into " + count + " shards");
+		return shards;
+	}
+
+	/**
+	 * inStorage for callers already holding the lock of key.
+	 */
+	private boolean isStored(String key) {
+		try {
+			return storage.contains(key)
+					|| (writeBackCache != null && writeBackCache.isDirty(key));
+		} catch (IOException e) {
+			logger.error("Error! Unable to look up key '" + key + "'", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Replaces the cache with an empty one. Called with all keys locked.
+	 */
+	private void resetCache() {
+		if (writeBackCache != null)
+			writeBackCache.close();
+		cache = createCache(strategy);
+	}
+
+	private long getOption(String name, long defaultValue) {
+		String value = options.getProperty(name);
+		return value == null ? defaultValue : Long.parseLong(value.trim());
+	}
+
+	private ConnectionExecutor createConnectionExecutor() {
+		int maxThreads = (int) getOption(MAX_CONNECTION_THREADS,
+				DEFAULT_MAX_CONNECTION_THREADS);
+		int maxQueued = (int) getOption(MAX_QUEUED_CONNECTIONS,
+				DEFAULT_MAX_QUEUED_CONNECTIONS);
+		String executor = options.getProperty(CONNECTION_EXECUTOR, "pool").trim();
+		if (executor.equalsIgnoreCase("virtual"))
+			return ConnectionExecutor.virtual(maxThreads, maxQueued);
+		return ConnectionExecutor.pool(maxThreads, maxQueued);
+	}
+
+	private StorageEngine createStorage() {
+		long syncDelayMicros = getOption(SYNC_DELAY_MICROS,
+				KVLogStore.DEFAULT_SYNC_DELAY_MICROS);
+		int syncBatchSize = (int) getOption(SYNC_BATCH_SIZE,
+				KVLogStore.DEFAULT_SYNC_BATCH_SIZE);
+		String engine = options.getProperty(STORAGE_ENGINE, "log").trim();
+		if (engine.equalsIgnoreCase("lsm")) {
+			// Kept apart from the files of the log-structured store.
+			return new KVLsmStore(dbPath + "lsm/",
+					getOption(MEMTABLE_SIZE, KVLsmStore.DEFAULT_MEMTABLE_SIZE),
+					syncDelayMicros, syncBatchSize);
+		}
+		if (engine.equalsIgnoreCase("memory")) {
+			return new KVMemoryStore(dbPath + "memory/",
+					getOption(SNAPSHOT_INTERVAL_MILLIS,
+							KVMemoryStore.DEFAULT_SNAPSHOT_INTERVAL_MILLIS));
+		}
+		if (!engine.equalsIgnoreCase("log")) {
+			logger.warn("Unknown storage engine '" + engine
+					+ "', using the log-structured store");
+		}
+		KVLogStore store = new KVLogStore(dbPath,
+				KVLogStore.DEFAULT_MAX_SEGMENT_SIZE, syncDelayMicros, syncBatchSize);
+		store.setReadMode(KVLogStore.ReadMode.valueOf(options.getProperty(
+				READ_MODE, KVLogStore.ReadMode.CHANNEL.name()).trim().toUpperCase()));
+		return store;
+	}
+
 	private KVCache createCache(CacheStrategy strategy){
 		KVCache cache = null;
 		switch (strategy) {
@@ -283,13 +900,35 @@ public class KVServer implements IKVServer {
 			default:
 				break;
 		}
+		if (cache != null && Boolean.parseBoolean(options.getProperty(WRITE_BACK))) {
+			writeBackCache = new KVWriteBackCache(cache, new KVCacheWriter() {
+				public void writeAll(Map<String, String> entries) throws IOException {
+					long ticket = 0;
+					for (Map.Entry<String, String> entry : entries.entrySet()) {
+						ticket = storage.write(entry.getKey(), entry.getValue());
+					}
+					storage.awaitDurable(ticket);
+				}
+			}, getOption(FLUSH_INTERVAL_MILLIS, DEFAULT_FLUSH_INTERVAL_MILLIS),
+					getOption(MAX_DIRTY_BYTES, DEFAULT_MAX_DIRTY_BYTES));
+			cache = writeBackCache;
+		}
 		return cache;
 	}
 
 	private boolean initializeServer() {
     	logger.info("Initialize server ...");
     	try {
-            serverSocket = new ServerSocket(port);
+            // Opened through a channel so that accepted sockets have one too,
+            // which lets values be transferred to them straight from disk.
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            try {
+            	channel.socket().bind(new InetSocketAddress(port));
+            } catch (IOException e) {
+            	channel.close();
+            	throw e;
+            }
+            serverSocket = channel.socket();
             logger.info("Server listening on port: " 
             		+ serverSocket.getLocalPort());    
             return true;
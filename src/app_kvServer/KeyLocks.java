@@ -0,0 +1,75 @@
+package app_kvServer;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Fixed set of read-write locks that keys are hashed onto. Operations on
+ * keys of different stripes run in parallel, operations on the same key
+ * are ordered by its stripe. Operations that concern every key, such as
+ * clearing the storage, take all stripes in a fixed order, which acts as
+ * a barrier without a lock that every operation would have to share.
+ * <p>
+ * Stripes are stamped locks, so a read that is cheap to repeat, such as a
+ * cache hit, can run optimistically without writing to the lock at all
+ * and only fall back to the read lock if a writer got in the way. They are
+ * not reentrant.
+ */
+class KeyLocks {
+
+	private final StampedLock[] stripes;
+	private final int mask;
+
+	/**
+	 * @param stripes lower bound on the number of stripes, rounded up to a
+	 * 			power of two.
+	 */
+	KeyLocks(int stripes) {
+		int size = Integer.highestOneBit(Math.max(stripes, 1) - 1) << 1;
+		this.stripes = new StampedLock[Math.max(size, 1)];
+		for (int i = 0; i < this.stripes.length; i++) {
+			this.stripes[i] = new StampedLock();
+		}
+		this.mask = this.stripes.length - 1;
+	}
+
+	/**
+	 * @return the lock guarding key.
+	 */
+	StampedLock forKey(String key) {
+		return stripes[stripeOf(key)];
+	}
+
+	/**
+	 * @return index of the stripe of key, so that operations on many keys
+	 * 		can take each stripe once.
+	 */
+	int stripeOf(String key) {
+		int h = key.hashCode();
+		// Spread the high bits, as the low ones of short keys are similar.
+		h ^= (h >>> 16);
+		return h & mask;
+	}
+
+	StampedLock stripe(int index) {
+		return stripes[index];
+	}
+
+	/**
+	 * Waits for all operations in progress and blocks new ones.
+	 */
+	void lockAll() {
+		for (StampedLock stripe : stripes) {
+			stripe.asWriteLock().lock();
+		}
+	}
+
+	void unlockAll() {
+		for (int i = stripes.length - 1; i >= 0; i--) {
+			stripes[i].asWriteLock().unlock();
+		}
+	}
+
+	int size() {
+		return stripes.length;
+	}
+}
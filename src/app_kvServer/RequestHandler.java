@@ -0,0 +1,267 @@
+package app_kvServer;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import common.messages.BinaryMessage;
+import common.messages.KVEntry;
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+import common.messages.TextMessage;
+import storage.StoredValue;
+
+/**
+ * Carries out client requests on a KVServer, for whichever front end
+ * received them.
+ */
+class RequestHandler {
+
+	private static Logger logger = Logger.getRootLogger();
+
+	private static final int MAX_KEY_LENGTH = 20;
+	private static final int MAX_VALUE_LENGTH = 120000;
+	/** Most keys a batch may hold. */
+	static final int MAX_BATCH_SIZE = 1000;
+
+	private final KVServer kvServer;
+
+	/**
+	 * The answer to a request, followed by the raw bytes of storedValue if
+	 * that is set instead of value.
+	 */
+	static final class Response {
+
+		final StatusType status;
+		final String key;
+		final String value;
+		final StoredValue storedValue;
+		/** Tag of the request, or -1. */
+		final int id;
+		/** Results of a batch, which has no key of its own. */
+		final List<KVEntry> entries;
+
+		Response(StatusType status, String key, String value,
+				StoredValue storedValue, int id) {
+			this.status = status;
+			this.key = key;
+			this.value = value;
+			this.storedValue = storedValue;
+			this.id = id;
+			this.entries = null;
+		}
+
+		Response(StatusType status, List<KVEntry> entries, int id) {
+			this.status = status;
+			this.key = null;
+			this.value = null;
+			this.storedValue = null;
+			this.id = id;
+			this.entries = entries;
+		}
+
+		/**
+		 * @return the response as JSON, only the header if storedValue
+		 * 		follows.
+		 */
+		TextMessage toTextMessage() {
+			TextMessage message = entries != null
+					? new TextMessage(status, entries)
+					: storedValue != null
+					? new TextMessage(status, key, storedValue.getLength())
+					: new TextMessage(status, key, value);
+			if (id >= 0) {
+				message.setId(id);
+			}
+			return message;
+		}
+
+		/**
+		 * @return the response in the binary protocol, only header and key
+		 * 		if storedValue follows.
+		 */
+		byte[] toBinary() {
+			if (entries != null) {
+				List<KVEntry> sent = new ArrayList<KVEntry>(entries.size());
+				for (KVEntry entry : entries) {
+					sent.add(entry.getStatus() == StatusType.GET_SUCCESS ? entry
+							: new KVEntry(entry.getStatus(), entry.getKey(), null));
+				}
+				return new BinaryMessage(status, sent, id).getMsgBytes();
+			}
+			if (storedValue != null) {
+				return BinaryMessage.header(status, key,
+						storedValue.getLength(), id);
+			}
+			// The client knows the value it put.
+			boolean echo = status == StatusType.GET_SUCCESS;
+			return new BinaryMessage(status, key, echo ? value : null, id)
+					.getMsgBytes();
+		}
+	}
+
+	RequestHandler(KVServer kvServer) {
+		this.kvServer = kvServer;
+	}
+
+	/**
+	 * Values of GETs in the binary protocol, and of GETs asking for raw
+	 * framing, are streamed from storage where possible.
+	 */
+	Response handle(KVMessage request) {
+		StatusType operation = request.getStatus();
+		boolean rawValue;
+		int id;
+		if (request instanceof BinaryMessage) {
+			rawValue = true;
+			id = ((BinaryMessage) request).getId();
+		} else {
+			rawValue = ((TextMessage) request).isRawFraming();
+			id = ((TextMessage) request).getId();
+		}
+
+		String key = null;
+		String value = null;
+		StoredValue storedValue = null;
+		StatusType status = StatusType.PUT_SUCCESS;
+		switch (operation) {
+			case PUT:
+				key = request.getKey();
+				value = request.getValue();
+				if (!isValidKey(key) || !isValidValue(value)) {
+					logger.error("Error! Unable to PUT due to invalid key or value!");
+					status = StatusType.PUT_ERROR;
+					break;
+				}
+				try {
+					if (kvServer.inStorage(key))
+						status = StatusType.PUT_UPDATE;
+					kvServer.putKV(key, value);
+				} catch (Exception e) {
+					logger.error("Error! Unable to PUT key-value pair!", e);
+					status = StatusType.PUT_ERROR;
+				}
+				break;
+			case GET_TRACKED:
+			case GET:
+				key = request.getKey();
+				if (!isValidKey(key)) {
+					logger.error("Error! Unable to GET due to invalid key");
+					status = StatusType.GET_ERROR;
+					break;
+				}
+				if (operation == StatusType.GET_TRACKED)
+					track(key, request.getValue());
+				try {
+					if (rawValue) {
+						// Values not in the cache are streamed
+						// from their file after the response.
+						value = kvServer.getCachedKV(key);
+						if (value == null)
+							storedValue = kvServer.getStoredKV(key);
+					} else {
+						value = kvServer.getKV(key);
+					}
+					if (value == null && storedValue == null)
+						status = StatusType.GET_ERROR;
+					else
+						status = StatusType.GET_SUCCESS;
+				} catch (Exception e) {
+					logger.error("Error! Unable to GET key-value pair!", e);
+					status = StatusType.GET_ERROR;
+				}
+				break;
+			case DELETE:
+				key = request.getKey();
+				value = "";
+				try {
+					kvServer.deleteKV(key);
+					status = StatusType.DELETE_SUCCESS;
+				} catch (Exception e) {
+					logger.error("Error! Unable to DELETE key-value pair!", e);
+					status = StatusType.DELETE_ERROR;
+				}
+				break;
+			case MGET:
+			case MPUT:
+			case MDELETE:
+				return handleBatch(operation, request.getEntries(), id);
+			default:
+				break;
+		}
+		if (storedValue != null)
+			status = StatusType.GET_SUCCESS;
+		return new Response(status, key, value, storedValue, id);
+	}
+
+	/**
+	 * Tracks key for the subscription named by id, before its value is
+	 * read. The GET is served either way.
+	 */
+	private void track(String key, String id) {
+		try {
+			if (!kvServer.getInvalidations().track(key, Long.parseLong(id)))
+				logger.error("Error! No subscription " + id + " to track "
+						+ key + " for");
+		} catch (NumberFormatException e) {
+			logger.error("Error! Bad subscription id " + id);
+		}
+	}
+
+	/**
+	 * Carries out the entries of a batch with valid keys, and values, as
+	 * one batch, the others failing on their own.
+	 */
+	private Response handleBatch(StatusType operation, List<KVEntry> entries,
+			int id) {
+		if (entries == null || entries.size() > MAX_BATCH_SIZE) {
+			logger.error("Error! Unable to " + operation + " a batch of "
+					+ (entries == null ? "no" : entries.size()) + " keys");
+			return new Response(StatusType.BATCH_ERROR,
+					new ArrayList<KVEntry>(), id);
+		}
+		boolean put = operation == StatusType.MPUT;
+		List<String> keys = new ArrayList<String>(entries.size());
+		List<String> values = put ? new ArrayList<String>(entries.size()) : null;
+		boolean[] valid = new boolean[entries.size()];
+		for (int i = 0; i < valid.length; i++) {
+			KVEntry entry = entries.get(i);
+			// An empty value would be a delete, which MDELETE is for.
+			valid[i] = isValidKey(entry.getKey())
+					&& (!put || isValidValue(entry.getValue())
+							&& !entry.getValue().isEmpty());
+			if (valid[i]) {
+				keys.add(entry.getKey());
+				if (put)
+					values.add(entry.getValue());
+			}
+		}
+		List<KVEntry> done = kvServer.batchKV(operation, keys, values);
+		List<KVEntry> results = new ArrayList<KVEntry>(entries.size());
+		int next = 0;
+		for (int i = 0; i < valid.length; i++) {
+			KVEntry entry = entries.get(i);
+			if (valid[i]) {
+				results.add(done.get(next++));
+				continue;
+			}
+			logger.error("Error! Unable to " + operation
+					+ " due to invalid key or value!");
+			StatusType error = operation == StatusType.MGET
+					? StatusType.GET_ERROR : put ? StatusType.PUT_ERROR
+					: StatusType.DELETE_ERROR;
+			results.add(new KVEntry(error, entry.getKey(), entry.getValue()));
+		}
+		return new Response(StatusType.BATCH_SUCCESS, results, id);
+	}
+
+	private static boolean isValidKey(String key) {
+		return key != null && !key.isEmpty() && !key.contains(" ")
+				&& key.length() <= MAX_KEY_LENGTH;
+	}
+
+	private static boolean isValidValue(String value) {
+		return value != null && value.length() <= MAX_VALUE_LENGTH;
+	}
+}
@@ -0,0 +1,788 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import common.messages.BinaryMessage;
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+import common.messages.TextMessage;
+import storage.StoredValue;
+
+/**
+ * Non-blocking front end, as an alternative to running a
+ * {@link ClientConnection} per socket. A few event loops each watch many
+ * sockets with a {@link Selector} and read from them without blocking.
+ * Complete requests go to a pool of workers, which do the storage I/O, and
+ * the event loop writes the responses back as the sockets take them. An
+ * idle connection thus costs a buffer rather than a thread.
+ * <p>
+ * The wire protocol is the one of ClientConnection: requests and responses
+ * are JSON messages ended by a line feed, and the response to a raw GET
+ * may be followed by the bytes of the value, which are transferred from
+ * storage as the socket drains. A connection that opens with the
+ * handshake byte of {@link BinaryMessage} speaks the binary protocol
+ * instead. A connection hands one request at a time to the workers and
+ * takes the next one only once the response is queued, so responses come
+ * in the order of the requests, pipelined ones included, and a client
+ * that does not read its responses stops being served. A connection that
+ * subscribes to invalidations carries only those from then on, handed to
+ * its event loop by the writers.
+ * <p>
+ * Alternatively the server runs sharded, one event loop per shard and no
+ * workers. Each shard owns the keys that hash to it, along with their
+ * cache and storage, and only its event loop touches them, so the data
+ * path shares nothing between threads. A request for a key of another
+ * shard is handed to that shard's loop, and the response back, through a
+ * lock-free queue for each pair of loops. Batches span shards, so the loop
+ * that received one carries it out on the shards directly, relying on
+ * the locks each shard keeps for its keys anyway.
+ */
+class SelectorServer {
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+	/** Longest request accepted, as with ClientConnection. */
+	private static final int DROP_SIZE = 128 * 1024;
+	/** Responses queued before they are written, when pipelined. */
+	private static final int MAX_QUEUED_OUTPUT = 32 * 1024;
+	/** Invalidations a subscriber may fall behind by, as with ClientConnection. */
+	private static final int MAX_QUEUED_INVALIDATIONS = 10000;
+	/** Queued in place of the invalidations of a subscriber too far behind. */
+	private static final String ALL_KEYS = new String("");
+	/** Pause between two reports of the requests each shard handled. */
+	private static final long REPORT_INTERVAL_MILLIS = 60 * 1000;
+
+	private static Logger logger = Logger.getRootLogger();
+
+	private final EventLoop[] loops;
+	/** Null when sharded. */
+	private final ExecutorService workers;
+	/** Carries out requests of any key, on the workers or for batches. */
+	private final RequestHandler handler;
+	private final Invalidations invalidations;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	private final AtomicInteger connectionCount = new AtomicInteger();
+	private volatile boolean stopped;
+
+	/**
+	 * Serves kvServer, with requests carried out by workers.
+	 * @param eventLoops number of threads watching sockets.
+	 * @param workerThreads number of threads carrying out requests.
+	 */
+	SelectorServer(KVServer kvServer, int eventLoops, int workerThreads)
+			throws IOException {
+		this.handler = new RequestHandler(kvServer);
+		this.invalidations = kvServer.getInvalidations();
+		this.loops = new EventLoop[Math.max(eventLoops, 1)];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop(i, null);
+		}
+		final AtomicInteger threads = new AtomicInteger();
+		// Each connection has at most one request queued, so the queue is
+		// bounded by the number of connections.
+		this.workers = Executors.newFixedThreadPool(Math.max(workerThreads, 1),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "kv-worker-"
+								+ threads.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Serves shards, each on an event loop of its own that also carries
+	 * out its requests.
+	 * @param kvServer the server the shards make up.
+	 * @param shards the shards, indexed as by {@link KVServer#shardOf}.
+	 */
+	SelectorServer(KVServer kvServer, KVServer[] shards) throws IOException {
+		this.handler = new RequestHandler(kvServer);
+		this.invalidations = kvServer.getInvalidations();
+		this.workers = null;
+		this.loops = new EventLoop[shards.length];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop(i, new RequestHandler(shards[i]));
+		}
+	}
+
+	void start() {
+		for (EventLoop loop : loops) {
+			loop.thread.start();
+		}
+	}
+
+	/**
+	 * Hands an accepted socket to one of the event loops.
+	 */
+	void register(SocketChannel channel) throws IOException {
+		channel.configureBlocking(false);
+		EventLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE)
+				% loops.length];
+		final Connection connection = new Connection(channel, loop);
+		loop.submit(new Runnable() {
+			public void run() {
+				connection.open();
+			}
+		});
+	}
+
+	/**
+	 * Closes all connections and stops the event loops and workers.
+	 */
+	void stop() {
+		stopped = true;
+		for (EventLoop loop : loops) {
+			loop.selector.wakeup();
+		}
+		for (EventLoop loop : loops) {
+			try {
+				loop.thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (workers != null) {
+			workers.shutdown();
+		}
+	}
+
+	/**
+	 * @return number of open client connections.
+	 */
+	int getConnectionCount() {
+		return connectionCount.get();
+	}
+
+	/**
+	 * @return number of requests each shard carried out, or an empty array
+	 * 		if the server is not sharded.
+	 */
+	long[] getShardRequestCounts() {
+		long[] counts = new long[workers == null ? loops.length : 0];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = loops[i].handled;
+		}
+		return counts;
+	}
+
+	private static RequestHandler.Response handle(RequestHandler handler,
+			KVMessage request) {
+		try {
+			return handler.handle(request);
+		} catch (RuntimeException e) {
+			logger.error("Error! Unable to handle request", e);
+			return null;
+		}
+	}
+
+	/**
+	 * A request on its way to the shard owning its key, and then its
+	 * response on the way back.
+	 */
+	private static final class Handoff {
+
+		final Connection connection;
+		KVMessage request;
+		RequestHandler.Response response;
+
+		Handoff(Connection connection, KVMessage request) {
+			this.connection = connection;
+			this.request = request;
+		}
+	}
+
+	private final class EventLoop implements Runnable {
+
+		final int index;
+		final Selector selector;
+		final Thread thread;
+		final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		/** Requests of this shard, when sharded. */
+		final RequestHandler shardHandler;
+		/** Handoffs from each other loop, when sharded. */
+		final List<SpscQueue<Handoff>> inbox;
+		/** True while the loop may block in select. */
+		volatile boolean selecting;
+		/** Written by the loop thread only. */
+		volatile long handled;
+		private long lastReport = System.currentTimeMillis();
+		private long[] lastCounts;
+
+		EventLoop(int index, RequestHandler shardHandler) throws IOException {
+			this.index = index;
+			this.shardHandler = shardHandler;
+			this.selector = Selector.open();
+			this.thread = new Thread(this, (shardHandler == null
+					? "kv-event-loop-" : "kv-shard-") + (index + 1));
+			int senders = shardHandler == null ? 0 : loops.length;
+			this.inbox = new ArrayList<SpscQueue<Handoff>>(senders);
+			for (int i = 0; i < senders; i++) {
+				inbox.add(new SpscQueue<Handoff>());
+			}
+		}
+
+		/**
+		 * Runs task on the event loop thread.
+		 */
+		void submit(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		/**
+		 * Called by the loop of index from only.
+		 */
+		void handOff(int from, Handoff handoff) {
+			inbox.get(from).offer(handoff);
+			// Either the loop sees the handoff before it blocks, or we see
+			// that it may block.
+			if (selecting) {
+				selector.wakeup();
+			}
+		}
+
+		RequestHandler.Response handle(KVMessage request) {
+			handled++;
+			return SelectorServer.handle(shardHandler, request);
+		}
+
+		public void run() {
+			while (!stopped) {
+				try {
+					select();
+				} catch (IOException e) {
+					logger.error("Error! Event loop failed", e);
+					break;
+				}
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+				if (shardHandler != null) {
+					drainInbox();
+					if (index == 0) {
+						report();
+					}
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					Connection connection = (Connection) key.attachment();
+					if (!key.isValid()) {
+						// Closed by a task above.
+						continue;
+					}
+					try {
+						if (key.isWritable()) {
+							connection.write();
+						}
+						if (key.isValid() && key.isReadable()) {
+							connection.read();
+						}
+					} catch (IOException | CancelledKeyException e) {
+						logger.error("Error! Connection lost!");
+						connection.close();
+					}
+				}
+			}
+			for (SelectionKey key : selector.keys()) {
+				((Connection) key.attachment()).close();
+			}
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				// Connections registered too late to be served.
+				task.run();
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				logger.error("Error! Unable to close selector", e);
+			}
+		}
+
+		private void select() throws IOException {
+			if (shardHandler == null) {
+				selector.select();
+				return;
+			}
+			selecting = true;
+			try {
+				if (hasHandoffs()) {
+					selector.selectNow();
+				} else {
+					selector.select(index == 0 ? REPORT_INTERVAL_MILLIS : 0);
+				}
+			} finally {
+				selecting = false;
+			}
+		}
+
+		private boolean hasHandoffs() {
+			for (SpscQueue<Handoff> queue : inbox) {
+				if (!queue.isEmpty()) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Carries out the requests other loops handed over, and passes on
+		 * the responses to requests this loop handed over.
+		 */
+		private void drainInbox() {
+			for (int from = 0; from < inbox.size(); from++) {
+				Handoff handoff;
+				while ((handoff = inbox.get(from).poll()) != null) {
+					if (handoff.request != null) {
+						handoff.response = handle(handoff.request);
+						handoff.request = null;
+						loops[from].handOff(index, handoff);
+					} else {
+						handoff.connection.respond(handoff.response);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Logs the rate at which each shard carried out requests, so that
+		 * skew between them shows.
+		 */
+		private void report() {
+			long now = System.currentTimeMillis();
+			if (now - lastReport < REPORT_INTERVAL_MILLIS) {
+				return;
+			}
+			long[] counts = getShardRequestCounts();
+			StringBuilder rates = new StringBuilder();
+			for (int i = 0; i < counts.length; i++) {
+				long previous = lastCounts == null ? 0 : lastCounts[i];
+				rates.append(i == 0 ? "" : ", ").append(
+						(counts[i] - previous) * 1000 / (now - lastReport));
+			}
+			logger.info("Requests per second by shard: [" + rates + "]");
+			lastReport = now;
+			lastCounts = counts;
+		}
+	}
+
+	private final class Connection {
+
+		private final SocketChannel channel;
+		private final EventLoop loop;
+		private SelectionKey key;
+		private ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+		/** Bytes of input already searched for a line feed. */
+		private int scanned;
+		/** Whether the first byte of input was looked at yet. */
+		private boolean negotiated;
+		/** Whether the client chose the binary protocol. */
+		private boolean binary;
+		private final Queue<ByteBuffer> output = new ArrayDeque<ByteBuffer>();
+		/** Bytes added to output since it was last empty. */
+		private int queuedBytes;
+		private StoredValue storedValue;
+		private long storedValueSent;
+		/** True while a request is with a worker or another shard. */
+		private boolean busy;
+		private boolean endOfInput;
+		private boolean closed;
+		/** Id of the subscription the connection carries, or 0. */
+		private long subscription;
+		/** Invalidations not queued yet, guarded by itself. */
+		private final Queue<String> invalidated = new ArrayDeque<String>();
+		/** Whether a push is due, guarded by invalidated. */
+		private boolean pushing;
+
+		Connection(SocketChannel channel, EventLoop loop) {
+			this.channel = channel;
+			this.loop = loop;
+		}
+
+		void open() {
+			if (stopped) {
+				close();
+				return;
+			}
+			try {
+				key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+				connectionCount.incrementAndGet();
+			} catch (IOException e) {
+				logger.error("Error! Connection could not be established!", e);
+				closeChannel();
+			}
+		}
+
+		void read() throws IOException {
+			if (!input.hasRemaining()) {
+				if (input.capacity() >= DROP_SIZE) {
+					throw new IOException("Request exceeds " + DROP_SIZE
+							+ " bytes");
+				}
+				ByteBuffer larger = ByteBuffer.allocate(Math.min(
+						2 * input.capacity(), DROP_SIZE));
+				input.flip();
+				larger.put(input);
+				input = larger;
+			}
+			if (channel.read(input) < 0) {
+				endOfInput = true;
+			}
+			next();
+		}
+
+		void write() throws IOException {
+			flush();
+			if (subscription != 0) {
+				push();
+			}
+			// Requests that arrived meanwhile are already buffered.
+			next();
+		}
+
+		/**
+		 * Dispatches buffered requests while the connection is idle, and
+		 * closes it once the client is gone.
+		 */
+		private void next() {
+			while (!closed) {
+				// Responses to pipelined requests carried out right away
+				// are written together, up to a limit.
+				if (storedValue != null || queuedBytes >= MAX_QUEUED_OUTPUT) {
+					flushOrClose();
+					if (storedValue != null || !output.isEmpty()) {
+						updateInterest();
+						return;
+					}
+				}
+				if (busy) {
+					updateInterest();
+					return;
+				}
+				KVMessage request;
+				try {
+					request = nextRequest();
+				} catch (IOException e) {
+					logger.error("Error! Bad request from " + address(), e);
+					close();
+					return;
+				}
+				if (request == null) {
+					flushOrClose();
+					if (endOfInput && output.isEmpty() && storedValue == null) {
+						close();
+					} else {
+						updateInterest();
+					}
+					return;
+				}
+				String description = binary ? request.toString()
+						: ((TextMessage) request).getMsg().trim();
+				if (description.length() == 0) {
+					close();
+					return;
+				}
+				logger.info("RECEIVE \t<" + address() + ">: '"
+						+ description + "'");
+				if (subscription != 0) {
+					logger.error("Error! Request on a subscription from "
+							+ address());
+					close();
+					return;
+				}
+				if (request.getStatus() == StatusType.SUBSCRIBE) {
+					subscribe();
+					continue;
+				}
+				if (!dispatch(request)) {
+					flushOrClose();
+					updateInterest();
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Turns the connection into a subscription, whose invalidations
+		 * writers hand to the event loop to send. A client that does not
+		 * read them holds up at most one round of pushes, and once too
+		 * many are waiting is told that all keys may have been written.
+		 */
+		private void subscribe() {
+			subscription = invalidations.subscribe(
+					new Invalidations.Subscriber() {
+				public void invalidate(String key) {
+					synchronized (invalidated) {
+						if (invalidated.size() >= MAX_QUEUED_INVALIDATIONS) {
+							invalidated.clear();
+							invalidated.add(ALL_KEYS);
+						} else {
+							invalidated.add(key == null ? ALL_KEYS : key);
+						}
+						if (pushing) {
+							return;
+						}
+						pushing = true;
+					}
+					loop.submit(new Runnable() {
+						public void run() {
+							push();
+						}
+					});
+				}
+			});
+			queue(new RequestHandler.Response(StatusType.SUBSCRIBE_SUCCESS,
+					String.valueOf(subscription), null, null, -1));
+		}
+
+		/**
+		 * Queues the waiting invalidations, unless the previous ones are
+		 * not written yet, in which case {@link #write()} comes back.
+		 */
+		private void push() {
+			if (closed || !output.isEmpty()) {
+				return;
+			}
+			List<String> keys;
+			synchronized (invalidated) {
+				keys = new ArrayList<String>(invalidated);
+				invalidated.clear();
+				pushing = false;
+			}
+			if (keys.isEmpty()) {
+				return;
+			}
+			for (String key : keys) {
+				queue(new RequestHandler.Response(StatusType.INVALIDATE,
+						key == ALL_KEYS ? null : key, null, null, -1));
+			}
+			flushOrClose();
+			updateInterest();
+		}
+
+		private void queueOrClose(RequestHandler.Response response) {
+			if (response == null) {
+				close();
+			} else {
+				queue(response);
+			}
+		}
+
+		private void flushOrClose() {
+			try {
+				flush();
+			} catch (IOException e) {
+				logger.error("Error! Connection lost!");
+				close();
+			}
+		}
+
+		/**
+		 * Hands request to whoever carries it out.
+		 * @return true if it was carried out right away.
+		 */
+		private boolean dispatch(final KVMessage request) {
+			if (workers != null) {
+				busy = true;
+				workers.execute(new Runnable() {
+					public void run() {
+						final RequestHandler.Response response =
+								handle(handler, request);
+						loop.submit(new Runnable() {
+							public void run() {
+								respond(response);
+							}
+						});
+					}
+				});
+				return false;
+			}
+			if (request.getEntries() != null) {
+				queueOrClose(handle(handler, request));
+				return true;
+			}
+			String key = request.getKey();
+			EventLoop owner = key == null ? loop
+					: loops[KVServer.shardOf(key, loops.length)];
+			if (owner != loop) {
+				busy = true;
+				owner.handOff(loop.index, new Handoff(this, request));
+				return false;
+			}
+			queueOrClose(loop.handle(request));
+			return true;
+		}
+
+		/**
+		 * @return the next request in the input, or null if it is not
+		 * 		complete yet.
+		 * @throws IOException if the input does not hold a binary message.
+		 */
+		private KVMessage nextRequest() throws IOException {
+			if (!negotiated) {
+				if (input.position() == 0) {
+					return null;
+				}
+				negotiated = true;
+				if (input.get(0) == BinaryMessage.HANDSHAKE) {
+					binary = true;
+					input.flip();
+					input.get();
+					input.compact();
+					output.add(ByteBuffer.wrap(
+							new byte[] { BinaryMessage.HANDSHAKE }));
+				}
+			}
+			if (binary) {
+				input.flip();
+				// Leaves room for the header in a buffer of DROP_SIZE.
+				BinaryMessage request = BinaryMessage.decode(input,
+						DROP_SIZE - BinaryMessage.MAX_HEADER_SIZE);
+				input.compact();
+				return request;
+			}
+			for (; scanned < input.position(); scanned++) {
+				if (input.get(scanned) == '\n') {
+					byte[] msgBytes = new byte[scanned];
+					input.flip();
+					input.get(msgBytes);
+					// Skip the line feed.
+					input.get();
+					input.compact();
+					scanned = 0;
+					return new TextMessage(msgBytes);
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Takes the response to the request with a worker or another shard.
+		 */
+		void respond(RequestHandler.Response response) {
+			busy = false;
+			if (closed) {
+				return;
+			}
+			if (response == null) {
+				close();
+				return;
+			}
+			queue(response);
+			try {
+				write();
+			} catch (IOException e) {
+				logger.error("Error! Connection lost!");
+				close();
+			}
+		}
+
+		private void queue(RequestHandler.Response response) {
+			String description;
+			if (binary) {
+				byte[] msgBytes = response.toBinary();
+				output.add(ByteBuffer.wrap(msgBytes));
+				queuedBytes += msgBytes.length;
+				description = response.status + " " + response.key;
+			} else {
+				TextMessage message = response.toTextMessage();
+				byte[] msgBytes = message.getMsgBytes();
+				output.add(ByteBuffer.wrap(msgBytes));
+				queuedBytes += msgBytes.length;
+				description = message.getMsg();
+			}
+			storedValue = response.storedValue;
+			storedValueSent = 0;
+			logger.info("SEND \t<" + address() + ">: '" + description + "'"
+					+ (storedValue == null ? ""
+							: " + " + storedValue.getLength() + " bytes"));
+		}
+
+		/**
+		 * Writes as much of the output as the socket takes.
+		 */
+		private void flush() throws IOException {
+			while (!output.isEmpty()) {
+				ByteBuffer buf = output.peek();
+				channel.write(buf);
+				if (buf.hasRemaining()) {
+					return;
+				}
+				output.poll();
+			}
+			queuedBytes = 0;
+			if (storedValue != null) {
+				while (storedValueSent < storedValue.getLength()) {
+					long sent = storedValue.transferTo(storedValueSent, channel);
+					if (sent == 0) {
+						return;
+					}
+					storedValueSent += sent;
+				}
+				storedValue = null;
+			}
+		}
+
+		private void updateInterest() {
+			if (closed) {
+				return;
+			}
+			int ops = 0;
+			if (!busy && !endOfInput && output.isEmpty() && storedValue == null) {
+				ops |= SelectionKey.OP_READ;
+			}
+			if (!output.isEmpty() || storedValue != null) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			key.interestOps(ops);
+		}
+
+		void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (subscription != 0) {
+				invalidations.unsubscribe(subscription);
+			}
+			if (key != null) {
+				key.cancel();
+				connectionCount.decrementAndGet();
+			}
+			closeChannel();
+		}
+
+		private void closeChannel() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.error("Error! Unable to tear down connection!", e);
+			}
+		}
+
+		private String address() {
+			return channel.socket().getInetAddress().getHostAddress() + ":"
+					+ channel.socket().getPort();
+		}
+	}
+}
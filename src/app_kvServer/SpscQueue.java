@@ -0,0 +1,58 @@
+package app_kvServer;
+
+/**
+ * Unbounded lock-free queue between exactly one producer thread and one
+ * consumer thread. The producer only ever touches the tail and the
+ * consumer only the head, so neither needs more than one volatile write
+ * per element.
+ */
+final class SpscQueue<E> {
+
+	private static final class Node<E> {
+
+		E value;
+		volatile Node<E> next;
+	}
+
+	/** Last consumed node, owned by the consumer. */
+	private Node<E> head;
+	/** Last produced node, owned by the producer. */
+	private Node<E> tail;
+
+	SpscQueue() {
+		head = tail = new Node<E>();
+	}
+
+	/**
+	 * Called by the producer only.
+	 */
+	void offer(E value) {
+		Node<E> node = new Node<E>();
+		node.value = value;
+		// Publishes the value along with the node.
+		tail.next = node;
+		tail = node;
+	}
+
+	/**
+	 * Called by the consumer only.
+	 * @return the oldest element, or null if the queue is empty.
+	 */
+	E poll() {
+		Node<E> next = head.next;
+		if (next == null) {
+			return null;
+		}
+		E value = next.value;
+		next.value = null;
+		head = next;
+		return value;
+	}
+
+	/**
+	 * Called by the consumer only.
+	 */
+	boolean isEmpty() {
+		return head.next == null;
+	}
+}
@@ -15,7 +15,12 @@ public interface KVCache {
      /*
      * Delete a key in the cache
      */
-	public void remove(String key);
+	public void delete(String key);
+
+     /*
+      * Register a listener that is told about entries evicted for capacity
+      */
+     public void setEvictionListener(KVEvictionListener listener);
 
      /*
       * Print the algorithm used
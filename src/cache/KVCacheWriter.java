@@ -0,0 +1,12 @@
+package cache;
+
+import java.util.Map;
+
+public interface KVCacheWriter {
+	/**
+     * Persist a batch of cache entries to the backing storage
+     * @throws Exception
+     *      when the entries could not be written
+     */
+	public void writeAll(Map<String, String> entries) throws Exception;
+}
@@ -0,0 +1,8 @@
+package cache;
+
+public interface KVEvictionListener {
+	/**
+     * Called when the cache drops an entry to make room for another one
+     */
+	public void onEvict(String key, String value);
+}
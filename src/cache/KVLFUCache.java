@@ -9,6 +9,7 @@ public class KVLFUCache implements KVCache {
     HashMap<Integer, LinkedHashSet<String>> countListMap;
     int capacity;
     int minCount = -1;
+    KVEvictionListener listener;
     public KVLFUCache(int cap) {
         capacity = cap;
         mainMap = new HashMap<>();
@@ -31,12 +32,16 @@ public class KVLFUCache implements KVCache {
         return mainMap.get(key);
     }
     
+    public synchronized void setEvictionListener(KVEvictionListener listener) {
+        this.listener = listener;
+    }
+
     public synchronized void printAlgorithm() {
         System.out.println("FIFO");
     }
     
     public synchronized void printCache() {
-        System.out.println("FIFO")
+        System.out.println("FIFO");
     }
     
     public synchronized void set(String key, String value) {
@@ -50,7 +55,10 @@ public class KVLFUCache implements KVCache {
         if(mainMap.size() >= capacity) {
             String evict = countListMap.get(minCount).iterator().next();
             countListMap.get(minCount).remove(evict);
-            mainMap.remove(evict);
+            countMap.remove(evict);
+            String evicted = mainMap.remove(evict);
+            if (listener != null)
+                listener.onEvict(evict, evicted);
         }
         mainMap.put(key, value);
         countMap.put(key, 1);
@@ -58,7 +66,7 @@ public class KVLFUCache implements KVCache {
         countListMap.get(1).add(key);
     }
     
-    public synchronized void remove(String key) {
+    public synchronized void delete(String key) {
     	if(!mainMap.containsKey(key))
             return;
     	int count = countMap.get(key);
@@ -1,41 +1,16 @@
 package cache;
-import java.util.LinkedHashMap;
-import java.util.Map;
 
-public class KVLRUCache implements KVCache {
-    private final int capacity;
-    private LinkedHashMap<String, String> map;
-    
-    public KVLRUCache(int cap) {
-        capacity = cap;
-        map = new LinkedHashMap<String, String>(capacity, 0.75f, true){
-            /**
-			 * Supply default serial ID.
-			 */
-			private static final long serialVersionUID = 1L;
+/**
+ * Evicts the least recently used entry. Hits take no lock, see
+ * {@link KVLinkedCache}.
+ */
+public class KVLRUCache extends KVLinkedCache {
 
-			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
-                return size() > capacity;
-            }
-        };
-    }
-    public synchronized void printAlgorithm() {
-        System.out.println("FIFO");
-    }
-    
-    public synchronized void printCache() {
-        System.out.println(map);
+    public KVLRUCache(int cap) {
+        super(cap, true);
     }
 
-    public synchronized String get(String key) {
-        return map.getOrDefault(key, null);
-    }
-    
-    public synchronized void set(String key, String value) {
-        map.put(key, value);
-    }
-    
-    public synchronized void remove(String key) {
-        map.remove(key);
+    public void printAlgorithm() {
+        System.out.println("LRU");
     }
-}
\ No newline at end of file
+}
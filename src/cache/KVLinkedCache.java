@@ -0,0 +1,208 @@
+package cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded cache whose hits take no lock. Entries are looked up in a
+ * concurrent map and ordered for eviction in a linked list that only
+ * writes lock. In access order, a hit does not move its entry right away
+ * but records it in one of a few small buffers, picked by thread, and
+ * whichever thread fills a buffer drains it into the list if the lock is
+ * free. Writes drain all buffers first. A hit that finds its buffer full
+ * or contended is dropped, so under heavy load recency is approximate,
+ * which barely matters for which entries a hot working set keeps.
+ */
+abstract class KVLinkedCache implements KVCache {
+
+    static final int BUFFER_SIZE = 16;
+
+    private final int capacity;
+    private final boolean accessOrder;
+    private final Map<String, Node> map;
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    /** Sentinel of the circular list, head.next is evicted first. */
+    private final Node head = new Node(null, null);
+    private final ReadBuffer[] buffers;
+    private int size;
+    private KVEvictionListener listener;
+
+    /**
+     * One entry, linked while prev is not null. Links are guarded by the
+     * eviction lock.
+     */
+    private static final class Node {
+
+        final String key;
+        volatile String value;
+        Node prev;
+        Node next;
+
+        Node(String key, String value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Lossy buffer of hits that are not applied to the list yet.
+     */
+    private static final class ReadBuffer {
+
+        final AtomicReferenceArray<Node> slots =
+                new AtomicReferenceArray<Node>(BUFFER_SIZE);
+        final AtomicInteger writes = new AtomicInteger();
+
+        /**
+         * @return true if the buffer is full and should be drained.
+         */
+        boolean offer(Node node) {
+            int i = writes.get();
+            if (i >= BUFFER_SIZE)
+                return true;
+            if (writes.compareAndSet(i, i + 1))
+                slots.lazySet(i, node);
+            return i == BUFFER_SIZE - 1;
+        }
+    }
+
+    /**
+     * @param accessOrder true to evict the least recently used entry,
+     *          false to evict the least recently inserted one
+     */
+    KVLinkedCache(int cap, boolean accessOrder) {
+        this.capacity = cap;
+        this.accessOrder = accessOrder;
+        this.map = new ConcurrentHashMap<String, Node>(Math.max(cap, 16));
+        head.prev = head;
+        head.next = head;
+        int stripes = Integer.highestOneBit(
+                4 * Runtime.getRuntime().availableProcessors() - 1) << 1;
+        buffers = new ReadBuffer[accessOrder ? stripes : 0];
+        for (int i = 0; i < buffers.length; i++)
+            buffers[i] = new ReadBuffer();
+    }
+
+    public void setEvictionListener(KVEvictionListener listener) {
+        evictionLock.lock();
+        try {
+            this.listener = listener;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    public void printCache() {
+        Map<String, String> entries = new LinkedHashMap<String, String>();
+        evictionLock.lock();
+        try {
+            drainBuffers();
+            for (Node node = head.next; node != head; node = node.next)
+                entries.put(node.key, node.value);
+        } finally {
+            evictionLock.unlock();
+        }
+        System.out.println(entries);
+    }
+
+    public String get(String key) {
+        Node node = map.get(key);
+        if (node == null)
+            return null;
+        if (accessOrder)
+            recordHit(node);
+        return node.value;
+    }
+
+    public void set(String key, String value) {
+        evictionLock.lock();
+        try {
+            drainBuffers();
+            Node node = map.get(key);
+            if (node != null) {
+                node.value = value;
+                if (accessOrder)
+                    moveToTail(node);
+                return;
+            }
+            node = new Node(key, value);
+            map.put(key, node);
+            linkLast(node);
+            size++;
+            while (size > capacity) {
+                Node eldest = head.next;
+                unlink(eldest);
+                map.remove(eldest.key);
+                size--;
+                if (listener != null)
+                    listener.onEvict(eldest.key, eldest.value);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    public void delete(String key) {
+        evictionLock.lock();
+        try {
+            Node node = map.remove(key);
+            if (node != null) {
+                unlink(node);
+                size--;
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void recordHit(Node node) {
+        int id = (int) Thread.currentThread().getId();
+        ReadBuffer buffer = buffers[id & (buffers.length - 1)];
+        if (buffer.offer(node) && evictionLock.tryLock()) {
+            try {
+                drainBuffers();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Applies the buffered hits. Called under the eviction lock.
+     */
+    private void drainBuffers() {
+        for (ReadBuffer buffer : buffers) {
+            int n = Math.min(buffer.writes.get(), BUFFER_SIZE);
+            for (int i = 0; i < n; i++) {
+                Node node = buffer.slots.getAndSet(i, null);
+                // Skip entries evicted or deleted since the hit.
+                if (node != null && node.prev != null)
+                    moveToTail(node);
+            }
+            buffer.writes.set(0);
+        }
+    }
+
+    private void linkLast(Node node) {
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+    }
+
+    private void unlink(Node node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+    }
+
+    private void moveToTail(Node node) {
+        unlink(node);
+        linkLast(node);
+    }
+}
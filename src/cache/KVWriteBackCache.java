@@ -0,0 +1,242 @@
+package cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Write-back wrapper around one of the replacement strategies. Values set
+ * on the cache are only marked dirty; a background thread writes them to
+ * storage in batches, so a key that is overwritten before the next flush
+ * costs a single write. Dirty values are served from the dirty set until
+ * they have been written, also when the wrapped cache evicted them. An
+ * evicted dirty entry is written synchronously by the thread that caused
+ * the eviction, and once the dirty data exceeds its bound writers flush
+ * as well until it is back under it.
+ * <p>
+ * All writes to storage go through one flush lock and always write the
+ * latest dirty value of a key, so an older batch can never overtake a
+ * newer one. The dirty set is only changed under the cache's monitor, but
+ * can be read without it, so cache hits do not contend on the monitor.
+ */
+public class KVWriteBackCache implements KVCache, Runnable {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private final KVCache cache;
+    private final KVCacheWriter writer;
+    private final long flushIntervalMillis;
+    private final long maxDirtyBytes;
+
+    private final Map<String, String> dirty = new ConcurrentHashMap<String, String>();
+    private final List<String> evicted = new ArrayList<String>();
+    private final Object flushLock = new Object();
+    private long dirtyBytes;
+    private boolean stopped;
+    private Thread flusher;
+    /** Told of evictions after they are handled here, if set. */
+    private volatile KVEvictionListener listener;
+
+    /**
+     * @param cache the cache deciding which entries stay in memory
+     * @param writer sink for flushed entries
+     * @param flushIntervalMillis pause between two background flushes
+     * @param maxDirtyBytes bound on the size of keys and values waiting to
+     *          be flushed
+     */
+    public KVWriteBackCache(KVCache cache, KVCacheWriter writer,
+            long flushIntervalMillis, long maxDirtyBytes) {
+        this.cache = cache;
+        this.writer = writer;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.maxDirtyBytes = maxDirtyBytes;
+        cache.setEvictionListener(new KVEvictionListener() {
+            public void onEvict(String key, String value) {
+                // Called under our monitor from within set().
+                if (dirty.containsKey(key))
+                    evicted.add(key);
+                KVEvictionListener listener = KVWriteBackCache.this.listener;
+                if (listener != null)
+                    listener.onEvict(key, value);
+            }
+        });
+        flusher = new Thread(this, "kv-cache-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public String get(String key) {
+        String value = dirty.get(key);
+        if (value != null)
+            return value;
+        return cache.get(key);
+    }
+
+    public void set(String key, String value) {
+        List<String> toFlush = null;
+        boolean overBound;
+        synchronized (this) {
+            String previous = dirty.remove(key);
+            if (previous != null)
+                dirtyBytes -= sizeOf(key, previous);
+            dirty.put(key, value);
+            dirtyBytes += sizeOf(key, value);
+            cache.set(key, value);
+            if (!evicted.isEmpty()) {
+                toFlush = new ArrayList<String>(evicted);
+                evicted.clear();
+            }
+            overBound = dirtyBytes > maxDirtyBytes;
+            if (dirtyBytes > maxDirtyBytes / 2)
+                notifyAll();
+        }
+        if (toFlush != null)
+            flush(toFlush);
+        if (overBound)
+            flush();
+    }
+
+    /**
+     * Drops key from the cache and from the dirty set. Waits for a flush
+     * in progress, so the caller can delete key from storage right after
+     * without a pending write bringing it back.
+     */
+    public void delete(String key) {
+        synchronized (flushLock) {
+            synchronized (this) {
+                String previous = dirty.remove(key);
+                if (previous != null)
+                    dirtyBytes -= sizeOf(key, previous);
+                cache.delete(key);
+            }
+        }
+    }
+
+    /**
+     * @return true if key has a value that is not written to storage yet
+     */
+    public boolean isDirty(String key) {
+        return dirty.containsKey(key);
+    }
+
+    /**
+     * Writes every dirty entry to storage.
+     * @return false if the entries could not be written
+     */
+    public boolean flush() {
+        List<String> keys;
+        synchronized (this) {
+            keys = new ArrayList<String>(dirty.keySet());
+        }
+        return flush(keys);
+    }
+
+    /**
+     * Forgets all dirty entries without writing them, e.g. because the
+     * storage they were headed for has been cleared.
+     */
+    public void discardDirty() {
+        synchronized (flushLock) {
+            synchronized (this) {
+                dirty.clear();
+                dirtyBytes = 0;
+            }
+        }
+    }
+
+    /**
+     * Flushes synchronously and stops the background flusher.
+     */
+    public void close() {
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /**
+     * Tells listener of the entries the wrapped cache evicts, under the
+     * monitor of this cache. A dirty entry is still written after it is
+     * evicted, and served until then.
+     */
+    public void setEvictionListener(KVEvictionListener listener) {
+        this.listener = listener;
+    }
+
+    public void printAlgorithm() {
+        cache.printAlgorithm();
+    }
+
+    public void printCache() {
+        cache.printCache();
+    }
+
+    public void run() {
+        boolean failed = false;
+        while (true) {
+            synchronized (this) {
+                if (!stopped && (failed || dirtyBytes <= maxDirtyBytes / 2)) {
+                    try {
+                        wait(flushIntervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (stopped)
+                    return;
+            }
+            failed = !flush();
+        }
+    }
+
+    /**
+     * Writes the current values of the given keys, if they are still dirty,
+     * as one batch.
+     */
+    private boolean flush(Collection<String> keys) {
+        synchronized (flushLock) {
+            Map<String, String> batch = new LinkedHashMap<String, String>();
+            synchronized (this) {
+                for (String key : keys) {
+                    String value = dirty.get(key);
+                    if (value != null)
+                        batch.put(key, value);
+                }
+            }
+            if (batch.isEmpty())
+                return true;
+            try {
+                writer.writeAll(batch);
+            } catch (Exception e) {
+                logger.error("Error! Unable to flush " + batch.size()
+                        + " dirty cache entries", e);
+                return false;
+            }
+            synchronized (this) {
+                for (Map.Entry<String, String> entry : batch.entrySet()) {
+                    // Only clean entries that were not set again meanwhile.
+                    if (dirty.get(entry.getKey()) == entry.getValue()) {
+                        dirty.remove(entry.getKey());
+                        dirtyBytes -= sizeOf(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    private static long sizeOf(String key, String value) {
+        return 2L * (key.length() + value.length());
+    }
+}
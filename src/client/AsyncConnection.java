@@ -0,0 +1,378 @@
+package client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+import common.messages.BinaryMessage;
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+import common.messages.TextMessage;
+
+/**
+ * A connection to a KVServer of its own whose requests do not wait for
+ * their responses. Callers get a future back right away, while one thread
+ * runs a selector for the connection: it writes the requests out tagged
+ * with ids, completes the future of each response it reads, whatever
+ * order they come in, and fails those whose deadline passes first.
+ * <p>
+ * Futures complete on that thread, so stages chained to them without an
+ * executor should not block.
+ */
+class AsyncConnection implements Runnable {
+
+	private static Logger logger = Logger.getRootLogger();
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+	/** Ends every JSON response, after a line feed. */
+	private static final byte RETURN = 0x0D;
+
+	/**
+	 * A request along with the future of its response.
+	 */
+	private static final class Request {
+
+		final StatusType operation;
+		final String key;
+		final String value;
+		final long timeoutMillis;
+		/** System.nanoTime() by which the response is due, if timed. */
+		final long deadline;
+		final CompletableFuture<KVMessage> future =
+				new CompletableFuture<KVMessage>();
+		int id;
+
+		Request(StatusType operation, String key, String value,
+				long timeoutMillis) {
+			this.operation = operation;
+			this.key = key;
+			this.value = value;
+			this.timeoutMillis = timeoutMillis;
+			this.deadline = System.nanoTime()
+					+ TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		}
+	}
+
+	/** Orders requests in flight, whose ids differ, by their deadlines. */
+	private static final Comparator<Request> BY_DEADLINE =
+			new Comparator<Request>() {
+		public int compare(Request a, Request b) {
+			int order = Long.compare(a.deadline - b.deadline, 0);
+			return order != 0 ? order : Integer.compare(a.id, b.id);
+		}
+	};
+
+	private final SocketChannel channel;
+	private final Selector selector;
+	private final boolean binary;
+	private final int maxLength;
+	/** Requests handed over by callers, not sent yet. */
+	private final Queue<Request> submitted = new ConcurrentLinkedQueue<Request>();
+	/** Written by the loop thread only, as is all that follows. */
+	private final Map<Integer, Request> inFlight = new HashMap<Integer, Request>();
+	/** Timed requests in flight. */
+	private final TreeSet<Request> deadlines = new TreeSet<Request>(BY_DEADLINE);
+	private final Queue<ByteBuffer> output = new ArrayDeque<ByteBuffer>();
+	private ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+	/** Bytes of input already searched for the end of a response. */
+	private int scanned;
+	private int nextId;
+	private volatile boolean closed;
+
+	/**
+	 * Connects to the server, and starts the thread of the connection.
+	 * @param binary whether to talk to the server in the binary protocol
+	 * 			rather than JSON.
+	 * @param maxLength longest response accepted.
+	 */
+	AsyncConnection(String address, int port, boolean binary, int maxLength)
+			throws IOException {
+		this.binary = binary;
+		this.maxLength = maxLength;
+		channel = SocketChannel.open(new InetSocketAddress(address, port));
+		try {
+			if (binary) {
+				negotiate();
+			}
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		Thread thread = new Thread(this, "kv-async-client");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void negotiate() throws IOException {
+		channel.write(ByteBuffer.wrap(new byte[] { BinaryMessage.HANDSHAKE }));
+		ByteBuffer reply = ByteBuffer.allocate(1);
+		while (reply.hasRemaining()) {
+			if (channel.read(reply) < 0) {
+				break;
+			}
+		}
+		if (reply.hasRemaining() || reply.get(0) != BinaryMessage.HANDSHAKE) {
+			throw new IOException("Server does not speak the binary protocol");
+		}
+	}
+
+	/**
+	 * Queues a request to be sent by the thread of the connection.
+	 * @param timeoutMillis time after which the future fails with a
+	 * 			TimeoutException if no response came, or 0 for no limit.
+	 * @return the future response, which fails with an IOException if the
+	 * 		connection is lost or closed first.
+	 */
+	CompletableFuture<KVMessage> submit(StatusType operation, String key,
+			String value, long timeoutMillis) {
+		Request request = new Request(operation, key, value, timeoutMillis);
+		submitted.add(request);
+		if (closed) {
+			// The loop may have finished before it saw the request.
+			failSubmitted(new IOException("Connection closed"));
+		} else {
+			selector.wakeup();
+		}
+		return request.future;
+	}
+
+	/**
+	 * Closes the connection, failing the requests without response.
+	 */
+	void close() {
+		closed = true;
+		selector.wakeup();
+	}
+
+	/**
+	 * @return true once the connection is closed or lost.
+	 */
+	boolean isClosed() {
+		return closed;
+	}
+
+	public void run() {
+		IOException failure = null;
+		try {
+			while (!closed) {
+				select();
+				sendSubmitted();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isReadable()) {
+						read();
+					}
+				}
+				flush();
+				expire();
+			}
+		} catch (IOException e) {
+			logger.error("Error! Connection lost!", e);
+			failure = e;
+		}
+		closed = true;
+		try {
+			selector.close();
+			channel.close();
+		} catch (IOException e) {
+			logger.error("Error! Unable to close connection!", e);
+		}
+		if (failure == null) {
+			failure = new IOException("Connection closed");
+		}
+		for (Request request : inFlight.values()) {
+			request.future.completeExceptionally(failure);
+		}
+		inFlight.clear();
+		deadlines.clear();
+		failSubmitted(failure);
+	}
+
+	/**
+	 * Waits for the connection until the next deadline at most.
+	 */
+	private void select() throws IOException {
+		if (deadlines.isEmpty()) {
+			selector.select();
+			return;
+		}
+		long nanos = deadlines.first().deadline - System.nanoTime();
+		if (nanos > 0) {
+			// Rounded up, not to spin through the last millisecond.
+			long millis = TimeUnit.NANOSECONDS.toMillis(nanos + 999999);
+			selector.select(millis);
+		} else {
+			selector.selectNow();
+		}
+	}
+
+	private void sendSubmitted() {
+		Request request;
+		while ((request = submitted.poll()) != null) {
+			request.id = nextId();
+			inFlight.put(request.id, request);
+			if (request.timeoutMillis > 0) {
+				deadlines.add(request);
+			}
+			output.add(ByteBuffer.wrap(encode(request)));
+		}
+	}
+
+	private int nextId() {
+		do {
+			nextId = nextId == Integer.MAX_VALUE ? 0 : nextId + 1;
+		} while (inFlight.containsKey(nextId));
+		return nextId;
+	}
+
+	private byte[] encode(Request request) {
+		if (binary) {
+			return new BinaryMessage(request.operation, request.key,
+					request.operation == StatusType.PUT
+							|| request.operation == StatusType.GET_TRACKED
+							? request.value : null,
+					request.id).getMsgBytes();
+		}
+		// GETs are answered with their value inside the JSON, which is
+		// parsed as a whole.
+		TextMessage message = new TextMessage(request.operation.name(),
+				request.key, request.operation == StatusType.GET ? ""
+						: request.value);
+		message.setId(request.id);
+		return message.getMsgBytes();
+	}
+
+	/**
+	 * Writes as much of the output as the socket takes.
+	 */
+	private void flush() throws IOException {
+		while (!output.isEmpty()) {
+			ByteBuffer buf = output.peek();
+			channel.write(buf);
+			if (buf.hasRemaining()) {
+				break;
+			}
+			output.poll();
+		}
+		channel.keyFor(selector).interestOps(output.isEmpty()
+				? SelectionKey.OP_READ
+				: SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	private void read() throws IOException {
+		if (!input.hasRemaining()) {
+			if (input.capacity() >= maxLength) {
+				throw new IOException("Response exceeds " + maxLength
+						+ " bytes");
+			}
+			ByteBuffer larger = ByteBuffer.allocate(Math.min(
+					2 * input.capacity(), maxLength));
+			input.flip();
+			larger.put(input);
+			input = larger;
+		}
+		if (channel.read(input) < 0) {
+			throw new IOException("Connection closed by the server");
+		}
+		KVMessage response;
+		while ((response = nextResponse()) != null) {
+			complete(response);
+		}
+	}
+
+	/**
+	 * @return the next response in the input, or null if it is not all
+	 * 		there yet.
+	 * @throws IOException if the input does not hold a binary message.
+	 */
+	private KVMessage nextResponse() throws IOException {
+		if (binary) {
+			input.flip();
+			BinaryMessage response = BinaryMessage.decode(input,
+					maxLength - BinaryMessage.MAX_HEADER_SIZE);
+			input.compact();
+			return response;
+		}
+		for (; scanned < input.position(); scanned++) {
+			if (input.get(scanned) == RETURN) {
+				byte[] msgBytes = new byte[scanned];
+				input.flip();
+				input.get(msgBytes);
+				// Skip the carriage return.
+				input.get();
+				input.compact();
+				scanned = 0;
+				return new TextMessage(msgBytes);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @throws IOException if the response carries no id, so that the
+	 * 			request it answers is unknown.
+	 */
+	private void complete(KVMessage response) throws IOException {
+		logger.info("Receive message:\t '" + (response instanceof TextMessage
+				? ((TextMessage) response).getMsg() : response) + "'");
+		int id = KVStore.idOf(response);
+		if (id < 0) {
+			throw new IOException("Response without id");
+		}
+		Request request = inFlight.remove(id);
+		if (request == null) {
+			// Its deadline passed.
+			return;
+		}
+		if (request.timeoutMillis > 0) {
+			deadlines.remove(request);
+		}
+		if (request.operation != StatusType.GET
+				&& request.operation != StatusType.GET_TRACKED) {
+			KVStore.echoValue(response, request.value);
+		}
+		request.future.complete(response);
+	}
+
+	/**
+	 * Fails the requests whose deadline passed.
+	 */
+	private void expire() {
+		long now = System.nanoTime();
+		while (!deadlines.isEmpty() && deadlines.first().deadline - now <= 0) {
+			Request request = deadlines.pollFirst();
+			inFlight.remove(request.id);
+			request.future.completeExceptionally(new TimeoutException(
+					"No response to " + request.operation + " " + request.key
+							+ " within " + request.timeoutMillis + " ms"));
+		}
+	}
+
+	private void failSubmitted(IOException failure) {
+		Request request;
+		while ((request = submitted.poll()) != null) {
+			request.future.completeExceptionally(failure);
+		}
+	}
+}
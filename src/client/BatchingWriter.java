@@ -0,0 +1,228 @@
+package client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+
+/**
+ * Puts of a KVStore that are collected and sent together as batches, so
+ * that a loop of puts takes a round trip per batch rather than per put. A
+ * batch is sent once it holds so many keys, by the thread that filled it,
+ * or once its first put waited long enough, by a thread of the writer. A
+ * put of a key already waiting replaces its value, and both puts get the
+ * response to the one sent.
+ * <p>
+ * One batch is sent at a time, so writes of a key reach the server in the
+ * order they were made. Threads filling a batch while one is sent wait,
+ * which keeps the writes queued bounded.
+ */
+public class BatchingWriter {
+
+	private static Logger logger = Logger.getRootLogger();
+
+	/** A write waiting to be sent, with the future of its response. */
+	private static final class Pending {
+
+		String value;
+		final CompletableFuture<KVMessage> future =
+				new CompletableFuture<KVMessage>();
+
+		Pending(String value) {
+			this.value = value;
+		}
+	}
+
+	private final KVStore store;
+	private final int maxEntries;
+	private final long maxDelayNanos;
+	/** Held while a batch is taken and sent, before this. */
+	private final Object sending = new Object();
+	/** Guarded by this, as are the fields below. */
+	private LinkedHashMap<String, Pending> pending =
+			new LinkedHashMap<String, Pending>();
+	/** System.nanoTime() when the first write pending was made. */
+	private long firstPendingSince;
+	private boolean closed;
+	private long writes;
+	private long mergedWrites;
+	private long batches;
+
+	/**
+	 * @param maxEntries keys in a batch that is sent right away.
+	 * @param maxDelayMicros longest wait of a write for more to send it
+	 * 			with.
+	 */
+	BatchingWriter(KVStore store, int maxEntries, long maxDelayMicros) {
+		if (maxEntries < 1)
+			throw new IllegalArgumentException("Batches of " + maxEntries
+					+ " keys");
+		this.store = store;
+		this.maxEntries = maxEntries;
+		this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(
+				Math.max(maxDelayMicros, 0));
+		Thread flusher = new Thread() {
+			public void run() {
+				flushWhenDue();
+			}
+		};
+		flusher.setName("kv-batching-writer");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Queues a put, or a delete if value is empty, as with
+	 * {@link KVStore#put}.
+	 * @return the response to the write of key sent to the server, which
+	 * 		fails if its batch could not be sent.
+	 */
+	public CompletableFuture<KVMessage> put(String key, String value) {
+		Pending write;
+		boolean full;
+		synchronized (this) {
+			if (closed) {
+				CompletableFuture<KVMessage> failed =
+						new CompletableFuture<KVMessage>();
+				failed.completeExceptionally(new IOException("Writer closed"));
+				return failed;
+			}
+			writes++;
+			write = pending.get(key);
+			if (write != null) {
+				write.value = value;
+				mergedWrites++;
+			} else {
+				write = new Pending(value);
+				if (pending.isEmpty()) {
+					firstPendingSince = System.nanoTime();
+					notifyAll();
+				}
+				pending.put(key, write);
+			}
+			full = pending.size() >= maxEntries;
+		}
+		if (full)
+			flush();
+		return write.future;
+	}
+
+	/**
+	 * Sends the writes queued and waits for their responses.
+	 */
+	public void flush() {
+		synchronized (sending) {
+			LinkedHashMap<String, Pending> batch;
+			synchronized (this) {
+				if (pending.isEmpty())
+					return;
+				batch = pending;
+				pending = new LinkedHashMap<String, Pending>();
+				batches++;
+			}
+			send(batch);
+		}
+	}
+
+	/**
+	 * Sends the writes queued; later writes fail.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		flush();
+	}
+
+	/**
+	 * Sends each batch once its first write waited long enough, until the
+	 * writer is closed.
+	 */
+	private void flushWhenDue() {
+		while (true) {
+			synchronized (this) {
+				try {
+					while (!closed) {
+						if (pending.isEmpty()) {
+							wait();
+							continue;
+						}
+						long due = firstPendingSince + maxDelayNanos
+								- System.nanoTime();
+						if (due <= 0)
+							break;
+						TimeUnit.NANOSECONDS.timedWait(this, due);
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (closed)
+					return;
+			}
+			flush();
+		}
+	}
+
+	/**
+	 * Sends puts and deletes in a batch each, and completes the futures of
+	 * their writes.
+	 */
+	private void send(LinkedHashMap<String, Pending> batch) {
+		Map<String, String> puts = new LinkedHashMap<String, String>();
+		List<String> deletes = new ArrayList<String>();
+		for (Map.Entry<String, Pending> write : batch.entrySet()) {
+			String value = write.getValue().value;
+			if (KVStore.operationOf(value) == StatusType.PUT)
+				puts.put(write.getKey(), value);
+			else
+				deletes.add(write.getKey());
+		}
+		try {
+			complete(batch, puts.keySet(), store.putAll(puts));
+			complete(batch, deletes, store.deleteAll(deletes));
+		} catch (Exception e) {
+			logger.error("Error! Batch of " + batch.size()
+					+ " writes not sent", e);
+			for (Pending write : batch.values())
+				write.future.completeExceptionally(e);
+		}
+	}
+
+	private static void complete(Map<String, Pending> batch,
+			Iterable<String> keys, List<KVMessage> responses) {
+		int i = 0;
+		for (String key : keys)
+			batch.get(key).future.complete(responses.get(i++));
+	}
+
+	/**
+	 * @return number of writes made
+	 */
+	public synchronized long getWrites() {
+		return writes;
+	}
+
+	/**
+	 * @return number of writes replaced by a later write of their key
+	 * 		before they were sent
+	 */
+	public synchronized long getMergedWrites() {
+		return mergedWrites;
+	}
+
+	/**
+	 * @return number of batches sent
+	 */
+	public synchronized long getBatches() {
+		return batches;
+	}
+}
@@ -0,0 +1,219 @@
+package client;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Connections to one KVServer that threads lease for an operation and give
+ * back afterwards, so they share a few warm connections instead of each
+ * opening its own.
+ * <p>
+ * The pool opens connections as threads need them, up to a maximum beyond
+ * which threads wait for one to be given back. Connections idle for long
+ * are closed, whether or not the pool is in use, and those idle for a
+ * while are checked before they are leased again, so a connection the
+ * server closed is replaced rather than handed out.
+ */
+class ConnectionPool {
+
+	private static Logger logger = Logger.getRootLogger();
+
+	/** Idle time after which a connection is closed. */
+	private static final long IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(60);
+	/** Idle time after which a connection is checked before its lease. */
+	private static final long VALIDATE_AFTER_NANOS = TimeUnit.SECONDS.toNanos(2);
+	/** Longest wait for a connection to be given back. */
+	private static final long LEASE_TIMEOUT_MILLIS = 30000;
+	/** Time between two sweeps of the idle connections of a pool. */
+	private static final long EVICTION_INTERVAL_MILLIS = 15000;
+	/** Sweeps the idle connections of all pools. */
+	private static final Timer EVICTOR = new Timer("kv-pool-evictor", true);
+
+	private final String address;
+	private final int port;
+	private final boolean binaryProtocol;
+	private final int maxConnections;
+	private final int maxLength;
+	/** Most recently given back first. */
+	private final Deque<ServerConnection> idle = new ArrayDeque<ServerConnection>();
+	/** Connections open or being opened, leased or idle. */
+	private int open;
+	private int leased;
+	private boolean closed;
+	private long leases;
+	private long leaseWaitNanos;
+	private final TimerTask eviction = new TimerTask() {
+		public void run() {
+			evictIdle();
+		}
+	};
+
+	ConnectionPool(String address, int port, boolean binaryProtocol,
+			int maxConnections, int maxLength) {
+		this.address = address;
+		this.port = port;
+		this.binaryProtocol = binaryProtocol;
+		this.maxConnections = maxConnections;
+		this.maxLength = maxLength;
+		EVICTOR.schedule(eviction, EVICTION_INTERVAL_MILLIS,
+				EVICTION_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * @return a connection of the calling thread's own until it is given
+	 * 		back with {@link #release} or {@link #discard}.
+	 * @throws IOException if the pool is closed, no connection could be
+	 * 			opened, or none was given back in time.
+	 */
+	ServerConnection lease() throws IOException {
+		long start = System.nanoTime();
+		ServerConnection connection;
+		synchronized (this) {
+			long deadline = start
+					+ TimeUnit.MILLISECONDS.toNanos(LEASE_TIMEOUT_MILLIS);
+			while (true) {
+				if (closed)
+					throw new IOException("Not connected");
+				connection = idle.pollFirst();
+				if (connection != null || open < maxConnections)
+					break;
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0)
+					throw new IOException("No connection free within "
+							+ LEASE_TIMEOUT_MILLIS + " ms");
+				try {
+					wait(TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted waiting for a connection");
+				}
+			}
+			if (connection == null)
+				open++;
+			leased++;
+			leases++;
+			leaseWaitNanos += System.nanoTime() - start;
+		}
+		if (connection != null) {
+			if (System.nanoTime() - connection.getIdleSince() < VALIDATE_AFTER_NANOS
+					|| connection.isHealthy())
+				return connection;
+			logger.info("Replacing a connection closed by the server");
+			connection.close();
+		}
+		try {
+			return new ServerConnection(address, port, binaryProtocol,
+					maxLength);
+		} catch (IOException | RuntimeException e) {
+			synchronized (this) {
+				open--;
+				leased--;
+				notifyAll();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Gives back a connection in a state fit for the next request.
+	 */
+	void release(ServerConnection connection) {
+		boolean closing;
+		synchronized (this) {
+			leased--;
+			closing = closed;
+			if (closing) {
+				open--;
+			} else {
+				connection.setIdleSince(System.nanoTime());
+				idle.addFirst(connection);
+			}
+			notifyAll();
+		}
+		if (closing)
+			connection.close();
+		else
+			evictIdle();
+	}
+
+	/**
+	 * Closes the connections idle for longer than the idle timeout.
+	 */
+	private void evictIdle() {
+		long now = System.nanoTime();
+		List<ServerConnection> evicted = null;
+		synchronized (this) {
+			// The least recently given back are last.
+			while (!idle.isEmpty()
+					&& now - idle.peekLast().getIdleSince() > IDLE_TIMEOUT_NANOS) {
+				if (evicted == null)
+					evicted = new ArrayList<ServerConnection>();
+				evicted.add(idle.pollLast());
+				open--;
+			}
+			if (evicted == null)
+				return;
+			notifyAll();
+		}
+		for (ServerConnection connection : evicted)
+			connection.close();
+	}
+
+	/**
+	 * Closes a connection that failed, or was left in the middle of a
+	 * response.
+	 */
+	void discard(ServerConnection connection) {
+		connection.close();
+		synchronized (this) {
+			leased--;
+			open--;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Closes the idle connections, and those leased once given back.
+	 */
+	void close() {
+		eviction.cancel();
+		ServerConnection[] closing;
+		synchronized (this) {
+			closed = true;
+			closing = idle.toArray(new ServerConnection[idle.size()]);
+			open -= closing.length;
+			idle.clear();
+			notifyAll();
+		}
+		for (ServerConnection connection : closing)
+			connection.close();
+	}
+
+	synchronized int getOpenCount() {
+		return open;
+	}
+
+	synchronized int getLeasedCount() {
+		return leased;
+	}
+
+	int getMaxCount() {
+		return maxConnections;
+	}
+
+	synchronized long getLeaseCount() {
+		return leases;
+	}
+
+	synchronized long getLeaseWaitNanos() {
+		return leaseWaitNanos;
+	}
+}
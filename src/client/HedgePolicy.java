@@ -0,0 +1,93 @@
+package client;
+
+import java.util.Arrays;
+
+/**
+ * Decides when a read that is slow to return is worth sending again on
+ * another connection. The delay is a percentile of the latencies of
+ * recent reads, so only the slowest few are hedged, and hedges are paid
+ * for from a budget that each read tops up by a fraction, so they add at
+ * most that fraction to the load however slow the server gets.
+ */
+class HedgePolicy {
+
+	/** Latencies the percentile is taken over, the most recent ones. */
+	private static final int SAMPLES = 512;
+	/** Reads between two updates of the delay. */
+	private static final int UPDATE_INTERVAL = 64;
+	/** Hedges that may be sent in a burst. */
+	private static final double MAX_BUDGET = 10;
+
+	private final double percentile;
+	private final double budgetPerRead;
+	/** Guarded by this, as are the budget and counts. */
+	private final long[] latencies = new long[SAMPLES];
+	private long reads;
+	private double budget;
+	private long hedges;
+	private long hedgesWon;
+	/** Long.MAX_VALUE until there are enough latencies. */
+	private volatile long delayNanos = Long.MAX_VALUE;
+
+	/**
+	 * @param percentile share of reads, e.g. 0.95, that are not hedged as
+	 * 			long as they are as fast as recent ones.
+	 * @param budgetPercent most hedges per 100 reads, on average.
+	 */
+	HedgePolicy(double percentile, double budgetPercent) {
+		if (percentile <= 0 || percentile >= 1)
+			throw new IllegalArgumentException("Percentile " + percentile
+					+ " not between 0 and 1");
+		this.percentile = percentile;
+		this.budgetPerRead = budgetPercent / 100;
+	}
+
+	/**
+	 * @return time after which a read in flight is hedged.
+	 */
+	long getDelayNanos() {
+		return delayNanos;
+	}
+
+	/**
+	 * @return true if a hedge may be sent, which is then paid for.
+	 */
+	synchronized boolean tryHedge() {
+		if (budget < 1)
+			return false;
+		budget--;
+		hedges++;
+		return true;
+	}
+
+	/**
+	 * Records a finished read.
+	 * @param latencyNanos time to its first response.
+	 * @param hedgeWon whether that was the response to its hedge.
+	 */
+	synchronized void record(long latencyNanos, boolean hedgeWon) {
+		latencies[(int) (reads % SAMPLES)] = latencyNanos;
+		reads++;
+		budget = Math.min(budget + budgetPerRead, MAX_BUDGET);
+		if (hedgeWon)
+			hedgesWon++;
+		if (reads >= UPDATE_INTERVAL && reads % UPDATE_INTERVAL == 0) {
+			int count = (int) Math.min(reads, SAMPLES);
+			long[] sorted = Arrays.copyOf(latencies, count);
+			Arrays.sort(sorted);
+			delayNanos = sorted[(int) (percentile * (count - 1))];
+		}
+	}
+
+	synchronized long getReads() {
+		return reads;
+	}
+
+	synchronized long getHedges() {
+		return hedges;
+	}
+
+	synchronized long getHedgesWon() {
+		return hedgesWon;
+	}
+}
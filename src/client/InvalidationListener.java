@@ -0,0 +1,101 @@
+package client;
+
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+
+/**
+ * Keeps a subscription to the invalidations of a KVServer on a connection
+ * of its own, and drops the keys it is told of from a near cache. While
+ * there is no subscription, e.g. after the connection was lost, the cache
+ * is empty and nothing is cached, as no write would be pushed; the
+ * listener subscribes again after a pause.
+ */
+class InvalidationListener implements Runnable {
+
+	private static Logger logger = Logger.getRootLogger();
+
+	/** Pause before subscribing again once the connection is lost. */
+	private static final long RETRY_MILLIS = 1000;
+
+	private final String address;
+	private final int port;
+	private final boolean binaryProtocol;
+	private final int maxLength;
+	private final NearCache nearCache;
+	private final Thread thread;
+	/** Id of the subscription, or 0 while there is none. */
+	private volatile long subscriptionId;
+	private volatile ServerConnection connection;
+	private volatile boolean closed;
+
+	InvalidationListener(String address, int port, boolean binaryProtocol,
+			int maxLength, NearCache nearCache) {
+		this.address = address;
+		this.port = port;
+		this.binaryProtocol = binaryProtocol;
+		this.maxLength = maxLength;
+		this.nearCache = nearCache;
+		this.thread = new Thread(this, "kv-near-cache");
+		thread.setDaemon(true);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * @return the id GET_TRACKED requests name, or 0 if reads are not to
+	 * 		be cached now. To be called after {@link NearCache#getGeneration}.
+	 */
+	long getSubscriptionId() {
+		return subscriptionId;
+	}
+
+	void close() {
+		closed = true;
+		ServerConnection connection = this.connection;
+		if (connection != null)
+			connection.close();
+		thread.interrupt();
+	}
+
+	public void run() {
+		while (!closed) {
+			try {
+				connection = new ServerConnection(address, port,
+						binaryProtocol, maxLength);
+				if (closed)
+					break;
+				connection.sendRequest(StatusType.SUBSCRIBE, null, null, -1);
+				connection.flush();
+				KVMessage response = connection.receiveResponse();
+				if (response.getStatus() != StatusType.SUBSCRIBE_SUCCESS)
+					throw new IOException("Subscription refused");
+				subscriptionId = Long.parseLong(response.getKey());
+				while (true) {
+					KVMessage message = connection.receiveResponse();
+					if (message.getStatus() == StatusType.INVALIDATE)
+						nearCache.invalidate(message.getKey());
+				}
+			} catch (IOException | NumberFormatException e) {
+				if (!closed)
+					logger.error("Error! Invalidations lost, near cache "
+							+ "emptied", e);
+			}
+			// Reads still on their way tracked the old subscription.
+			subscriptionId = 0;
+			nearCache.invalidate(null);
+			if (connection != null)
+				connection.close();
+			try {
+				Thread.sleep(RETRY_MILLIS);
+			} catch (InterruptedException e) {
+				// Closed.
+			}
+		}
+	}
+}
@@ -1,5 +1,9 @@
 package client;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
 import common.messages.KVMessage;
 
 public interface KVCommInterface {
@@ -42,4 +46,70 @@ public interface KVCommInterface {
 	 *             KV server).
 	 */
 	public KVMessage get(String key) throws Exception;
+
+	/**
+	 * Retrieves the values of many keys in as few requests as possible.
+	 *
+	 * @param keys
+	 *            the keys that identify the values.
+	 * @return a message for each key, in order, with its value or an error.
+	 * @throws Exception
+	 *             if the keys cannot be looked up (e.g. not connected to any
+	 *             KV server).
+	 */
+	public List<KVMessage> getAll(List<String> keys) throws Exception;
+
+	/**
+	 * Inserts many key-value pairs in as few requests as possible.
+	 *
+	 * @param pairs
+	 *            the values indexed by their keys. Unlike with put, an
+	 *            empty value does not delete its key but is refused.
+	 * @return a message for each pair, in the order of the map, that
+	 *         confirms its insertion or an error.
+	 * @throws Exception
+	 *             if the pairs cannot be inserted (e.g. not connected to any
+	 *             KV server).
+	 */
+	public List<KVMessage> putAll(Map<String, String> pairs) throws Exception;
+
+	/**
+	 * Deletes many keys in as few requests as possible.
+	 *
+	 * @param keys
+	 *            the keys to delete.
+	 * @return a message for each key, in order, that confirms its deletion
+	 *         or an error.
+	 * @throws Exception
+	 *             if the keys cannot be deleted (e.g. not connected to any
+	 *             KV server).
+	 */
+	public List<KVMessage> deleteAll(List<String> keys) throws Exception;
+
+	/**
+	 * Inserts a key-value pair without waiting for the KVServer, or deletes
+	 * the key if the value is empty, as {@link #put} does.
+	 *
+	 * @param timeoutMillis
+	 *            time after which the future fails with a TimeoutException
+	 *            if the KVServer did not answer, or 0 for no limit.
+	 * @return the future message that confirms the insertion of the tuple
+	 *         or an error. It fails with an IOException if the connection
+	 *         is lost or closed first.
+	 */
+	public CompletableFuture<KVMessage> putAsync(String key, String value,
+			long timeoutMillis);
+
+	/**
+	 * Retrieves the value for a given key without waiting for the KVServer.
+	 *
+	 * @param timeoutMillis
+	 *            time after which the future fails with a TimeoutException
+	 *            if the KVServer did not answer, or 0 for no limit.
+	 * @return the future value, which is indexed by the given key. It fails
+	 *         with an IOException if the connection is lost or closed
+	 *         first.
+	 */
+	public CompletableFuture<KVMessage> getAsync(String key,
+			long timeoutMillis);
 }
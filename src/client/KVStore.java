@@ -1,16 +1,31 @@
 package client;
 
-import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 import org.apache.log4j.Logger;
 
+import common.messages.BinaryMessage;
+import common.messages.KVEntry;
 import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
 import common.messages.TextMessage;
 
+/**
+ * A client of one KVServer that any number of threads can share. Each
+ * operation leases a connection from a pool for as long as it takes, so
+ * threads reuse warm connections rather than each opening its own.
+ */
 public class KVStore implements KVCommInterface {
 	/**
 	 * Initialize KVStore with address and port of KVServer
@@ -18,130 +33,622 @@ public class KVStore implements KVCommInterface {
 	 * @param port the port of the KVServer
 	 */
 	
-	private Socket socket;
-	private OutputStream output;
- 	private InputStream input;
 	private String address;
 	private int port;
+	private final boolean binaryProtocol;
+	private final int maxConnections;
+	/** Connections of the blocking requests, set while connected. */
+	private volatile ConnectionPool pool;
+	/** Values read lately, if enabled. */
+	private volatile NearCache nearCache;
+	private volatile InvalidationListener invalidationListener;
+	/**
+	 * Connections of the asynchronous requests, each opened on its first:
+	 * one for requests, one for the hedges of hedged reads.
+	 */
+	private final AsyncConnection[] async = new AsyncConnection[2];
+	/** Set if reads are hedged. */
+	private volatile HedgePolicy hedging;
     private Logger logger = Logger.getRootLogger();
 
-	private static final int BUFFER_SIZE = 1024;
-	private static final int DROP_SIZE = 1024 * BUFFER_SIZE;
+	/** Longest response accepted, that to a batch of large values. */
+	private static final int DROP_SIZE = 64 * 1024 * 1024;
+	/** Most keys sent in one batch request. */
+	private static final int MAX_BATCH_SIZE = 250;
+	/** Rough bound on the size of a batch request, below the server's. */
+	private static final int MAX_BATCH_BYTES = 64 * 1024;
 	
 	public KVStore(String input_address, int input_port) {
+		this(input_address, input_port, false);
+    }
+
+	/**
+	 * @param binaryProtocol whether to talk to the server in the binary
+	 * 			protocol of {@link BinaryMessage} rather than JSON.
+	 */
+	public KVStore(String input_address, int input_port,
+			boolean binaryProtocol) {
+		this(input_address, input_port, binaryProtocol, 1);
+	}
+
+	/**
+	 * @param maxConnections most connections open to the server at once,
+	 * 			beyond which threads wait for one to be free.
+	 */
+	public KVStore(String input_address, int input_port,
+			boolean binaryProtocol, int maxConnections) {
+		if (maxConnections < 1)
+			throw new IllegalArgumentException("No connections allowed");
 		address = input_address;
 		port = input_port;
-    }
+		this.binaryProtocol = binaryProtocol;
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * Keeps the values of up to size keys read with {@link #get}, which
+	 * reads them again without asking the server until they are written.
+	 * The server pushes writes of those keys on a connection of their own.
+	 * Takes effect on connect.
+	 * @param strategy "FIFO", "LRU" or "LFU", as for the server's cache.
+	 * @param ttlMillis time after which a value is read from the server
+	 * 			again in any case, or 0 for no limit.
+	 */
+	public void enableNearCache(int size, String strategy, long ttlMillis) {
+		nearCache = new NearCache(size, strategy, ttlMillis);
+	}
 
+	/**
+	 * Opens the first connection of a new pool, replacing any previous one,
+	 * and subscribes to invalidations if there is a near cache.
+	 */
 	@Override
 	public void connect() throws UnknownHostException, IOException {
-    	socket = new Socket(address, port);
-		output = socket.getOutputStream();
-		input = socket.getInputStream();
-        logger.info("Connection established");
+		ConnectionPool connecting = new ConnectionPool(address, port,
+				binaryProtocol, maxConnections, DROP_SIZE);
+		try {
+			connecting.release(connecting.lease());
+		} catch (IOException | RuntimeException e) {
+			// Cancels the pool's eviction task.
+			connecting.close();
+			throw e;
+		}
+		ConnectionPool previous = pool;
+		pool = connecting;
+		if (previous != null)
+			previous.close();
+		NearCache nearCache = this.nearCache;
+		if (nearCache != null) {
+			synchronized (this) {
+				if (invalidationListener != null)
+					invalidationListener.close();
+				invalidationListener = new InvalidationListener(address, port,
+						binaryProtocol, DROP_SIZE, nearCache);
+				invalidationListener.start();
+			}
+		}
 	}
 
 	@Override
 	public void disconnect() {
 		logger.info("tearing down the connection ...");
-		try {
-			if (socket != null) {
-				//input.close();
-				//output.close();
-				socket.close();
-				socket = null;
-				logger.info("connection closed!");
+		synchronized (this) {
+			for (int i = 0; i < async.length; i++) {
+				if (async[i] != null) {
+					async[i].close();
+					async[i] = null;
+				}
+			}
+			if (invalidationListener != null) {
+				invalidationListener.close();
+				invalidationListener = null;
+				nearCache.invalidate(null);
 			}
-		} catch(IOException ioe) {
-			logger.error("Unable to close connection!");
 		}
+		ConnectionPool closing = pool;
+		pool = null;
+		if (closing != null)
+			closing.close();
 	}
 
 	@Override
 	public KVMessage put(String key, String value) throws Exception {
-		// Create Request
-		TextMessage req = null;
-		if (value != "" && value != null) {
-			req = new TextMessage("PUT", key, value);
-		} else {
-			req = new TextMessage("DELETE", key, value);
-		}
-		byte[] req_byte = req.getMsgBytes();
-		output.write(req_byte, 0, req_byte.length);
-		output.flush();
-		// Wait to read response from server. TODO: add a timeout
-		TextMessage res = receiveMessage();
-		return res; //Need to use KVMessage not TextMessage
+		return put(key, value, 0);
+	}
+
+	/**
+	 * As {@link #put(String, String)}, giving up on the server after
+	 * timeoutMillis, or never if it is 0.
+	 * @throws SocketTimeoutException if the server did not answer in time.
+	 */
+	public KVMessage put(String key, String value, long timeoutMillis)
+			throws Exception {
+		KVMessage res = call(operationOf(value), key, value,
+				deadline(timeoutMillis));
+		echoValue(res, value);
+		NearCache nearCache = this.nearCache;
+		if (nearCache != null)
+			// Read our own write without waiting for its push.
+			nearCache.invalidate(key);
+		return res;
 	}
 
 	@Override
 	public KVMessage get(String key) throws Exception {
-		// Create Request
-		TextMessage req = new TextMessage("GET", key, "");
-		byte[] req_byte = req.getMsgBytes();
-		output.write(req_byte, 0, req_byte.length);
-		output.flush();
-		// Wait to read response from server. TODO: add a timeout
-		TextMessage res = receiveMessage();
+		return get(key, 0);
+	}
+
+	/**
+	 * As {@link #get(String)}, giving up on the server after timeoutMillis,
+	 * or never if it is 0.
+	 * @throws SocketTimeoutException if the server did not answer in time.
+	 */
+	public KVMessage get(String key, long timeoutMillis) throws Exception {
+		long deadline = deadline(timeoutMillis);
+		NearCache nearCache = this.nearCache;
+		InvalidationListener listener = invalidationListener;
+		if (nearCache == null || listener == null)
+			return read(StatusType.GET, key, null, deadline);
+		String value = nearCache.get(key);
+		if (value != null)
+			return new KVEntry(StatusType.GET_SUCCESS, key, value);
+		long generation = nearCache.getGeneration();
+		long subscriptionId = listener.getSubscriptionId();
+		if (subscriptionId == 0)
+			return read(StatusType.GET, key, null, deadline);
+		KVMessage res = read(StatusType.GET_TRACKED, key,
+				String.valueOf(subscriptionId), deadline);
+		if (res.getStatus() == StatusType.GET_SUCCESS)
+			nearCache.put(key, res.getValue(), generation);
 		return res;
 	}
 
-	private TextMessage receiveMessage() throws IOException {
-		int index = 0;
-		byte[] msgBytes = null, tmp = null;
-		byte[] bufferBytes = new byte[BUFFER_SIZE];
-		
-		/* read first char from stream */
-		byte read = (byte) input.read();	
-		boolean reading = true;
-		
-		while(read != 13 && reading) {/* carriage return */
-			/* if buffer filled, copy to msg array */
-			if(index == BUFFER_SIZE) {
-				if(msgBytes == null){
-					tmp = new byte[BUFFER_SIZE];
-					System.arraycopy(bufferBytes, 0, tmp, 0, BUFFER_SIZE);
-				} else {
-					tmp = new byte[msgBytes.length + BUFFER_SIZE];
-					System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-					System.arraycopy(bufferBytes, 0, tmp, msgBytes.length,
-							BUFFER_SIZE);
+	/**
+	 * Sends a duplicate of a get on another connection when it is slower
+	 * than most recent gets, and takes whichever response comes first.
+	 * Hedges are budgeted, adding no more than budgetPercent to the gets
+	 * sent, and are only worth it if the server has threads to spare.
+	 * @param percentile share of gets, e.g. 0.95, that are not hedged as
+	 * 			long as they are as fast as recent ones.
+	 * @param budgetPercent most hedges per 100 gets, on average.
+	 */
+	public void enableHedgedReads(double percentile, double budgetPercent) {
+		hedging = new HedgePolicy(percentile, budgetPercent);
+	}
+
+	/**
+	 * @return System.nanoTime() after timeoutMillis, or 0 for no limit.
+	 */
+	private static long deadline(long timeoutMillis) {
+		if (timeoutMillis <= 0)
+			return 0;
+		long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		return deadline == 0 ? 1 : deadline;
+	}
+
+	/**
+	 * @return milliseconds left until deadline, at least 1, or 0 for no
+	 * 		limit.
+	 * @throws SocketTimeoutException if deadline passed.
+	 */
+	private static long remainingMillis(long deadline, StatusType operation,
+			String key) throws SocketTimeoutException {
+		if (deadline == 0)
+			return 0;
+		long remaining = deadline - System.nanoTime();
+		if (remaining <= 0)
+			throw new SocketTimeoutException("No response to " + operation
+					+ " " + key + " in time");
+		return Math.max(TimeUnit.NANOSECONDS.toMillis(remaining), 1);
+	}
+
+	/**
+	 * Carries out a get, hedged if enabled.
+	 */
+	private KVMessage read(StatusType operation, String key, String value,
+			long deadline) throws Exception {
+		HedgePolicy hedging = this.hedging;
+		if (hedging == null)
+			return call(operation, key, value, deadline);
+		long start = System.nanoTime();
+		CompletableFuture<KVMessage> primary = submit(0, operation, key,
+				value, remainingMillis(deadline, operation, key));
+		CompletableFuture<KVMessage> hedge = null;
+		KVMessage res;
+		try {
+			try {
+				long wait = hedging.getDelayNanos();
+				if (deadline != 0)
+					wait = Math.min(wait, deadline - start);
+				res = primary.get(wait, TimeUnit.NANOSECONDS);
+			} catch (TimeoutException e) {
+				CompletableFuture<KVMessage> first = primary;
+				if ((deadline == 0 || deadline - System.nanoTime() > 0)
+						&& hedging.tryHedge()) {
+					logger.info("Hedging " + operation + " " + key);
+					hedge = submit(1, operation, key, value,
+							remainingMillis(deadline, operation, key));
+					first = firstOf(primary, hedge);
 				}
+				long remaining = remainingMillis(deadline, operation, key);
+				res = remaining == 0 ? first.get()
+						: first.get(remaining, TimeUnit.MILLISECONDS);
+			}
+		} catch (TimeoutException | SocketTimeoutException e) {
+			throw timedOut(hedging, start, deadline, operation, key);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof TimeoutException)
+				throw timedOut(hedging, start, deadline, operation, key);
+			if (e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
+			throw e;
+		}
+		hedging.record(System.nanoTime() - start,
+				hedge != null && hedge.getNow(null) == res);
+		return res;
+	}
+
+	/**
+	 * Records a get that missed its deadline as taking until then, less
+	 * than it would have, rather than leaving out the slowest gets.
+	 * @return the exception to throw for it.
+	 */
+	private static SocketTimeoutException timedOut(HedgePolicy hedging,
+			long start, long deadline, StatusType operation, String key) {
+		hedging.record(deadline - start, false);
+		return new SocketTimeoutException("No response to " + operation
+				+ " " + key + " in time");
+	}
 
-				msgBytes = tmp;
-				bufferBytes = new byte[BUFFER_SIZE];
-				index = 0;
-			} 
-			
-			/* only read valid characters, i.e. letters and numbers */
-			if((read > 31 && read < 127)) {
-				bufferBytes[index] = read;
-				index++;
+	/**
+	 * @return the first of a and b to succeed, or the last to fail.
+	 */
+	private static CompletableFuture<KVMessage> firstOf(
+			CompletableFuture<KVMessage> a, CompletableFuture<KVMessage> b) {
+		final CompletableFuture<KVMessage> first =
+				new CompletableFuture<KVMessage>();
+		final AtomicInteger failures = new AtomicInteger();
+		BiConsumer<KVMessage, Throwable> done =
+				new BiConsumer<KVMessage, Throwable>() {
+			public void accept(KVMessage res, Throwable failure) {
+				if (failure == null)
+					first.complete(res);
+				else if (failures.incrementAndGet() == 2)
+					first.completeExceptionally(failure);
 			}
-			
-			/* stop reading is DROP_SIZE is reached */
-			if(msgBytes != null && msgBytes.length + index >= DROP_SIZE) {
-				reading = false;
+		};
+		a.whenComplete(done);
+		b.whenComplete(done);
+		return first;
+	}
+
+	/**
+	 * Sends a request on a leased connection and waits for its response.
+	 * A request failing on a connection that waited in the pool is sent
+	 * again on another, since the server may have dropped the idle
+	 * connections, e.g. when it restarted; puts and deletes set the same
+	 * state either way. Each failure closes one of the pooled connections,
+	 * so the retries come to an end.
+	 * @param deadline System.nanoTime() by which the response is due, or
+	 * 			0 for no limit.
+	 * @throws SocketTimeoutException if it is not, in which case the
+	 * 			connection is closed, as the response may still come.
+	 */
+	private KVMessage call(StatusType operation, String key, String value,
+			long deadline) throws IOException {
+		for (int attempt = 0; ; attempt++) {
+			ConnectionPool pool = pool();
+			ServerConnection connection = pool.lease();
+			KVMessage res;
+			try {
+				connection.sendRequest(operation, key, value, -1);
+				connection.flush();
+				connection.setDeadline(deadline);
+				res = connection.receiveResponse();
+				connection.setDeadline(0);
+			} catch (IOException e) {
+				pool.discard(connection);
+				if (attempt < maxConnections && connection.wasPooled()
+						&& !(e instanceof SocketTimeoutException)) {
+					logger.info("Retrying " + operation + " on a new connection");
+					continue;
+				}
+				throw e;
 			}
-			
-			/* read next char from stream */
-			read = (byte) input.read();
+			pool.release(connection);
+			return res;
 		}
-		
-		if(msgBytes == null){
-			tmp = new byte[index];
-			System.arraycopy(bufferBytes, 0, tmp, 0, index);
-		} else {
-			tmp = new byte[msgBytes.length + index];
-			System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-			System.arraycopy(bufferBytes, 0, tmp, msgBytes.length, index);
+	}
+
+	/**
+	 * @throws IOException if not connected.
+	 */
+	ConnectionPool pool() throws IOException {
+		ConnectionPool pool = this.pool;
+		if (pool == null)
+			throw new IOException("Not connected");
+		return pool;
+	}
+
+	@Override
+	public List<KVMessage> getAll(List<String> keys) throws Exception {
+		List<KVEntry> entries = new ArrayList<KVEntry>(keys.size());
+		for (String key : keys)
+			entries.add(new KVEntry(null, key, null));
+		return batch(StatusType.MGET, entries);
+	}
+
+	@Override
+	public List<KVMessage> putAll(Map<String, String> pairs) throws Exception {
+		List<KVEntry> entries = new ArrayList<KVEntry>(pairs.size());
+		for (Map.Entry<String, String> pair : pairs.entrySet())
+			entries.add(new KVEntry(null, pair.getKey(), pair.getValue()));
+		List<KVMessage> results = batch(StatusType.MPUT, entries);
+		invalidate(entries);
+		return results;
+	}
+
+	@Override
+	public List<KVMessage> deleteAll(List<String> keys) throws Exception {
+		List<KVEntry> entries = new ArrayList<KVEntry>(keys.size());
+		for (String key : keys)
+			entries.add(new KVEntry(null, key, null));
+		List<KVMessage> results = batch(StatusType.MDELETE, entries);
+		invalidate(entries);
+		return results;
+	}
+
+	/**
+	 * Drops the keys of entries written from the near cache, if any.
+	 */
+	private void invalidate(List<KVEntry> entries) {
+		NearCache nearCache = this.nearCache;
+		if (nearCache != null) {
+			for (KVEntry entry : entries)
+				nearCache.invalidate(entry.getKey());
 		}
-		
-		msgBytes = tmp;
-		
-		/* build final String */
-		TextMessage msg = new TextMessage(msgBytes);
-		logger.info("Receive message:\t '" + msg.getMsg() + "'");
-		return msg;
-    }
+	}
+
+	@Override
+	public CompletableFuture<KVMessage> putAsync(final String key,
+			String value, long timeoutMillis) {
+		CompletableFuture<KVMessage> sent = submit(0, operationOf(value), key,
+				value, timeoutMillis);
+		final NearCache nearCache = this.nearCache;
+		if (nearCache == null)
+			return sent;
+		// Read our own write without waiting for its push, as with put.
+		return sent.whenComplete(new BiConsumer<KVMessage, Throwable>() {
+			public void accept(KVMessage res, Throwable failure) {
+				nearCache.invalidate(key);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<KVMessage> getAsync(String key,
+			long timeoutMillis) {
+		return submit(0, StatusType.GET, key, null, timeoutMillis);
+	}
+
+	/**
+	 * Sends a request on a connection of its own, which many requests
+	 * share without waiting for each other.
+	 * @param index 0 for requests, 1 for hedges.
+	 */
+	private CompletableFuture<KVMessage> submit(int index,
+			StatusType operation, String key, String value, long timeoutMillis) {
+		AsyncConnection connection;
+		synchronized (this) {
+			if (async[index] == null || async[index].isClosed()) {
+				try {
+					async[index] = new AsyncConnection(address, port,
+							binaryProtocol, DROP_SIZE);
+				} catch (IOException e) {
+					logger.error("Error! Unable to connect to the server!", e);
+					CompletableFuture<KVMessage> failed =
+							new CompletableFuture<KVMessage>();
+					failed.completeExceptionally(e);
+					return failed;
+				}
+			}
+			connection = async[index];
+		}
+		return connection.submit(operation, key, value, timeoutMillis);
+	}
+
+	/**
+	 * Sends entries in batches small enough for the server, one after the
+	 * other.
+	 * @throws IOException if the connection fails or the server refuses a
+	 * 			batch.
+	 */
+	private List<KVMessage> batch(StatusType operation, List<KVEntry> entries)
+			throws IOException {
+		List<KVMessage> results = new ArrayList<KVMessage>(entries.size());
+		if (entries.isEmpty())
+			return results;
+		ConnectionPool pool = pool();
+		ServerConnection connection = pool.lease();
+		try {
+			for (int start = 0, end; start < entries.size(); start = end) {
+				int bytes = 0;
+				for (end = start; end < entries.size()
+						&& end - start < MAX_BATCH_SIZE; end++) {
+					bytes += size(entries.get(end));
+					if (end > start && bytes > MAX_BATCH_BYTES)
+						break;
+				}
+				List<KVEntry> sent = entries.subList(start, end);
+				connection.sendBatch(operation, sent);
+				connection.flush();
+				List<KVEntry> received = connection.receiveResponse().getEntries();
+				if (received == null || received.size() != sent.size())
+					throw new IOException("Batch of " + sent.size()
+							+ " keys refused by the server");
+				for (int i = 0; i < sent.size(); i++)
+					results.add(echoValue(received.get(i), sent.get(i).getValue()));
+			}
+		} catch (IOException e) {
+			pool.discard(connection);
+			throw e;
+		}
+		pool.release(connection);
+		return results;
+	}
+
+	private static int size(KVEntry entry) {
+		return 32 + entry.getKey().length()
+				+ (entry.getValue() == null ? 0 : entry.getValue().length());
+	}
+
+	/**
+	 * @return a pipeline sending its requests together on one leased
+	 * 		connection.
+	 */
+	public Pipeline pipelined() {
+		return new Pipeline(this);
+	}
+
+	/**
+	 * @param maxEntries keys in a batch that is sent right away.
+	 * @param maxDelayMicros longest wait of a write for more to send it
+	 * 			with.
+	 * @return a writer sending puts in batches, merging those of a key;
+	 * 		to be closed when done.
+	 */
+	public BatchingWriter batchingWriter(int maxEntries, long maxDelayMicros) {
+		return new BatchingWriter(this, maxEntries, maxDelayMicros);
+	}
+
+	/**
+	 * @return number of connections open to the server, leased or idle
+	 */
+	public int getOpenConnections() {
+		ConnectionPool pool = this.pool;
+		return pool == null ? 0 : pool.getOpenCount();
+	}
+
+	/**
+	 * @return number of connections leased by threads right now, out of
+	 * 		{@link #getMaxConnections()}
+	 */
+	public int getLeasedConnections() {
+		ConnectionPool pool = this.pool;
+		return pool == null ? 0 : pool.getLeasedCount();
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * @return number of times a thread leased a connection since connect
+	 */
+	public long getConnectionLeases() {
+		ConnectionPool pool = this.pool;
+		return pool == null ? 0 : pool.getLeaseCount();
+	}
+
+	/**
+	 * @return total time threads waited for a connection to be free since
+	 * 		connect, in milliseconds
+	 */
+	public long getConnectionWaitMillis() {
+		ConnectionPool pool = this.pool;
+		return pool == null ? 0
+				: TimeUnit.NANOSECONDS.toMillis(pool.getLeaseWaitNanos());
+	}
+
+	/**
+	 * @return number of gets the near cache answered
+	 */
+	public long getNearCacheHits() {
+		NearCache nearCache = this.nearCache;
+		return nearCache == null ? 0 : nearCache.getHits();
+	}
+
+	/**
+	 * @return number of gets the near cache passed on to the server
+	 */
+	public long getNearCacheMisses() {
+		NearCache nearCache = this.nearCache;
+		return nearCache == null ? 0 : nearCache.getMisses();
+	}
+
+	/**
+	 * @return share of gets the near cache answered
+	 */
+	public double getNearCacheHitRate() {
+		long hits = getNearCacheHits();
+		long total = hits + getNearCacheMisses();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	/**
+	 * @return number of gets sent again on another connection
+	 */
+	public long getHedgedReads() {
+		HedgePolicy hedging = this.hedging;
+		return hedging == null ? 0 : hedging.getHedges();
+	}
+
+	/**
+	 * @return number of hedged gets answered first on the other connection
+	 */
+	public long getHedgesWon() {
+		HedgePolicy hedging = this.hedging;
+		return hedging == null ? 0 : hedging.getHedgesWon();
+	}
+
+	/**
+	 * @return current delay after which a get is hedged, in microseconds,
+	 * 		or Long.MAX_VALUE before there are enough gets to tell
+	 */
+	public long getHedgeDelayMicros() {
+		HedgePolicy hedging = this.hedging;
+		if (hedging == null)
+			return Long.MAX_VALUE;
+		long delay = hedging.getDelayNanos();
+		return delay == Long.MAX_VALUE ? delay
+				: TimeUnit.NANOSECONDS.toMicros(delay);
+	}
+
+	/**
+	 * @return the operation a put of value stands for.
+	 */
+	static StatusType operationOf(String value) {
+		return value != "" && value != null ? StatusType.PUT
+				: StatusType.DELETE;
+	}
+
+	/**
+	 * Sets the value of the response to a put to value, which the binary
+	 * protocol does not echo.
+	 */
+	static void echoValue(KVMessage response, String value) {
+		if (response instanceof BinaryMessage)
+			((BinaryMessage) response).setValue(value);
+	}
+
+	/**
+	 * @return entry, with value if it is the result of a put whose value
+	 * 		the binary protocol did not echo.
+	 */
+	private static KVEntry echoValue(KVEntry entry, String value) {
+		if (entry.getValue() != null || value == null
+				|| entry.getStatus() == StatusType.GET_SUCCESS)
+			return entry;
+		return new KVEntry(entry.getStatus(), entry.getKey(), value);
+	}
+
+	/**
+	 * @return the tag of response, or -1.
+	 */
+	static int idOf(KVMessage response) {
+		return response instanceof BinaryMessage
+				? ((BinaryMessage) response).getId()
+				: ((TextMessage) response).getId();
+	}
 }
@@ -0,0 +1,130 @@
+package client;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cache.KVCache;
+import cache.KVEvictionListener;
+import cache.KVFIFOCache;
+import cache.KVLFUCache;
+import cache.KVLRUCache;
+
+/**
+ * Values a client read lately, so that reading them again takes no round
+ * trip. The server pushes writes of those keys to the client, which drops
+ * them here, and each value is dropped after a time to live in any case,
+ * bounding how stale it gets should a push be lost with its connection.
+ * <p>
+ * Hits take no lock, as far as the cache strategy allows. Changes do, and
+ * each drop starts a new generation, so that a value read before a drop
+ * is not cached after it.
+ */
+class NearCache {
+
+	private final int size;
+	private final String strategy;
+	private final long ttlNanos;
+	private volatile KVCache cache;
+	/** System.nanoTime() when each value was cached. */
+	private final ConcurrentHashMap<String, Long> cachedAt =
+			new ConcurrentHashMap<String, Long>();
+	/** Guarded by this, as are all changes. */
+	private long generation;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param strategy "FIFO", "LRU" or "LFU", as for the server's cache.
+	 * @param ttlMillis time after which a value is dropped, or 0 to keep
+	 * 			values until they are written.
+	 */
+	NearCache(int size, String strategy, long ttlMillis) {
+		this.size = size;
+		this.strategy = strategy;
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(ttlMillis, 0));
+		this.cache = createCache();
+	}
+
+	private KVCache createCache() {
+		KVCache cache;
+		switch (strategy) {
+			case "LRU":
+				cache = new KVLRUCache(size);
+				break;
+			case "FIFO":
+				cache = new KVFIFOCache(size);
+				break;
+			case "LFU":
+				cache = new KVLFUCache(size);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown cache strategy "
+						+ strategy);
+		}
+		cache.setEvictionListener(new KVEvictionListener() {
+			public void onEvict(String key, String value) {
+				cachedAt.remove(key);
+			}
+		});
+		return cache;
+	}
+
+	/**
+	 * @return the cached value of key, or null if the server has to be
+	 * 		asked.
+	 */
+	String get(String key) {
+		String value = cache.get(key);
+		if (value != null) {
+			Long since = cachedAt.get(key);
+			if (since != null && (ttlNanos == 0
+					|| System.nanoTime() - since < ttlNanos)) {
+				hits.incrementAndGet();
+				return value;
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * @return the generation to hand to {@link #put}, taken before the
+	 * 		value is read from the server.
+	 */
+	synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Caches value of key unless a drop came after generation.
+	 */
+	synchronized void put(String key, String value, long generation) {
+		if (generation != this.generation)
+			return;
+		cachedAt.put(key, System.nanoTime());
+		cache.set(key, value);
+	}
+
+	/**
+	 * Drops key, or all keys if it is null.
+	 */
+	synchronized void invalidate(String key) {
+		generation++;
+		if (key == null) {
+			cache = createCache();
+			cachedAt.clear();
+		} else {
+			cache.delete(key);
+			cachedAt.remove(key);
+		}
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+}
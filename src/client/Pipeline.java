@@ -0,0 +1,126 @@
+package client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+
+/**
+ * Requests that are sent together on a connection of a KVStore, without
+ * waiting for one response before sending the next request. Each request
+ * carries an id that its response repeats, so the responses are matched
+ * with their requests whatever order they come in.
+ * <p>
+ * Only so many requests and bytes are on their way at a time. The server
+ * stops reading while its responses are not read, so a burst larger than
+ * the socket buffers would otherwise leave both ends writing.
+ */
+public class Pipeline {
+
+	private static final int MAX_IN_FLIGHT = 128;
+	private static final int MAX_IN_FLIGHT_BYTES = 64 * 1024;
+
+	private final KVStore store;
+	private final List<StatusType> operations = new ArrayList<StatusType>();
+	private final List<String> keys = new ArrayList<String>();
+	private final List<String> values = new ArrayList<String>();
+
+	Pipeline(KVStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * Queues a put, or a delete if value is empty, as with
+	 * {@link KVStore#put}.
+	 */
+	public Pipeline put(String key, String value) {
+		operations.add(KVStore.operationOf(value));
+		keys.add(key);
+		values.add(value);
+		return this;
+	}
+
+	public Pipeline get(String key) {
+		operations.add(StatusType.GET);
+		keys.add(key);
+		values.add(null);
+		return this;
+	}
+
+	/**
+	 * Sends the queued requests and waits for all their responses. The
+	 * pipeline is empty afterwards.
+	 * @return the responses in the order of the requests.
+	 * @throws IOException if the connection fails or the server answers a
+	 * 			request it was not sent.
+	 */
+	public List<KVMessage> sync() throws IOException {
+		int count = operations.size();
+		KVMessage[] responses = new KVMessage[count];
+		int[] sizes = new int[count];
+		int received = 0;
+		int inFlightBytes = 0;
+		if (count == 0)
+			return new ArrayList<KVMessage>();
+		ConnectionPool pool = store.pool();
+		ServerConnection connection = pool.lease();
+		try {
+			for (int id = 0; id < count; id++) {
+				sizes[id] = size(id);
+				while (id - received >= MAX_IN_FLIGHT || (id > received
+						&& inFlightBytes + sizes[id] > MAX_IN_FLIGHT_BYTES)) {
+					connection.flush();
+					int done = receive(connection, responses);
+					inFlightBytes -= sizes[done];
+					received++;
+				}
+				connection.sendRequest(operations.get(id), keys.get(id),
+						values.get(id), id);
+				inFlightBytes += sizes[id];
+			}
+			connection.flush();
+			for (; received < count; received++) {
+				receive(connection, responses);
+			}
+		} catch (IOException e) {
+			// Responses may be left on the connection.
+			pool.discard(connection);
+			throw e;
+		} finally {
+			operations.clear();
+			keys.clear();
+			values.clear();
+		}
+		pool.release(connection);
+		return Arrays.asList(responses);
+	}
+
+	/**
+	 * @return the id of the response read.
+	 */
+	private int receive(ServerConnection connection, KVMessage[] responses)
+			throws IOException {
+		KVMessage response = connection.receiveResponse();
+		int id = KVStore.idOf(response);
+		if (id < 0 || id >= responses.length || responses[id] != null) {
+			throw new IOException("Unexpected response id " + id);
+		}
+		if (operations.get(id) != StatusType.GET) {
+			KVStore.echoValue(response, values.get(id));
+		}
+		responses[id] = response;
+		return id;
+	}
+
+	/**
+	 * @return roughly the number of bytes request id takes on the wire.
+	 */
+	private int size(int id) {
+		String value = values.get(id);
+		return 64 + keys.get(id).length()
+				+ (value == null ? 0 : value.length());
+	}
+}
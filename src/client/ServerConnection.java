@@ -0,0 +1,251 @@
+package client;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import common.messages.BinaryMessage;
+import common.messages.KVEntry;
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+import common.messages.MessageReader;
+import common.messages.TextMessage;
+
+/**
+ * One connection to a KVServer, used by one thread at a time as its lease
+ * from a {@link ConnectionPool}.
+ */
+class ServerConnection {
+
+	private static Logger logger = Logger.getRootLogger();
+
+	/** Ends every response, after a line feed. */
+	private static final byte RETURN = 0x0D;
+	private static final Charset VALUE_CHARSET = Charset.forName("UTF-8");
+
+	private final Socket socket;
+	private final OutputStream output;
+	private final MessageReader reader;
+	private final boolean binaryProtocol;
+	private final int maxLength;
+	/** System.nanoTime() when the connection was last given back. */
+	private long idleSince;
+	/** System.nanoTime() by which responses are due, 0 for no limit. */
+	private long deadline;
+	/** Timeout of the socket, 0 for none. */
+	private int soTimeout;
+	/** Whether the connection waited in the pool, going stale maybe. */
+	private boolean pooled;
+
+	/**
+	 * Connects to the server, and agrees on the protocol.
+	 * @param maxLength longest response accepted.
+	 */
+	ServerConnection(String address, int port, boolean binaryProtocol,
+			int maxLength) throws IOException {
+		this.binaryProtocol = binaryProtocol;
+		this.maxLength = maxLength;
+		socket = new Socket(address, port);
+		try {
+			output = new BufferedOutputStream(socket.getOutputStream());
+			reader = new MessageReader(new DeadlineInputStream(
+					socket.getInputStream()), RETURN, maxLength);
+			if (binaryProtocol) {
+				output.write(BinaryMessage.HANDSHAKE);
+				output.flush();
+				if (reader.readFully(1)[0] != BinaryMessage.HANDSHAKE) {
+					throw new IOException(
+							"Server does not speak the binary protocol");
+				}
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		logger.info("Connection established");
+	}
+
+	/**
+	 * Writes a request to the output, which is sent once flushed.
+	 * @param id tag of a pipelined request, or -1.
+	 */
+	void sendRequest(StatusType operation, String key, String value, int id)
+			throws IOException {
+		byte[] req_byte;
+		if (binaryProtocol) {
+			req_byte = new BinaryMessage(operation, key,
+					operation == StatusType.PUT
+							|| operation == StatusType.GET_TRACKED ? value : null,
+					id).getMsgBytes();
+		} else {
+			TextMessage req;
+			if (operation == StatusType.GET) {
+				// Let the server stream the value raw instead of escaping
+				// it into JSON.
+				req = new TextMessage("GET", key, "", true);
+			} else if (operation == StatusType.GET_TRACKED) {
+				req = new TextMessage(operation.name(), key, value, true);
+			} else {
+				req = new TextMessage(operation.name(), key, value);
+			}
+			if (id >= 0)
+				req.setId(id);
+			req_byte = req.getMsgBytes();
+		}
+		output.write(req_byte, 0, req_byte.length);
+	}
+
+	/**
+	 * Writes a batch request to the output, which is sent once flushed.
+	 */
+	void sendBatch(StatusType operation, List<KVEntry> entries)
+			throws IOException {
+		byte[] req_byte;
+		if (binaryProtocol) {
+			req_byte = new BinaryMessage(operation, entries, -1).getMsgBytes();
+		} else {
+			req_byte = new TextMessage(operation.name(), entries).getMsgBytes();
+		}
+		output.write(req_byte, 0, req_byte.length);
+	}
+
+	void flush() throws IOException {
+		output.flush();
+	}
+
+	/**
+	 * Bounds the time left to read responses, over all reads of each.
+	 * @param deadline System.nanoTime() after which reads fail with a
+	 * 			SocketTimeoutException, or 0 for no limit.
+	 */
+	void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Reads the next response, along with its value if that is sent raw.
+	 */
+	KVMessage receiveResponse() throws IOException {
+		if (binaryProtocol) {
+			BinaryMessage res = BinaryMessage.read(reader, maxLength);
+			logger.info("Receive message:\t '" + res + "'");
+			return res;
+		}
+		TextMessage res = receiveMessage();
+		int valueLength = res.getValueLength();
+		if (valueLength >= 0)
+			res.setValue(receiveValue(valueLength));
+		return res;
+	}
+
+	private TextMessage receiveMessage() throws IOException {
+		byte[] msgBytes = reader.readMessage();
+		if (msgBytes.length == 0)
+			throw new EOFException("Connection closed by the server");
+
+		/* build final String */
+		TextMessage msg = new TextMessage(msgBytes);
+		logger.info("Receive message:\t '" + msg.getMsg() + "'");
+		return msg;
+	}
+
+	/**
+	 * Reads the length raw value bytes following a response.
+	 */
+	private String receiveValue(int length) throws IOException {
+		return new String(reader.readFully(length), VALUE_CHARSET);
+	}
+
+	boolean wasPooled() {
+		return pooled;
+	}
+
+	void setIdleSince(long nanoTime) {
+		idleSince = nanoTime;
+		pooled = true;
+	}
+
+	long getIdleSince() {
+		return idleSince;
+	}
+
+	/**
+	 * Checks without blocking that the server did not close the connection
+	 * while it was idle.
+	 * @return false if the server closed it, or sent bytes no request asked
+	 * 		for.
+	 */
+	boolean isHealthy() {
+		if (socket.isClosed() || reader.hasBuffered())
+			return false;
+		try {
+			deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(1);
+			reader.peek();
+			return false;
+		} catch (SocketTimeoutException e) {
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			deadline = 0;
+		}
+	}
+
+	/**
+	 * The input of the socket, whose reads time out at the deadline of the
+	 * connection.
+	 */
+	private class DeadlineInputStream extends FilterInputStream {
+
+		DeadlineInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			applyDeadline();
+			return super.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			applyDeadline();
+			return super.read(b, off, len);
+		}
+
+		private void applyDeadline() throws IOException {
+			int timeout = 0;
+			if (deadline != 0) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0)
+					throw new SocketTimeoutException("Deadline passed");
+				timeout = (int) Math.min(Math.max(
+						TimeUnit.NANOSECONDS.toMillis(remaining), 1),
+						Integer.MAX_VALUE);
+			}
+			if (timeout != soTimeout) {
+				socket.setSoTimeout(timeout);
+				soTimeout = timeout;
+			}
+		}
+	}
+
+	void close() {
+		try {
+			socket.close();
+			logger.info("connection closed!");
+		} catch (IOException ioe) {
+			logger.error("Unable to close connection!");
+		}
+	}
+}
@@ -0,0 +1,326 @@
+package common.messages;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A message of the binary protocol, which a connection can use instead of
+ * JSON text by sending {@link #HANDSHAKE} as its very first byte; the
+ * server echoes the byte to accept. Each message is a fixed header
+ * <pre>
+ *   opcode (1) | key length (4) | value length (4)
+ * </pre>
+ * followed by the key and the value as UTF-8. The opcode is the ordinal of
+ * the {@link KVMessage.StatusType}, and a length of -1 stands for no key or
+ * no value. A pipelined request sets the {@link #TAGGED} bit of its opcode
+ * and has its 4 byte id follow the header, which its response repeats.
+ * <p>
+ * A batch has no key, and its value holds the number of entries (4)
+ * followed by each entry as
+ * <pre>
+ *   status (1) | key length (4) | key | value length (4) | value
+ * </pre>
+ * where a status of 0xFF stands for none, as in requests. Values are
+ * never escaped, so the value of a GET response follows its header the
+ * same way raw framing sends it, and responses to PUT and DELETE do not
+ * echo the value back.
+ */
+public class BinaryMessage implements KVMessage {
+
+	/** Can not start a JSON message. */
+	public static final byte HANDSHAKE = (byte) 0xB1;
+	public static final int HEADER_SIZE = 9;
+	/** Bit of the opcode of a message followed by an id. */
+	public static final int TAGGED = 0x80;
+	private static final int ID_SIZE = 4;
+	/** Size of the header of a tagged message, id included. */
+	public static final int MAX_HEADER_SIZE = HEADER_SIZE + ID_SIZE;
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	private static final StatusType[] STATUS_TYPES = StatusType.values();
+
+	private final StatusType status;
+	private final String key;
+	private String value;
+	private final int id;
+	private List<KVEntry> entries;
+
+	public BinaryMessage(StatusType status, String key, String value) {
+		this(status, key, value, -1);
+	}
+
+	/**
+	 * @param id tag of a pipelined message, or -1.
+	 */
+	public BinaryMessage(StatusType status, String key, String value, int id) {
+		this.status = status;
+		this.key = key;
+		this.value = value;
+		this.id = id;
+	}
+
+	/**
+	 * Constructs a batch.
+	 * @param id tag of a pipelined message, or -1.
+	 */
+	public BinaryMessage(StatusType status, List<KVEntry> entries, int id) {
+		this(status, null, null, id);
+		this.entries = entries;
+	}
+
+	@Override
+	public StatusType getStatus() {
+		return status;
+	}
+
+	@Override
+	public String getKey() {
+		return key;
+	}
+
+	@Override
+	public String getValue() {
+		return value;
+	}
+
+	@Override
+	public List<KVEntry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return the tag of a pipelined message, or -1.
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * @return the message as it goes on the wire.
+	 */
+	public byte[] getMsgBytes() {
+		byte[] valueBytes = entries != null ? encodeEntries(entries)
+				: value == null ? null : value.getBytes(CHARSET);
+		byte[] keyBytes = key == null ? null : key.getBytes(CHARSET);
+		ByteBuffer buf = ByteBuffer.allocate(headerSize(id) + length(keyBytes)
+				+ length(valueBytes));
+		putHeader(buf, status, keyBytes,
+				valueBytes == null ? -1 : valueBytes.length, id);
+		if (valueBytes != null) {
+			buf.put(valueBytes);
+		}
+		return buf.array();
+	}
+
+	/**
+	 * @return header and key of a message whose valueLength value bytes
+	 * 		are sent on their own.
+	 */
+	public static byte[] header(StatusType status, String key, int valueLength,
+			int id) {
+		byte[] keyBytes = key == null ? null : key.getBytes(CHARSET);
+		ByteBuffer buf = ByteBuffer.allocate(headerSize(id) + length(keyBytes));
+		putHeader(buf, status, keyBytes, valueLength, id);
+		return buf.array();
+	}
+
+	/**
+	 * Reads the next message.
+	 * @param maxLength longest key plus value accepted.
+	 * @throws IOException if the stream ends or does not hold a message.
+	 */
+	public static BinaryMessage read(MessageReader reader, int maxLength)
+			throws IOException {
+		ByteBuffer header = ByteBuffer.wrap(reader.readFully(HEADER_SIZE));
+		byte opcode = header.get();
+		StatusType status = status(opcode);
+		int keyLength = header.getInt();
+		int valueLength = header.getInt();
+		checkLengths(keyLength, valueLength, maxLength);
+		int id = (opcode & TAGGED) == 0 ? -1
+				: ByteBuffer.wrap(reader.readFully(ID_SIZE)).getInt();
+		String key = keyLength < 0 ? null
+				: new String(reader.readFully(keyLength), CHARSET);
+		byte[] valueBytes = valueLength < 0 ? null
+				: reader.readFully(valueLength);
+		if (KVEntry.isBatch(status)) {
+			return new BinaryMessage(status, decodeEntries(valueBytes), id);
+		}
+		return new BinaryMessage(status, key, valueBytes == null ? null
+				: new String(valueBytes, CHARSET), id);
+	}
+
+	/**
+	 * Takes the next message from buf if it is complete.
+	 * @param maxLength longest key plus value accepted.
+	 * @return the message, or null if buf does not hold all of it yet, in
+	 * 		which case buf is left as it was.
+	 * @throws IOException if buf does not hold a message.
+	 */
+	public static BinaryMessage decode(ByteBuffer buf, int maxLength)
+			throws IOException {
+		if (buf.remaining() < HEADER_SIZE) {
+			return null;
+		}
+		int start = buf.position();
+		byte opcode = buf.get(start);
+		StatusType status = status(opcode);
+		int keyLength = buf.getInt(start + 1);
+		int valueLength = buf.getInt(start + 5);
+		checkLengths(keyLength, valueLength, maxLength);
+		int headerSize = (opcode & TAGGED) == 0 ? HEADER_SIZE
+				: HEADER_SIZE + ID_SIZE;
+		if (buf.remaining() < headerSize + Math.max(keyLength, 0)
+				+ Math.max(valueLength, 0)) {
+			return null;
+		}
+		int id = headerSize == HEADER_SIZE ? -1
+				: buf.getInt(start + HEADER_SIZE);
+		buf.position(start + headerSize);
+		String key = decodeString(buf, keyLength);
+		if (KVEntry.isBatch(status)) {
+			byte[] valueBytes = null;
+			if (valueLength >= 0) {
+				valueBytes = new byte[valueLength];
+				buf.get(valueBytes);
+			}
+			return new BinaryMessage(status, decodeEntries(valueBytes), id);
+		}
+		return new BinaryMessage(status, key, decodeString(buf, valueLength),
+				id);
+	}
+
+	/**
+	 * Sets the value of a response whose value was received on its own.
+	 */
+	public void setValue(String value) {
+		this.value = value;
+	}
+
+	@Override
+	public String toString() {
+		if (entries != null) {
+			return (id < 0 ? "" : "#" + id + " ") + status + " "
+					+ entries.size() + " entries";
+		}
+		return (id < 0 ? "" : "#" + id + " ") + status + " " + key
+				+ (value == null ? ""
+				: " (" + value.length() + " characters)");
+	}
+
+	private static int headerSize(int id) {
+		return id < 0 ? HEADER_SIZE : HEADER_SIZE + ID_SIZE;
+	}
+
+	private static void putHeader(ByteBuffer buf, StatusType status,
+			byte[] keyBytes, int valueLength, int id) {
+		buf.put((byte) (status.ordinal() | (id < 0 ? 0 : TAGGED)));
+		buf.putInt(keyBytes == null ? -1 : keyBytes.length);
+		buf.putInt(valueLength);
+		if (id >= 0) {
+			buf.putInt(id);
+		}
+		if (keyBytes != null) {
+			buf.put(keyBytes);
+		}
+	}
+
+	private static int length(byte[] bytes) {
+		return bytes == null ? 0 : bytes.length;
+	}
+
+	private static StatusType status(byte opcode) throws IOException {
+		int ordinal = opcode & ~TAGGED & 0xFF;
+		if (ordinal >= STATUS_TYPES.length) {
+			throw new IOException("Unknown opcode " + opcode);
+		}
+		return STATUS_TYPES[ordinal];
+	}
+
+	private static void checkLengths(int keyLength, int valueLength,
+			int maxLength) throws IOException {
+		if (keyLength < -1 || valueLength < -1 || (long) Math.max(keyLength, 0)
+				+ Math.max(valueLength, 0) > maxLength) {
+			throw new IOException("Bad message lengths " + keyLength + " and "
+					+ valueLength);
+		}
+	}
+
+	private static byte[] encodeEntries(List<KVEntry> entries) {
+		int size = 4;
+		byte[][] keys = new byte[entries.size()][];
+		byte[][] values = new byte[entries.size()][];
+		for (int i = 0; i < keys.length; i++) {
+			KVEntry entry = entries.get(i);
+			keys[i] = entry.getKey() == null ? null
+					: entry.getKey().getBytes(CHARSET);
+			values[i] = entry.getValue() == null ? null
+					: entry.getValue().getBytes(CHARSET);
+			size += 9 + length(keys[i]) + length(values[i]);
+		}
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		buf.putInt(keys.length);
+		for (int i = 0; i < keys.length; i++) {
+			StatusType status = entries.get(i).getStatus();
+			buf.put(status == null ? (byte) 0xFF : (byte) status.ordinal());
+			putBytes(buf, keys[i]);
+			putBytes(buf, values[i]);
+		}
+		return buf.array();
+	}
+
+	private static void putBytes(ByteBuffer buf, byte[] bytes) {
+		buf.putInt(bytes == null ? -1 : bytes.length);
+		if (bytes != null) {
+			buf.put(bytes);
+		}
+	}
+
+	/**
+	 * @throws IOException if bytes do not hold entries.
+	 */
+	private static List<KVEntry> decodeEntries(byte[] bytes) throws IOException {
+		if (bytes == null) {
+			return new ArrayList<KVEntry>();
+		}
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		try {
+			int count = buf.getInt();
+			if (count < 0 || count > buf.remaining() / 9) {
+				throw new IOException("Bad number of entries " + count);
+			}
+			List<KVEntry> entries = new ArrayList<KVEntry>(count);
+			for (int i = 0; i < count; i++) {
+				byte opcode = buf.get();
+				StatusType status = opcode == (byte) 0xFF ? null
+						: status(opcode);
+				String key = getString(buf);
+				entries.add(new KVEntry(status, key, getString(buf)));
+			}
+			return entries;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated entries");
+		}
+	}
+
+	private static String getString(ByteBuffer buf) throws IOException {
+		int length = buf.getInt();
+		if (length < -1 || length > buf.remaining()) {
+			throw new IOException("Bad entry length " + length);
+		}
+		return decodeString(buf, length);
+	}
+
+	private static String decodeString(ByteBuffer buf, int length) {
+		if (length < 0) {
+			return null;
+		}
+		String s = new String(buf.array(), buf.arrayOffset() + buf.position(),
+				length, CHARSET);
+		buf.position(buf.position() + length);
+		return s;
+	}
+}
@@ -0,0 +1,567 @@
+package common.messages;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import common.messages.KVMessage.StatusType;
+
+/**
+ * Reads and writes the JSON of TextMessage without a general-purpose JSON
+ * library. Messages only ever have a few known fields, so they are parsed
+ * from the received bytes straight into the fields of the message, and
+ * written into a buffer kept by each thread, leaving one copy of the
+ * right size per message.
+ * <p>
+ * The output of an untagged message is byte for byte the one of
+ * json-simple, which the protocol was written with: the fields come in
+ * the order of its HashMap, and strings are escaped by its rules, so older
+ * peers see no difference.
+ */
+final class JsonCodec {
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	private static final StatusType[] STATUS_TYPES = StatusType.values();
+	private static final byte[][] STATUS_NAMES = new byte[STATUS_TYPES.length][];
+	static {
+		for (int i = 0; i < STATUS_TYPES.length; i++) {
+			STATUS_NAMES[i] = STATUS_TYPES[i].name().getBytes(CHARSET);
+		}
+	}
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+	private static final byte[] CTR_CHARS = new byte[] { 0x0A, 0x0D };
+
+	private static final ThreadLocal<JsonCodec> ENCODERS =
+			new ThreadLocal<JsonCodec>() {
+		@Override
+		protected JsonCodec initialValue() {
+			return new JsonCodec();
+		}
+	};
+
+	/** Longest buffer kept after encoding a large message. */
+	private static final int MAX_KEPT_SIZE = 64 * 1024;
+
+	private byte[] buf = new byte[256];
+	private int count;
+
+	private JsonCodec() {
+	}
+
+	/**
+	 * @return the JSON of message followed by a line feed and a carriage
+	 * 		return.
+	 */
+	static byte[] encode(TextMessage message) {
+		JsonCodec encoder = ENCODERS.get();
+		encoder.count = 0;
+		encoder.write(message);
+		encoder.ensure(CTR_CHARS.length);
+		encoder.buf[encoder.count++] = CTR_CHARS[0];
+		encoder.buf[encoder.count++] = CTR_CHARS[1];
+		byte[] msgBytes = Arrays.copyOf(encoder.buf, encoder.count);
+		if (encoder.buf.length > MAX_KEPT_SIZE) {
+			encoder.buf = new byte[256];
+		}
+		return msgBytes;
+	}
+
+	private void write(TextMessage message) {
+		raw("{");
+		// Absent from messages that older peers may see.
+		if (message.id >= 0) {
+			raw("\"id\":");
+			raw(Integer.toString(message.id));
+			raw(",");
+		}
+		if (message.entries != null) {
+			if (message.isClient) {
+				raw("\"operation\":");
+				status(message.status);
+				raw(",\"entries\":");
+				entries(message.entries);
+			} else {
+				raw("\"entries\":");
+				entries(message.entries);
+				raw(",\"status\":");
+				status(message.status);
+			}
+		} else if (message.isClient) {
+			if (message.rawFraming) {
+				raw("\"framing\":");
+				string(TextMessage.RAW_FRAMING);
+				raw(",\"operation\":");
+			} else {
+				raw("\"operation\":");
+			}
+			status(message.status);
+			raw(",\"value\":");
+			string(message.value);
+			raw(",\"key\":");
+			string(message.key);
+		} else {
+			if (message.valueLength >= 0) {
+				raw("\"length\":");
+				raw(Integer.toString(message.valueLength));
+			} else {
+				raw("\"value\":");
+				string(message.value);
+			}
+			raw(",\"key\":");
+			string(message.key);
+			raw(",\"status\":");
+			status(message.status);
+		}
+		raw("}");
+	}
+
+	/**
+	 * Writes entries as an array of objects, leaving out null fields.
+	 */
+	private void entries(List<KVEntry> entries) {
+		raw("[");
+		for (int i = 0; i < entries.size(); i++) {
+			KVEntry entry = entries.get(i);
+			raw(i == 0 ? "{" : ",{");
+			if (entry.getStatus() != null) {
+				raw("\"status\":");
+				status(entry.getStatus());
+				raw(",");
+			}
+			raw("\"key\":");
+			string(entry.getKey());
+			if (entry.getValue() != null) {
+				raw(",\"value\":");
+				string(entry.getValue());
+			}
+			raw("}");
+		}
+		raw("]");
+	}
+
+	private void status(StatusType status) {
+		if (status == null) {
+			raw("null");
+			return;
+		}
+		byte[] name = STATUS_NAMES[status.ordinal()];
+		ensure(name.length + 2);
+		buf[count++] = '"';
+		System.arraycopy(name, 0, buf, count, name.length);
+		count += name.length;
+		buf[count++] = '"';
+	}
+
+	/**
+	 * Writes s, which holds nothing to escape nor beyond ASCII.
+	 */
+	private void raw(String s) {
+		ensure(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			buf[count++] = (byte) s.charAt(i);
+		}
+	}
+
+	/**
+	 * Writes s as a JSON string, escaped as json-simple does, in UTF-8.
+	 */
+	private void string(String s) {
+		if (s == null) {
+			raw("null");
+			return;
+		}
+		// At most 6 bytes per char, for \\u escapes.
+		ensure(6 * s.length() + 2);
+		buf[count++] = '"';
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '"': escaped('"'); break;
+				case '\\': escaped('\\'); break;
+				case '\b': escaped('b'); break;
+				case '\f': escaped('f'); break;
+				case '\n': escaped('n'); break;
+				case '\r': escaped('r'); break;
+				case '\t': escaped('t'); break;
+				case '/': escaped('/'); break;
+				default:
+					if (c <= 0x1F || (c >= 0x7F && c <= 0x9F)
+							|| (c >= 0x2000 && c <= 0x20FF)) {
+						buf[count++] = '\\';
+						buf[count++] = 'u';
+						buf[count++] = (byte) HEX[(c >> 12) & 0xF];
+						buf[count++] = (byte) HEX[(c >> 8) & 0xF];
+						buf[count++] = (byte) HEX[(c >> 4) & 0xF];
+						buf[count++] = (byte) HEX[c & 0xF];
+					} else if (c < 0x80) {
+						buf[count++] = (byte) c;
+					} else if (c < 0x800) {
+						buf[count++] = (byte) (0xC0 | (c >> 6));
+						buf[count++] = (byte) (0x80 | (c & 0x3F));
+					} else if (Character.isSurrogate(c)) {
+						if (Character.isHighSurrogate(c) && i + 1 < s.length()
+								&& Character.isLowSurrogate(s.charAt(i + 1))) {
+							int cp = Character.toCodePoint(c, s.charAt(++i));
+							buf[count++] = (byte) (0xF0 | (cp >> 18));
+							buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+							buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+							buf[count++] = (byte) (0x80 | (cp & 0x3F));
+						} else {
+							// As String.getBytes replaces a lone surrogate.
+							buf[count++] = '?';
+						}
+					} else {
+						buf[count++] = (byte) (0xE0 | (c >> 12));
+						buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+						buf[count++] = (byte) (0x80 | (c & 0x3F));
+					}
+			}
+		}
+		buf[count++] = '"';
+	}
+
+	private void escaped(char c) {
+		buf[count++] = '\\';
+		buf[count++] = (byte) c;
+	}
+
+	private void ensure(int length) {
+		if (count + length > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(2 * buf.length, count + length));
+		}
+	}
+
+	/**
+	 * Thrown for bytes that are not a message.
+	 */
+	static final class ParseException extends Exception {
+
+		private static final long serialVersionUID = 1L;
+
+		ParseException(String message, int position) {
+			super(message + " at " + position);
+		}
+	}
+
+	/**
+	 * Parses the JSON object in bytes into the fields of message. Fields
+	 * other than the known ones are skipped if they hold a string, a number
+	 * or a literal; only the entries of a batch may be an array.
+	 */
+	static void decode(byte[] bytes, TextMessage message) throws ParseException {
+		new Parser(bytes).parse(message);
+	}
+
+	private static final class Parser {
+
+		private final byte[] b;
+		private int pos;
+
+		Parser(byte[] bytes) {
+			this.b = bytes;
+		}
+
+		void parse(TextMessage message) throws ParseException {
+			skipWhitespace();
+			expect('{');
+			skipWhitespace();
+			if (peek() == '}') {
+				pos++;
+				return;
+			}
+			while (true) {
+				skipWhitespace();
+				String name = string();
+				skipWhitespace();
+				expect(':');
+				skipWhitespace();
+				if (name.equals("operation")) {
+					message.isClient = true;
+					message.status = status();
+				} else if (name.equals("status")) {
+					if (!message.isClient) {
+						message.status = status();
+					} else {
+						skipValue();
+					}
+				} else if (name.equals("key")) {
+					message.key = nullableString();
+				} else if (name.equals("value")) {
+					message.value = nullableString();
+				} else if (name.equals("framing")) {
+					message.rawFraming = TextMessage.RAW_FRAMING.equals(
+							nullableString());
+				} else if (name.equals("length")) {
+					message.valueLength = (int) number();
+				} else if (name.equals("id")) {
+					message.id = (int) number();
+				} else if (name.equals("entries")) {
+					message.entries = entries();
+				} else {
+					skipValue();
+				}
+				skipWhitespace();
+				byte c = next();
+				if (c == '}') {
+					return;
+				}
+				if (c != ',') {
+					throw new ParseException("Expected , or }", pos - 1);
+				}
+			}
+		}
+
+		private List<KVEntry> entries() throws ParseException {
+			List<KVEntry> entries = new ArrayList<KVEntry>();
+			expect('[');
+			skipWhitespace();
+			if (peek() == ']') {
+				pos++;
+				return entries;
+			}
+			while (true) {
+				skipWhitespace();
+				entries.add(entry());
+				skipWhitespace();
+				byte c = next();
+				if (c == ']') {
+					return entries;
+				}
+				if (c != ',') {
+					throw new ParseException("Expected , or ]", pos - 1);
+				}
+			}
+		}
+
+		private KVEntry entry() throws ParseException {
+			StatusType status = null;
+			String key = null;
+			String value = null;
+			expect('{');
+			skipWhitespace();
+			if (peek() == '}') {
+				pos++;
+				return new KVEntry(null, null, null);
+			}
+			while (true) {
+				skipWhitespace();
+				String name = string();
+				skipWhitespace();
+				expect(':');
+				skipWhitespace();
+				if (name.equals("status")) {
+					status = status();
+				} else if (name.equals("key")) {
+					key = nullableString();
+				} else if (name.equals("value")) {
+					value = nullableString();
+				} else {
+					skipValue();
+				}
+				skipWhitespace();
+				byte c = next();
+				if (c == '}') {
+					return new KVEntry(status, key, value);
+				}
+				if (c != ',') {
+					throw new ParseException("Expected , or }", pos - 1);
+				}
+			}
+		}
+
+		/**
+		 * Looks the name up among the status types without building a
+		 * String when it holds no escapes.
+		 */
+		private StatusType status() throws ParseException {
+			if (peek() == 'n') {
+				literal("null");
+				return null;
+			}
+			int start = pos + 1;
+			int end = stringEnd();
+			if (end < 0) {
+				String name = string();
+				for (StatusType status : STATUS_TYPES) {
+					if (status.name().equals(name)) {
+						return status;
+					}
+				}
+			} else {
+				pos = end + 1;
+				for (int i = 0; i < STATUS_NAMES.length; i++) {
+					byte[] name = STATUS_NAMES[i];
+					if (name.length == end - start && regionMatches(name, start)) {
+						return STATUS_TYPES[i];
+					}
+				}
+			}
+			throw new ParseException("Unknown status", start);
+		}
+
+		private boolean regionMatches(byte[] name, int start) {
+			for (int i = 0; i < name.length; i++) {
+				if (b[start + i] != name[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private String nullableString() throws ParseException {
+			if (peek() == 'n') {
+				literal("null");
+				return null;
+			}
+			return string();
+		}
+
+		/**
+		 * @return index of the closing quote of the string at pos, or -1 if
+		 * 		the string holds escapes.
+		 */
+		private int stringEnd() throws ParseException {
+			if (peek() != '"') {
+				throw new ParseException("Expected a string", pos);
+			}
+			for (int i = pos + 1; i < b.length; i++) {
+				if (b[i] == '"') {
+					return i;
+				}
+				if (b[i] == '\\') {
+					return -1;
+				}
+			}
+			throw new ParseException("Unterminated string", pos);
+		}
+
+		private String string() throws ParseException {
+			int end = stringEnd();
+			if (end >= 0) {
+				String s = new String(b, pos + 1, end - pos - 1, CHARSET);
+				pos = end + 1;
+				return s;
+			}
+			StringBuilder sb = new StringBuilder();
+			pos++;
+			int run = pos;
+			while (true) {
+				if (pos >= b.length) {
+					throw new ParseException("Unterminated string", pos);
+				}
+				byte c = b[pos];
+				if (c == '"') {
+					sb.append(new String(b, run, pos - run, CHARSET));
+					pos++;
+					return sb.toString();
+				}
+				if (c != '\\') {
+					pos++;
+					continue;
+				}
+				sb.append(new String(b, run, pos - run, CHARSET));
+				pos++;
+				byte e = next();
+				switch (e) {
+					case '"': sb.append('"'); break;
+					case '\\': sb.append('\\'); break;
+					case '/': sb.append('/'); break;
+					case 'b': sb.append('\b'); break;
+					case 'f': sb.append('\f'); break;
+					case 'n': sb.append('\n'); break;
+					case 'r': sb.append('\r'); break;
+					case 't': sb.append('\t'); break;
+					case 'u':
+						if (pos + 4 > b.length) {
+							throw new ParseException("Bad escape", pos);
+						}
+						int cp = 0;
+						for (int i = 0; i < 4; i++) {
+							int digit = Character.digit(b[pos++], 16);
+							if (digit < 0) {
+								throw new ParseException("Bad escape", pos - 1);
+							}
+							cp = (cp << 4) | digit;
+						}
+						sb.append((char) cp);
+						break;
+					default:
+						throw new ParseException("Bad escape", pos - 1);
+				}
+				run = pos;
+			}
+		}
+
+		private long number() throws ParseException {
+			int start = pos;
+			boolean negative = peek() == '-';
+			if (negative) {
+				pos++;
+			}
+			long n = 0;
+			while (pos < b.length && b[pos] >= '0' && b[pos] <= '9') {
+				n = 10 * n + (b[pos++] - '0');
+			}
+			if (pos == start + (negative ? 1 : 0)) {
+				throw new ParseException("Expected a number", start);
+			}
+			return negative ? -n : n;
+		}
+
+		private void skipValue() throws ParseException {
+			byte c = peek();
+			if (c == '"') {
+				string();
+			} else if (c == 'n') {
+				literal("null");
+			} else if (c == 't') {
+				literal("true");
+			} else if (c == 'f') {
+				literal("false");
+			} else {
+				number();
+				// Fraction and exponent of a number that is not read.
+				while (pos < b.length && (b[pos] == '.' || b[pos] == 'e'
+						|| b[pos] == 'E' || b[pos] == '+' || b[pos] == '-'
+						|| (b[pos] >= '0' && b[pos] <= '9'))) {
+					pos++;
+				}
+			}
+		}
+
+		private void literal(String word) throws ParseException {
+			for (int i = 0; i < word.length(); i++) {
+				if (next() != word.charAt(i)) {
+					throw new ParseException("Expected " + word, pos - 1);
+				}
+			}
+		}
+
+		private void skipWhitespace() {
+			while (pos < b.length && (b[pos] == ' ' || b[pos] == '\t'
+					|| b[pos] == '\n' || b[pos] == '\r')) {
+				pos++;
+			}
+		}
+
+		private void expect(char c) throws ParseException {
+			if (next() != c) {
+				throw new ParseException("Expected " + c, pos - 1);
+			}
+		}
+
+		private byte peek() throws ParseException {
+			if (pos >= b.length) {
+				throw new ParseException("Unexpected end", pos);
+			}
+			return b[pos];
+		}
+
+		private byte next() throws ParseException {
+			byte c = peek();
+			pos++;
+			return c;
+		}
+	}
+}
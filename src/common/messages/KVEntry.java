@@ -0,0 +1,61 @@
+package common.messages;
+
+import java.util.List;
+
+/**
+ * One key of a batch, with the value to put or that was got, and in a
+ * response the status of the operation on that key alone.
+ */
+public class KVEntry implements KVMessage {
+
+	private final StatusType status;
+	private final String key;
+	private final String value;
+
+	/**
+	 * @param status the status in a response, null in a request.
+	 */
+	public KVEntry(StatusType status, String key, String value) {
+		this.status = status;
+		this.key = key;
+		this.value = value;
+	}
+
+	@Override
+	public StatusType getStatus() {
+		return status;
+	}
+
+	@Override
+	public String getKey() {
+		return key;
+	}
+
+	@Override
+	public String getValue() {
+		return value;
+	}
+
+	/**
+	 * @return null, as an entry is not a batch itself.
+	 */
+	@Override
+	public List<KVEntry> getEntries() {
+		return null;
+	}
+
+	/**
+	 * @return true if messages of status carry entries rather than a key.
+	 */
+	public static boolean isBatch(StatusType status) {
+		return status == StatusType.MGET || status == StatusType.MPUT
+				|| status == StatusType.MDELETE
+				|| status == StatusType.BATCH_SUCCESS
+				|| status == StatusType.BATCH_ERROR;
+	}
+
+	@Override
+	public String toString() {
+		return (status == null ? "" : status + " ") + key;
+	}
+}
@@ -1,5 +1,7 @@
 package common.messages;
 
+import java.util.List;
+
 public interface KVMessage {
 	
 	public enum StatusType {
@@ -12,7 +14,19 @@ public interface KVMessage {
 		PUT_ERROR, 		/* Put - request not successful */
 		DELETE,			/* Delete - request */
 		DELETE_SUCCESS, /* Delete - request successful */
-		DELETE_ERROR	/* Delete - request successful */
+		DELETE_ERROR,	/* Delete - request successful */
+		MGET,			/* Get of many keys - request */
+		MPUT,			/* Put of many pairs - request */
+		MDELETE,		/* Delete of many keys - request */
+		BATCH_SUCCESS,	/* Batch - carried out, see each entry's status */
+		BATCH_ERROR,	/* Batch - request not carried out at all */
+		GET_TRACKED,	/* Get - request, pushing the next write of the key
+						   to the subscription in value */
+		SUBSCRIBE,		/* Subscribe - request, the connection only
+						   carrying invalidations afterwards */
+		SUBSCRIBE_SUCCESS, /* Subscribe - request successful, id in key */
+		INVALIDATE		/* Key written since it was got tracked, or all
+						   keys if none - pushed to subscriptions */
 	}
 
 	/**
@@ -32,6 +46,13 @@ public interface KVMessage {
 	 * response types and error types associated to the message.
 	 */
 	public StatusType getStatus();
+
+	/**
+	 * @return the keys of a batch request or response, each with a value
+	 * 		and, in a response, a status of its own, or null if this is not
+	 * 		a batch.
+	 */
+	public List<KVEntry> getEntries();
 	
 }
 
@@ -0,0 +1,151 @@
+package common.messages;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Splits the bytes of a stream into messages ended by a delimiter. The
+ * stream is read in bulk into a buffer that is kept for the next message,
+ * so a message costs a few reads rather than one per byte, and bytes read
+ * past the end of one message are the start of the next.
+ */
+public class MessageReader {
+
+	private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+	private final InputStream input;
+	private final byte delimiter;
+	private final int maxLength;
+	private byte[] buffer;
+	/** First byte not consumed yet. */
+	private int start;
+	/** End of the bytes read so far. */
+	private int end;
+	/** Bytes from start on already searched for the delimiter. */
+	private int scanned;
+
+	/**
+	 * @param delimiter byte ending each message.
+	 * @param maxLength length beyond which a message is cut, its remainder
+	 * 			making up the next one.
+	 */
+	public MessageReader(InputStream input, byte delimiter, int maxLength) {
+		this.input = input;
+		this.delimiter = delimiter;
+		this.maxLength = maxLength;
+		this.buffer = new byte[Math.min(INITIAL_BUFFER_SIZE, maxLength)];
+	}
+
+	/**
+	 * @return the next message without its delimiter, or what is left of
+	 * 		the stream, possibly nothing, once it ends.
+	 */
+	public byte[] readMessage() throws IOException {
+		while (true) {
+			int limit = Math.min(end, start + maxLength);
+			for (int i = start + scanned; i < limit; i++) {
+				if (buffer[i] == delimiter) {
+					byte[] msgBytes = Arrays.copyOfRange(buffer, start, i);
+					consume(i + 1 - start);
+					return msgBytes;
+				}
+			}
+			scanned = limit - start;
+			if (scanned == maxLength || !fill()) {
+				byte[] msgBytes = Arrays.copyOfRange(buffer, start, limit);
+				consume(limit - start);
+				return msgBytes;
+			}
+		}
+	}
+
+	/**
+	 * @return the next byte without consuming it, or -1 if the stream
+	 * 		ended.
+	 */
+	public int peek() throws IOException {
+		if (start == end && !fill()) {
+			return -1;
+		}
+		return buffer[start] & 0xFF;
+	}
+
+	/**
+	 * @return true if bytes of the stream were read ahead, the start of
+	 * 		the next message at least.
+	 */
+	public boolean hasBuffered() {
+		return end > start;
+	}
+
+	/**
+	 * @return true if the next message was read ahead as a whole, so that
+	 * 		{@link #readMessage()} returns without reading the stream.
+	 */
+	public boolean hasMessage() {
+		int limit = Math.min(end, start + maxLength);
+		for (int i = start + scanned; i < limit; i++) {
+			if (buffer[i] == delimiter) {
+				scanned = i - start;
+				return true;
+			}
+		}
+		scanned = limit - start;
+		return scanned == maxLength;
+	}
+
+	/**
+	 * Reads length bytes that follow a message as they are.
+	 * @throws EOFException if the stream ends before.
+	 */
+	public byte[] readFully(int length) throws IOException {
+		byte[] bytes = new byte[length];
+		int index = Math.min(length, end - start);
+		System.arraycopy(buffer, start, bytes, 0, index);
+		consume(index);
+		// Anything beyond the buffer is read straight into place.
+		while (index < length) {
+			int read = input.read(bytes, index, length - index);
+			if (read == -1) {
+				throw new EOFException("Stream ended after " + index + " of "
+						+ length + " bytes");
+			}
+			index += read;
+		}
+		return bytes;
+	}
+
+	private void consume(int length) {
+		start += length;
+		scanned = 0;
+		if (start == end) {
+			start = 0;
+			end = 0;
+		}
+	}
+
+	/**
+	 * Reads more of the stream, making room first.
+	 * @return false if the stream ended.
+	 */
+	private boolean fill() throws IOException {
+		if (end == buffer.length) {
+			if (start > 0) {
+				System.arraycopy(buffer, start, buffer, 0, end - start);
+				end -= start;
+				start = 0;
+			} else {
+				buffer = Arrays.copyOf(buffer,
+						Math.min(2 * buffer.length, maxLength));
+			}
+		}
+		int read = input.read(buffer, end, buffer.length - end);
+		if (read == -1) {
+			return false;
+		}
+		end += read;
+		return true;
+	}
+}
@@ -1,11 +1,10 @@
 package common.messages;
 
 import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.List;
 
 import org.apache.log4j.Logger;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 
 /**
  * Represents a simple text message, which is intended to be received and sent 
@@ -14,34 +13,86 @@ import org.json.simple.parser.ParseException;
 public class TextMessage implements Serializable, KVMessage{
 
 	private static final long serialVersionUID = 5549512212003782618L;
-	JSONObject jsonMessage = null;
+	private static final Charset CHARSET = Charset.forName("UTF-8");
 	private String msg = null;
 	private byte[] msgBytes;
+	/** Bytes of a received message, without control characters. */
+	private byte[] received;
 	private static final char LINE_FEED = 0x0A;
 	private static final char RETURN = 0x0D;
-	private boolean isClient;
 	private static Logger logger = Logger.getRootLogger();
 	
+	/*
+	 * The fields of the JSON, filled in and read by JsonCodec. A request
+	 * has an operation where a response has a status.
+	 */
+	boolean isClient;
+	StatusType status;
+	String key;
+	String value;
+	boolean rawFraming;
+	int valueLength = -1;
+	/** Tag of a pipelined request and of its response, or -1. */
+	int id = -1;
+	/** Keys of a batch, which has no key of its own. */
+	List<KVEntry> entries;
+	
+	/**
+	 * Value of the "framing" field of a GET request asking for the value to
+	 * be sent as raw bytes after the response, whose "length" field then
+	 * holds their number.
+	 */
+	public static final String RAW_FRAMING = "raw";
+	
 	public TextMessage(String opt, String key, String value) {
-		jsonMessage = new JSONObject();
-		this.jsonMessage.put("operation", opt);
-		this.jsonMessage.put("key", key);
-		this.jsonMessage.put("value", value);
-		this.msg = jsonMessage.toString();
+		this.status = StatusType.valueOf(opt);
+		this.key = key;
+		this.value = value;
 		isClient = true;
-//		StringWriter out = new StringWriter();
-//		jsonMessage.writeJSONString(out);
+	}
+	
+	/**
+	 * Constructs a client request, optionally asking for a raw value.
+	 */
+	public TextMessage(String opt, String key, String value, boolean rawValue) {
+		this(opt, key, value);
+		this.rawFraming = rawValue;
 	}
 	
 	public TextMessage(StatusType status, String key, String value) {
-		jsonMessage = new JSONObject();
-		this.jsonMessage.put("status", status.toString());
-		this.jsonMessage.put("key", key);
-		this.jsonMessage.put("value", value);
-		this.msg = jsonMessage.toString();
+		this.status = status;
+		this.key = key;
+		this.value = value;
+		isClient = false;
+	}
+
+	/**
+	 * Constructs the header of a response whose value follows as
+	 * valueLength raw bytes.
+	 */
+	public TextMessage(StatusType status, String key, int valueLength) {
+		this.status = status;
+		this.key = key;
+		this.valueLength = valueLength;
+		isClient = false;
+	}
+
+	/**
+	 * Constructs a client batch request.
+	 */
+	public TextMessage(String opt, List<KVEntry> entries) {
+		this.status = StatusType.valueOf(opt);
+		this.entries = entries;
+		isClient = true;
+	}
+
+	/**
+	 * Constructs the response to a batch request.
+	 */
+	public TextMessage(StatusType status, List<KVEntry> entries) {
+		this.status = status;
+		this.entries = entries;
 		isClient = false;
-//		StringWriter out = new StringWriter();
-//		jsonMessage.writeJSONString(out);
 	}
 
 	/**
@@ -51,14 +102,18 @@ public class TextMessage implements Serializable, KVMessage{
      * @param bytes the bytes that form the message in ASCII coding.
      */
 	public TextMessage(byte[] bytes) {
-		this.msgBytes = addCtrChars(bytes);
-		this.msg = new String(msgBytes);
-//		this.msg = new String(toByteArray(bytes.toString()));
-		JSONParser parser = new JSONParser();
+		this.received = bytes;
 		try {
-			jsonMessage = (JSONObject) parser.parse(this.msg);
-			isClient = jsonMessage.containsKey("operation") ? true : false;
-		} catch (ParseException e) {
+			JsonCodec.decode(bytes, this);
+		} catch (JsonCodec.ParseException e) {
+			isClient = false;
+			status = null;
+			key = null;
+			value = null;
+			rawFraming = false;
+			valueLength = -1;
+			id = -1;
+			entries = null;
 			logger.error("Error! " +
         			"Unable to parse incoming bytes to json. \n", e);
 		}
@@ -72,6 +127,7 @@ public class TextMessage implements Serializable, KVMessage{
      */
 	public TextMessage(String msg) {
 		this.msg = msg;
+		this.msgBytes = toByteArray(msg);
 	}
 
 
@@ -81,6 +137,13 @@ public class TextMessage implements Serializable, KVMessage{
 	 * @return the content of this message in String format.
 	 */
 	public String getMsg() {
+		if (msg == null && received != null) {
+			msg = new String(received, CHARSET);
+		} else if (msg == null) {
+			byte[] bytes = getMsgBytes();
+			// Without the control characters, as the message was built.
+			msg = new String(bytes, 0, bytes.length - 2, CHARSET);
+		}
 		return msg;
 	}
 
@@ -91,7 +154,12 @@ public class TextMessage implements Serializable, KVMessage{
 	 * 		in ASCII coding.
 	 */
 	public byte[] getMsgBytes() {
-		return toByteArray(msg);
+		if (msgBytes == null && received != null) {
+			msgBytes = addCtrChars(received);
+		} else if (msgBytes == null) {
+			msgBytes = JsonCodec.encode(this);
+		}
+		return msgBytes;
 	}
 	
 	private byte[] addCtrChars(byte[] bytes) {
@@ -117,23 +185,62 @@ public class TextMessage implements Serializable, KVMessage{
 
 	@Override
 	public String getKey() {
-		if (jsonMessage == null)
-			return null;
-		return (String) jsonMessage.get("key");
+		return key;
 	}
 
 	@Override
 	public String getValue() {
-		if (jsonMessage == null)
-			return null;
-		return (String) jsonMessage.get("value");
+		return value;
+	}
+
+	/**
+	 * Sets the value of a response whose value was received raw.
+	 */
+	public void setValue(String value) {
+		this.value = value;
+	}
+
+	/**
+	 * @return true if this request asks for a raw value.
+	 */
+	public boolean isRawFraming() {
+		return rawFraming;
+	}
+
+	/**
+	 * @return number of raw value bytes following this response, or -1 if
+	 * 		the value is part of the message.
+	 */
+	public int getValueLength() {
+		return valueLength;
+	}
+
+	/**
+	 * @return the tag matching a pipelined request with its response, or
+	 * 		-1 if the message is not tagged.
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Tags the message, which must not have been sent yet.
+	 * @param id a non-negative tag.
+	 */
+	public void setId(int id) {
+		this.id = id;
+		msgBytes = null;
+		msg = null;
 	}
 
 	@Override
 	public StatusType getStatus() {
-		if (jsonMessage == null)
-			return null;
-		return StatusType.valueOf((String) (isClient ? jsonMessage.get("operation") : jsonMessage.get("status")));
+		return status;
+	}
+
+	@Override
+	public List<KVEntry> getEntries() {
+		return entries;
 	}
 	
 }
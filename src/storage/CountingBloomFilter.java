@@ -0,0 +1,136 @@
+package storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter over a changing set of keys. Each slot is a 4-bit counter
+ * rather than a bit, so keys can be removed again; a counter that
+ * saturates stays at its maximum for good, which keeps the filter free of
+ * false negatives at the cost of a few stale positives. All operations are
+ * lock-free and safe to call from any thread.
+ */
+public class CountingBloomFilter {
+
+	private static final int COUNTERS_PER_WORD = 16;
+	private static final long COUNTER_MASK = 0xF;
+
+	private final AtomicLongArray words;
+	private final int numCounters;
+	private final int numHashes;
+	private final AtomicLong size = new AtomicLong();
+
+	/**
+	 * Sizes the filter for expectedKeys keys at the given false positive
+	 * rate.
+	 */
+	public CountingBloomFilter(long expectedKeys, double falsePositiveRate) {
+		long n = Math.max(expectedKeys, 1);
+		double ln2 = Math.log(2);
+		long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (ln2 * ln2));
+		numCounters = (int) Math.min(Math.max(m, COUNTERS_PER_WORD),
+				Integer.MAX_VALUE - COUNTERS_PER_WORD);
+		numHashes = Math.max(1,
+				(int) Math.round((double) numCounters / n * ln2));
+		words = new AtomicLongArray(
+				(numCounters + COUNTERS_PER_WORD - 1) / COUNTERS_PER_WORD);
+	}
+
+	public void add(String key) {
+		long hash = hash(key);
+		for (int i = 0; i < numHashes; i++) {
+			update(index(hash, i), 1);
+		}
+		size.incrementAndGet();
+	}
+
+	/**
+	 * Removes a key that was added before. Removing a key that is not in
+	 * the set corrupts the filter.
+	 */
+	public void remove(String key) {
+		long hash = hash(key);
+		for (int i = 0; i < numHashes; i++) {
+			update(index(hash, i), -1);
+		}
+		size.decrementAndGet();
+	}
+
+	/**
+	 * @return false if key is definitely not in the set.
+	 */
+	public boolean mightContain(String key) {
+		long hash = hash(key);
+		for (int i = 0; i < numHashes; i++) {
+			if (counter(index(hash, i)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public void clear() {
+		for (int i = 0; i < words.length(); i++) {
+			words.set(i, 0);
+		}
+		size.set(0);
+	}
+
+	/**
+	 * @return false positive rate expected for the number of keys currently
+	 * 		in the set.
+	 */
+	public double expectedFalsePositiveRate() {
+		double fill = 1 - Math.exp(-(double) numHashes * size.get() / numCounters);
+		return Math.pow(fill, numHashes);
+	}
+
+	private int counter(int index) {
+		long word = words.get(index / COUNTERS_PER_WORD);
+		return (int) ((word >>> shift(index)) & COUNTER_MASK);
+	}
+
+	private void update(int index, int delta) {
+		int w = index / COUNTERS_PER_WORD;
+		int shift = shift(index);
+		while (true) {
+			long word = words.get(w);
+			long count = (word >>> shift) & COUNTER_MASK;
+			if (count == COUNTER_MASK || (delta < 0 && count == 0)) {
+				// Saturated counters are sticky.
+				return;
+			}
+			long updated = (word & ~(COUNTER_MASK << shift))
+					| ((count + delta) << shift);
+			if (words.compareAndSet(w, word, updated)) {
+				return;
+			}
+		}
+	}
+
+	private static int shift(int index) {
+		return (index % COUNTERS_PER_WORD) * 4;
+	}
+
+	/**
+	 * Double hashing: the i-th probe is h1 + i * h2.
+	 */
+	private int index(long hash, int i) {
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		int combined = h1 + i * h2;
+		return (combined & Integer.MAX_VALUE) % numCounters;
+	}
+
+	private static long hash(String key) {
+		long h = 0x9E3779B97F4A7C15L;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0xFF51AFD7ED558CCDL;
+		}
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
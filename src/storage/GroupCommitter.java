@@ -0,0 +1,255 @@
+package storage;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Makes appended records durable in batches. Writers register each append
+ * and get a ticket back, then wait on that ticket; a single sync thread
+ * fsyncs every file written since the previous round and releases all
+ * tickets covered by it at once. A round starts as soon as the batch is
+ * full or the oldest pending record has waited for the maximum delay.
+ */
+class GroupCommitter implements Runnable {
+
+	private static Logger logger = Logger.getRootLogger();
+	private static final long REPORT_INTERVAL_MILLIS = 60 * 1000;
+
+	/**
+	 * A file that can be forced to the storage device.
+	 */
+	interface Syncable {
+		void sync() throws IOException;
+	}
+
+	private final long maxDelayNanos;
+	private final int maxBatchSize;
+	private final String name;
+	/** Guards the state below; changed is signalled on every transition. */
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+
+	private Set<Syncable> dirty = new LinkedHashSet<Syncable>();
+	private long lastTicket;
+	private long durableTicket;
+	private long pendingSince;
+	private IOException failure;
+	private boolean stopped;
+	private boolean finished;
+	private Thread thread;
+
+	private long syncs;
+	private long syncedRecords;
+	private long reportStart = System.currentTimeMillis();
+	private long reportSyncs;
+	private long reportRecords;
+
+	/**
+	 * @param name used for the sync thread and in reports.
+	 * @param maxDelayMicros longest time a record waits for others to share
+	 * 			its fsync.
+	 * @param maxBatchSize number of pending records that triggers an
+	 * 			immediate fsync.
+	 */
+	GroupCommitter(String name, long maxDelayMicros, int maxBatchSize) {
+		this.name = name;
+		this.maxDelayNanos = maxDelayMicros * 1000;
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	void start() {
+		lock.lock();
+		try {
+			stopped = false;
+			finished = false;
+			thread = new Thread(this, name + "-sync");
+			thread.setDaemon(true);
+			thread.start();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Syncs what is still pending and stops the sync thread.
+	 */
+	void stop() {
+		Thread syncThread;
+		lock.lock();
+		try {
+			stopped = true;
+			changed.signalAll();
+			syncThread = thread;
+			thread = null;
+		} finally {
+			lock.unlock();
+		}
+		if (syncThread != null) {
+			try {
+				syncThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Registers a record just appended to file. Must be called in append
+	 * order, i.e. under the lock that serializes the appends.
+	 * @return ticket to pass to {@link #await(long)}.
+	 */
+	long register(Syncable file) {
+		lock.lock();
+		try {
+			boolean first = lastTicket == durableTicket;
+			if (first) {
+				pendingSince = System.nanoTime();
+			}
+			dirty.add(file);
+			lastTicket++;
+			if (first || lastTicket - durableTicket >= maxBatchSize) {
+				changed.signalAll();
+			}
+			return lastTicket;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Blocks until the record behind ticket is on disk.
+	 * @throws IOException if the fsync covering the record failed.
+	 */
+	void await(long ticket) throws IOException {
+		lock.lock();
+		try {
+			while (durableTicket < ticket && failure == null && !finished) {
+				changed.awaitUninterruptibly();
+			}
+			if (durableTicket < ticket) {
+				throw new IOException("Unable to sync " + name
+						+ (failure == null ? ", group commit is stopped" : ""),
+						failure);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	long getSyncCount() {
+		lock.lock();
+		try {
+			return syncs;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	long getSyncedRecordCount() {
+		lock.lock();
+		try {
+			return syncedRecords;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void run() {
+		while (true) {
+			Set<Syncable> batch;
+			long target;
+			lock.lock();
+			try {
+				while (!isDue()) {
+					if (stopped) {
+						if (failure != null || lastTicket == durableTicket) {
+							finished = true;
+							changed.signalAll();
+							return;
+						}
+						// Sync what is left before going away.
+						break;
+					}
+					try {
+						if (lastTicket == durableTicket || failure != null) {
+							changed.await();
+						} else {
+							// Delays are in microseconds, a millisecond wait
+							// would round them up.
+							changed.awaitNanos(maxDelayNanos
+									- (System.nanoTime() - pendingSince));
+						}
+					} catch (InterruptedException e) {
+						stopped = true;
+					}
+				}
+				batch = dirty;
+				dirty = new LinkedHashSet<Syncable>();
+				target = lastTicket;
+			} finally {
+				lock.unlock();
+			}
+			IOException error = syncAll(batch);
+			lock.lock();
+			try {
+				if (error != null) {
+					logger.error("Error! Unable to sync " + name, error);
+					failure = error;
+				} else {
+					syncs++;
+					syncedRecords += target - durableTicket;
+					durableTicket = target;
+					report();
+				}
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private boolean isDue() {
+		long pending = lastTicket - durableTicket;
+		return failure == null && pending > 0 && (pending >= maxBatchSize
+				|| System.nanoTime() - pendingSince >= maxDelayNanos);
+	}
+
+	private IOException syncAll(Set<Syncable> batch) {
+		for (Syncable file : batch) {
+			try {
+				file.sync();
+			} catch (ClosedChannelException e) {
+				// Deleted meanwhile, nothing left to make durable.
+			} catch (IOException e) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Logs fsyncs per second and records per fsync since the last report.
+	 */
+	private void report() {
+		long now = System.currentTimeMillis();
+		if (now - reportStart < REPORT_INTERVAL_MILLIS) {
+			return;
+		}
+		long rounds = syncs - reportSyncs;
+		if (rounds > 0) {
+			logger.info(String.format("Group commit of %s: %.1f fsyncs/s, "
+					+ "%.1f records/fsync", name,
+					rounds * 1000.0 / (now - reportStart),
+					(double) (syncedRecords - reportRecords) / rounds));
+		}
+		reportStart = now;
+		reportSyncs = syncs;
+		reportRecords = syncedRecords;
+	}
+}
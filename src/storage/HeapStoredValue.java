@@ -0,0 +1,39 @@
+package storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A {@link StoredValue} that has already been read onto the heap, for
+ * engines that can not send values straight from disk.
+ */
+final class HeapStoredValue implements StoredValue {
+
+	private final byte[] value;
+
+	HeapStoredValue(byte[] value) {
+		this.value = value;
+	}
+
+	public int getLength() {
+		return value.length;
+	}
+
+	public String read() {
+		return new String(value, LogRecord.CHARSET);
+	}
+
+	public void transferTo(WritableByteChannel target) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(value);
+		while (buf.hasRemaining()) {
+			target.write(buf);
+		}
+	}
+
+	public long transferTo(long position, WritableByteChannel target)
+			throws IOException {
+		return target.write(ByteBuffer.wrap(value, (int) position,
+				value.length - (int) position));
+	}
+}
@@ -0,0 +1,197 @@
+package storage;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Index of a sealed {@link LogSegment}, kept next to it so that a restart
+ * can rebuild the key directory without reading any values. A hint file
+ * lists one entry per record of its segment,
+ * <pre>
+ *   seq (8) | key length (4) | value length (4) | record offset (8) | key
+ * </pre>
+ * and ends with the size of the segment it describes and a CRC over all of
+ * the above. A hint whose checksum or segment size do not match is
+ * ignored, and the segment is scanned instead.
+ */
+final class HintFile {
+
+	static final String SUFFIX = ".hint";
+	private static final String TMP_SUFFIX = ".tmp";
+	private static final int ENTRY_HEADER_SIZE = 24;
+	private static final int TRAILER_SIZE = 12;
+
+	/**
+	 * What a hint file records about one record of a segment.
+	 */
+	static final class Entry {
+
+		final long seq;
+		final String key;
+		final int keyLength;
+		final int valueLength;
+		final long offset;
+
+		Entry(long seq, String key, int keyLength, int valueLength,
+				long offset) {
+			this.seq = seq;
+			this.key = key;
+			this.keyLength = keyLength;
+			this.valueLength = valueLength;
+			this.offset = offset;
+		}
+
+		Entry(LogRecord record) {
+			this(record.seq, record.key, record.keyLength(),
+					record.isTombstone() ? LogRecord.TOMBSTONE
+							: record.value.length,
+					record.offset);
+		}
+
+		boolean isTombstone() {
+			return valueLength == LogRecord.TOMBSTONE;
+		}
+
+		int recordSize() {
+			return LogRecord.size(keyLength, valueLength);
+		}
+
+		long valueOffset() {
+			return offset + LogRecord.HEADER_SIZE + keyLength;
+		}
+	}
+
+	private HintFile() {
+	}
+
+	static File fileFor(File dir, int segmentId) {
+		return new File(dir, String.format("%010d", segmentId) + SUFFIX);
+	}
+
+	/**
+	 * @return true if fileName is a hint file, or a partially written one.
+	 */
+	static boolean isHint(String fileName) {
+		return fileName.endsWith(SUFFIX) || fileName.endsWith(SUFFIX + TMP_SUFFIX);
+	}
+
+	/**
+	 * @return the id of the segment a hint file name refers to, or -1.
+	 */
+	static int idOf(String fileName) {
+		String name = fileName.endsWith(TMP_SUFFIX)
+				? fileName.substring(0, fileName.length() - TMP_SUFFIX.length())
+				: fileName;
+		if (!name.endsWith(SUFFIX)) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(name.substring(0,
+					name.length() - SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Reads the hint of segment.
+	 * @return the entries of all records in the segment, or null if there
+	 * 		is no valid hint for it.
+	 */
+	static List<Entry> read(File dir, LogSegment segment) throws IOException {
+		File file = fileFor(dir, segment.getId());
+		if (!file.isFile() || file.length() < TRAILER_SIZE) {
+			return null;
+		}
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		int end = bytes.length - TRAILER_SIZE;
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, end + 8);
+		if (buf.getInt(end + 8) != (int) crc.getValue()
+				|| buf.getLong(end) != segment.size()) {
+			return null;
+		}
+		List<Entry> entries = new ArrayList<Entry>();
+		while (buf.position() < end) {
+			if (end - buf.position() < ENTRY_HEADER_SIZE) {
+				return null;
+			}
+			long seq = buf.getLong();
+			int keyLength = buf.getInt();
+			int valueLength = buf.getInt();
+			long offset = buf.getLong();
+			if (keyLength <= 0 || keyLength > end - buf.position()) {
+				return null;
+			}
+			String key = new String(bytes, buf.position(), keyLength,
+					LogRecord.CHARSET);
+			buf.position(buf.position() + keyLength);
+			entries.add(new Entry(seq, key, keyLength, valueLength, offset));
+		}
+		return entries;
+	}
+
+	/**
+	 * Writes the hint of a sealed segment. The segment is synced first, so
+	 * that the hint never describes records that are not on disk, and the
+	 * hint only replaces an older one once it is complete. Nothing is
+	 * written if the segment has been deleted meanwhile.
+	 */
+	static void write(File dir, LogSegment segment, List<Entry> entries)
+			throws IOException {
+		File file = fileFor(dir, segment.getId());
+		File tmp = new File(dir, file.getName() + TMP_SUFFIX);
+		// Locked against LogSegment.delete, which removes the hint as well.
+		synchronized (segment) {
+			if (!segment.isOpen()) {
+				return;
+			}
+			segment.sync();
+			CRC32 crc = new CRC32();
+			FileOutputStream fileOut = new FileOutputStream(tmp);
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new CheckedOutputStream(fileOut, crc),
+							64 * 1024))) {
+				for (Entry entry : entries) {
+					byte[] key = entry.key.getBytes(LogRecord.CHARSET);
+					out.writeLong(entry.seq);
+					out.writeInt(key.length);
+					out.writeInt(entry.valueLength);
+					out.writeLong(entry.offset);
+					out.write(key);
+				}
+				out.writeLong(segment.size());
+				out.flush();
+				// Not part of what the checksum covers.
+				fileOut.write(ByteBuffer.allocate(4)
+						.putInt((int) crc.getValue()).array());
+				fileOut.getFD().sync();
+			}
+			Files.move(tmp.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	/**
+	 * Removes the hint of a segment, e.g. one that is deleted or whose id
+	 * is about to be reused.
+	 */
+	static void delete(File dir, int segmentId) throws IOException {
+		File file = fileFor(dir, segmentId);
+		if (!file.delete() && file.exists()) {
+			throw new IOException("Unable to delete hint " + file);
+		}
+	}
+}
@@ -0,0 +1,194 @@
+package storage;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Background merge of {@link KVLogStore} segments. Segments whose share of
+ * live data has dropped below a threshold get their live records copied
+ * into fresh segments, after which they are deleted. Key directory entries
+ * are swapped one at a time, so reads and writes carry on while a merge is
+ * running. Disk I/O of the merge is throttled to a fixed number of bytes
+ * per second to keep it from starving foreground requests.
+ */
+public class KVLogCompactor implements Runnable {
+
+	public static final double DEFAULT_LIVE_RATIO = 0.5;
+	public static final long DEFAULT_BYTES_PER_SECOND = 8 * 1024 * 1024;
+	public static final long DEFAULT_INTERVAL_MILLIS = 10 * 1000;
+
+	private static Logger logger = Logger.getRootLogger();
+
+	private final KVLogStore store;
+	private final double liveRatio;
+	private final long bytesPerSecond;
+	private final long intervalMillis;
+	private final Object pauseLock = new Object();
+	private volatile boolean stopped;
+	private Thread thread;
+
+	private long throttleStart;
+	private long throttleBytes;
+
+	public KVLogCompactor(KVLogStore store) {
+		this(store, DEFAULT_LIVE_RATIO, DEFAULT_BYTES_PER_SECOND,
+				DEFAULT_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * @param store the store to compact.
+	 * @param liveRatio segments with a smaller share of live data than this
+	 * 			are compacted.
+	 * @param bytesPerSecond upper bound on bytes read and written per second.
+	 * @param intervalMillis pause between two checks for candidates.
+	 */
+	public KVLogCompactor(KVLogStore store, double liveRatio,
+			long bytesPerSecond, long intervalMillis) {
+		this.store = store;
+		this.liveRatio = liveRatio;
+		this.bytesPerSecond = bytesPerSecond;
+		this.intervalMillis = intervalMillis;
+	}
+
+	/**
+	 * Starts compacting on a daemon thread.
+	 */
+	public synchronized void start() {
+		stopped = false;
+		thread = new Thread(this, "kv-compactor");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the compaction thread and waits for a merge in progress to
+	 * reach a consistent point. The thread is woken up rather than
+	 * interrupted, as an interrupt would close the segment channels it is
+	 * writing to.
+	 */
+	public synchronized void stop() {
+		synchronized (pauseLock) {
+			stopped = true;
+			pauseLock.notifyAll();
+		}
+		if (thread != null) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			thread = null;
+		}
+	}
+
+	public void run() {
+		while (!stopped) {
+			try {
+				compact();
+			} catch (IOException e) {
+				logger.error("Error! Compaction failed", e);
+			}
+			pause(intervalMillis);
+		}
+	}
+
+	/**
+	 * Runs a single merge over all current candidates.
+	 * @return number of segments that were merged away.
+	 */
+	public int compact() throws IOException {
+		List<LogSegment> batch = store.compactionCandidates(liveRatio);
+		if (batch.isEmpty()) {
+			return 0;
+		}
+		long start = System.currentTimeMillis();
+		throttleStart = System.nanoTime();
+		throttleBytes = 0;
+		long before = 0;
+		for (LogSegment segment : batch) {
+			before += segment.size();
+		}
+		List<LogSegment> merged = new ArrayList<LogSegment>(batch);
+		LogSegment output = null;
+		long written = 0;
+		for (LogSegment segment : batch) {
+			long offset = 0;
+			try (DataInputStream in = segment.openScanner()) {
+				LogRecord record;
+				while ((record = LogRecord.read(in, offset)) != null) {
+					if (stopped) {
+						// Shutting down; the segment stays as it is.
+						return 0;
+					}
+					offset += record.size();
+					throttle(record.size());
+					boolean keep = record.isTombstone()
+							? store.isTombstoneNeeded(record, merged)
+							: store.isLive(segment, record);
+					if (!keep) {
+						continue;
+					}
+					if (output == null || output.size() + record.size()
+							> store.getMaxSegmentSize()) {
+						if (output != null) {
+							output.sync();
+							store.seal(output);
+						}
+						output = store.newSegment();
+						merged.add(output);
+					}
+					long copied = output.append(record.encode());
+					output.noteSeq(record.seq);
+					written += record.size();
+					throttle(record.size());
+					if (record.isTombstone()) {
+						output.addLiveBytes(record.size());
+					} else {
+						store.relocate(segment, record, output, copied);
+					}
+				}
+			}
+			// Copies must be durable before the originals go away.
+			if (output != null) {
+				output.sync();
+			}
+			store.retire(segment);
+		}
+		if (output != null) {
+			store.seal(output);
+		}
+		logger.info("Compacted " + batch.size() + " segments from " + before
+				+ " to " + written + " bytes in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		return batch.size();
+	}
+
+	/**
+	 * Sleeps as long as needed to keep the merge at bytesPerSecond.
+	 */
+	private void throttle(int bytes) {
+		throttleBytes += bytes;
+		long due = throttleBytes * 1000000000L / bytesPerSecond;
+		long elapsed = System.nanoTime() - throttleStart;
+		if (due - elapsed > 1000000L) {
+			pause((due - elapsed) / 1000000L);
+		}
+	}
+
+	private void pause(long millis) {
+		synchronized (pauseLock) {
+			if (stopped) {
+				return;
+			}
+			try {
+				pauseLock.wait(millis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,705 @@
+package storage;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Log-structured key-value storage in the style of Bitcask. Every put and
+ * delete is appended to the active segment file; once that grows beyond
+ * the configured size a new segment is started. An in-memory key directory
+ * maps each live key to the segment, offset and length of its latest value,
+ * so a lookup costs at most one positional read and a miss none at all.
+ * The key directory is rebuilt on {@link #open()}, from the
+ * {@link HintFile}s written for sealed segments, or by scanning segments
+ * that have none.
+ * Space held by overwritten and deleted values is reclaimed by a
+ * {@link KVLogCompactor}.
+ * <p>
+ * Writes are acknowledged once they are on disk. Rather than paying an
+ * fsync per write, concurrent writers share fsyncs through a
+ * {@link GroupCommitter}; callers that hold locks of their own can split a
+ * write into {@link #write(String, String)} and {@link #awaitDurable(long)}
+ * to release them before waiting.
+ */
+public class KVLogStore implements StorageEngine {
+
+	/**
+	 * How values are read from segment files.
+	 */
+	public enum ReadMode {
+		/** One positional read per value. */
+		CHANNEL,
+		/** Values are copied out of memory mappings of the segments. */
+		MMAP
+	}
+
+	public static final long DEFAULT_MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+	public static final long DEFAULT_SYNC_DELAY_MICROS = 500;
+	public static final int DEFAULT_SYNC_BATCH_SIZE = 256;
+
+	private static Logger logger = Logger.getRootLogger();
+
+	private final File dir;
+	private final long maxSegmentSize;
+	private final GroupCommitter committer;
+
+	private final Map<String, KeyDirEntry> keyDir =
+			new ConcurrentHashMap<String, KeyDirEntry>();
+	private final Map<Integer, LogSegment> segments =
+			new ConcurrentHashMap<Integer, LogSegment>();
+	private final AtomicInteger nextSegmentId = new AtomicInteger(1);
+	private final Object writeLock = new Object();
+	private LogSegment active;
+	private long nextSeq = 1;
+	private volatile ReadMode readMode = ReadMode.CHANNEL;
+	private ExecutorService hintWriter;
+
+	public KVLogStore(String dirPath) {
+		this(dirPath, DEFAULT_MAX_SEGMENT_SIZE);
+	}
+
+	/**
+	 * @param dirPath directory holding the segment files.
+	 * @param maxSegmentSize size in bytes after which the active segment is
+	 * 			rolled over to a new one.
+	 */
+	public KVLogStore(String dirPath, long maxSegmentSize) {
+		this(dirPath, maxSegmentSize, DEFAULT_SYNC_DELAY_MICROS,
+				DEFAULT_SYNC_BATCH_SIZE);
+	}
+
+	/**
+	 * @param dirPath directory holding the segment files.
+	 * @param maxSegmentSize size in bytes after which the active segment is
+	 * 			rolled over to a new one.
+	 * @param syncDelayMicros longest time a write waits for others to share
+	 * 			its fsync.
+	 * @param syncBatchSize number of pending writes that triggers an
+	 * 			immediate fsync.
+	 */
+	public KVLogStore(String dirPath, long maxSegmentSize,
+			long syncDelayMicros, int syncBatchSize) {
+		this.dir = new File(dirPath);
+		this.maxSegmentSize = maxSegmentSize;
+		this.committer = new GroupCommitter("storage", syncDelayMicros,
+				syncBatchSize);
+	}
+
+	public void setReadMode(ReadMode readMode) {
+		this.readMode = readMode;
+	}
+
+	public ReadMode getReadMode() {
+		return readMode;
+	}
+
+	/**
+	 * Rebuilds the key directory from the segments found on disk and starts
+	 * a fresh active segment. Segments are loaded in parallel, from their
+	 * hint files where those are valid and by a full scan otherwise.
+	 * @throws IOException if the storage directory can not be read.
+	 */
+	public void open() throws IOException {
+		synchronized (writeLock) {
+			long start = System.nanoTime();
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Unable to create storage directory " + dir);
+			}
+			hintWriter = Executors.newSingleThreadExecutor(
+					daemonThreads("kv-hint-writer"));
+			List<LogSegment> found = new ArrayList<LogSegment>();
+			for (int id : listSegmentIds()) {
+				LogSegment segment = LogSegment.open(dir, id);
+				nextSegmentId.set(Math.max(nextSegmentId.get(), id + 1));
+				if (segment.size() == 0) {
+					segment.delete();
+					continue;
+				}
+				segments.put(id, segment);
+				found.add(segment);
+			}
+			long listed = System.nanoTime();
+
+			final AtomicInteger hinted = new AtomicInteger();
+			List<Callable<Long>> loads = new ArrayList<Callable<Long>>();
+			for (final LogSegment segment : found) {
+				loads.add(new Callable<Long>() {
+					public Long call() throws IOException {
+						List<HintFile.Entry> entries = HintFile.read(dir, segment);
+						if (entries != null) {
+							hinted.incrementAndGet();
+						} else {
+							entries = scan(segment, true);
+							writeHintLater(segment, entries);
+						}
+						segment.seal();
+						return index(segment, entries);
+					}
+				});
+			}
+			ExecutorService loaders = Executors.newFixedThreadPool(
+					Math.max(1, Math.min(found.size(),
+							Runtime.getRuntime().availableProcessors())),
+					daemonThreads("kv-loader"));
+			try {
+				for (Future<Long> maxSeq : loaders.invokeAll(loads)) {
+					nextSeq = Math.max(nextSeq, maxSeq.get() + 1);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while loading segments", e);
+			} catch (ExecutionException e) {
+				throw new IOException("Unable to load segment", e.getCause());
+			} finally {
+				loaders.shutdownNow();
+			}
+			long loaded = System.nanoTime();
+
+			// Tombstones were only kept to outrank older records of their key.
+			Iterator<KeyDirEntry> entries = keyDir.values().iterator();
+			while (entries.hasNext()) {
+				KeyDirEntry entry = entries.next();
+				if (entry.valueLength == LogRecord.TOMBSTONE) {
+					entries.remove();
+				} else {
+					segments.get(entry.segmentId).addLiveBytes(entry.recordSize);
+				}
+			}
+			active = newSegment();
+			committer.start();
+			long done = System.nanoTime();
+			logger.info("Opened storage at " + dir + " with " + keyDir.size()
+					+ " keys in " + segments.size() + " segments in "
+					+ millis(done - start) + " ms (listing "
+					+ millis(listed - start) + " ms, loading "
+					+ millis(loaded - listed) + " ms from " + hinted.get()
+					+ " hints and " + (found.size() - hinted.get())
+					+ " scans, indexing " + millis(done - loaded) + " ms)");
+		}
+	}
+
+	/**
+	 * @return the value stored for key, or null if there is none.
+	 */
+	public String get(String key) throws IOException {
+		while (true) {
+			KeyDirEntry entry = keyDir.get(key);
+			if (entry == null) {
+				return null;
+			}
+			LogSegment segment = segments.get(entry.segmentId);
+			try {
+				if (segment != null) {
+					return new String(read(segment, entry), LogRecord.CHARSET);
+				}
+			} catch (ClosedChannelException e) {
+				// Segment was compacted away under us, look the key up again.
+			}
+			if (keyDir.get(key) == entry) {
+				throw new IOException("Segment " + entry.segmentId
+						+ " of key '" + key + "' is gone");
+			}
+		}
+	}
+
+	/**
+	 * Looks up where the value of key is stored, so that it can be sent
+	 * elsewhere without reading it onto the heap first.
+	 * @return the stored value, or null if there is none.
+	 */
+	public StoredValue locate(String key) {
+		KeyDirEntry entry = keyDir.get(key);
+		return entry == null ? null : new SegmentValue(key, entry);
+	}
+
+	public void put(String key, String value) throws IOException {
+		awaitDurable(write(key, value));
+	}
+
+	/**
+	 * Removes key by appending a tombstone. Deleting a missing key is a no-op.
+	 */
+	public void delete(String key) throws IOException {
+		awaitDurable(write(key, null));
+	}
+
+	/**
+	 * Appends a put, or a delete if value is null, without waiting for it to
+	 * reach the disk. The write is visible to readers right away.
+	 * @return ticket to pass to {@link #awaitDurable(long)}.
+	 */
+	public long write(String key, String value) throws IOException {
+		if (value == null) {
+			synchronized (writeLock) {
+				if (!keyDir.containsKey(key)) {
+					return 0;
+				}
+				return append(key, null);
+			}
+		}
+		return append(key, value.getBytes(LogRecord.CHARSET));
+	}
+
+	/**
+	 * Blocks until the write behind ticket, and all writes before it, are
+	 * durable.
+	 * @throws IOException if the write could not be synced to disk.
+	 */
+	public void awaitDurable(long ticket) throws IOException {
+		if (ticket > 0) {
+			committer.await(ticket);
+		}
+	}
+
+	/**
+	 * @return number of fsyncs done by group commit so far.
+	 */
+	public long getSyncCount() {
+		return committer.getSyncCount();
+	}
+
+	/**
+	 * @return number of writes made durable by group commit so far.
+	 */
+	public long getSyncedWriteCount() {
+		return committer.getSyncedRecordCount();
+	}
+
+	public boolean contains(String key) {
+		return keyDir.containsKey(key);
+	}
+
+	/**
+	 * @return a live view of the stored keys.
+	 */
+	public Set<String> keys() {
+		return Collections.unmodifiableSet(keyDir.keySet());
+	}
+
+	/**
+	 * @return number of live keys.
+	 */
+	public int size() {
+		return keyDir.size();
+	}
+
+	/**
+	 * Drops every key and deletes all segment files.
+	 */
+	public void clear() throws IOException {
+		synchronized (writeLock) {
+			keyDir.clear();
+			for (LogSegment segment : segments.values()) {
+				segment.delete();
+			}
+			segments.clear();
+			active = newSegment();
+		}
+	}
+
+	public void close() {
+		committer.stop();
+		synchronized (writeLock) {
+			if (active != null && active.size() > 0) {
+				// Spares the next open a scan of the last segment.
+				active.seal();
+				writeHintLater(active);
+			}
+			if (hintWriter != null) {
+				hintWriter.shutdown();
+				try {
+					hintWriter.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			for (LogSegment segment : segments.values()) {
+				try {
+					segment.close();
+				} catch (IOException e) {
+					logger.error("Error! Unable to close segment "
+							+ segment.getFile(), e);
+				}
+			}
+		}
+	}
+
+	private long append(String key, byte[] value) throws IOException {
+		byte[] keyBytes = key.getBytes(LogRecord.CHARSET);
+		synchronized (writeLock) {
+			int recordSize = LogRecord.size(keyBytes.length,
+					value == null ? LogRecord.TOMBSTONE : value.length);
+			if (active.size() > 0 && active.size() + recordSize > maxSegmentSize) {
+				seal(active);
+				active = newSegment();
+			}
+			long seq = nextSeq++;
+			long offset = active.append(LogRecord.encode(seq, keyBytes, value));
+			active.noteSeq(seq);
+			KeyDirEntry previous;
+			if (value == null) {
+				previous = keyDir.remove(key);
+			} else {
+				active.addLiveBytes(recordSize);
+				previous = keyDir.put(key, new KeyDirEntry(active.getId(),
+						offset + LogRecord.HEADER_SIZE + keyBytes.length,
+						value.length, recordSize, seq));
+			}
+			release(previous);
+			return committer.register(active);
+		}
+	}
+
+	/**
+	 * Creates and registers a new segment with the next free id.
+	 */
+	LogSegment newSegment() throws IOException {
+		int id = nextSegmentId.getAndIncrement();
+		while (LogSegment.fileFor(dir, id).exists()) {
+			id = nextSegmentId.getAndIncrement();
+		}
+		LogSegment segment = LogSegment.create(dir, id);
+		segments.put(id, segment);
+		return segment;
+	}
+
+	/**
+	 * Marks a segment that will not be appended to anymore as complete and
+	 * has a hint file written for it in the background.
+	 */
+	void seal(LogSegment segment) {
+		segment.seal();
+		writeHintLater(segment);
+	}
+
+	long getMaxSegmentSize() {
+		return maxSegmentSize;
+	}
+
+	/**
+	 * @return all segments other than the active one whose share of live
+	 * 		data is below maxLiveRatio, oldest first.
+	 */
+	List<LogSegment> compactionCandidates(double maxLiveRatio) {
+		List<LogSegment> candidates = new ArrayList<LogSegment>();
+		// Under the write lock, so that a segment rolled in meanwhile is not
+		// mistaken for an inactive one.
+		synchronized (writeLock) {
+			for (int id : new TreeSet<Integer>(segments.keySet())) {
+				LogSegment segment = segments.get(id);
+				if (segment != null && segment != active
+						&& segment.liveRatio() < maxLiveRatio) {
+					candidates.add(segment);
+				}
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * @return true if record is still the latest value of its key.
+	 */
+	boolean isLive(LogSegment segment, LogRecord record) {
+		KeyDirEntry entry = keyDir.get(record.key);
+		return entry != null && entry.segmentId == segment.getId()
+				&& entry.valueOffset == record.valueOffset();
+	}
+
+	/**
+	 * A tombstone must be kept for as long as an older record of its key
+	 * may survive in a segment outside of the given compaction batch.
+	 */
+	boolean isTombstoneNeeded(LogRecord record, Collection<LogSegment> batch) {
+		for (LogSegment segment : segments.values()) {
+			if (!batch.contains(segment) && segment.minSeq() < record.seq) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Points the key directory at a copy of record made by the compactor.
+	 * The swap only happens if no write to the key slipped in meanwhile.
+	 * @return true if the key directory now refers to the copy.
+	 */
+	boolean relocate(LogSegment from, LogRecord record, LogSegment to,
+			long offset) {
+		KeyDirEntry expected = keyDir.get(record.key);
+		if (expected == null || expected.segmentId != from.getId()
+				|| expected.valueOffset != record.valueOffset()) {
+			return false;
+		}
+		KeyDirEntry moved = new KeyDirEntry(to.getId(),
+				offset + (record.valueOffset() - record.offset),
+				record.value.length, record.size(), record.seq);
+		to.addLiveBytes(record.size());
+		if (keyDir.replace(record.key, expected, moved)) {
+			from.addLiveBytes(-record.size());
+			return true;
+		}
+		to.addLiveBytes(-record.size());
+		return false;
+	}
+
+	/**
+	 * Deletes a segment whose live records have all been relocated.
+	 */
+	void retire(LogSegment segment) throws IOException {
+		segments.remove(segment.getId());
+		segment.delete();
+	}
+
+	private byte[] read(LogSegment segment, KeyDirEntry entry)
+			throws IOException {
+		return readMode == ReadMode.MMAP
+				? segment.readMapped(entry.valueOffset, entry.valueLength)
+				: segment.read(entry.valueOffset, entry.valueLength);
+	}
+
+	private void release(KeyDirEntry previous) {
+		if (previous != null) {
+			LogSegment segment = segments.get(previous.segmentId);
+			if (segment != null) {
+				segment.addLiveBytes(-previous.recordSize);
+			}
+		}
+	}
+
+	/**
+	 * Lists the ids of all segments on disk, removing hint files that are
+	 * partially written or whose segment is gone along the way.
+	 */
+	private List<Integer> listSegmentIds() {
+		List<Integer> ids = new ArrayList<Integer>();
+		String[] names = dir.list();
+		if (names != null) {
+			for (String name : names) {
+				int id = LogSegment.idOf(name);
+				if (id >= 0) {
+					ids.add(id);
+				} else if (HintFile.isHint(name) && (!name.endsWith(HintFile.SUFFIX)
+						|| !LogSegment.fileFor(dir, HintFile.idOf(name)).exists())) {
+					new File(dir, name).delete();
+				}
+			}
+		}
+		Collections.sort(ids);
+		return ids;
+	}
+
+	/**
+	 * Reads the records of a segment. A torn or corrupt tail, e.g. from a
+	 * crash in the middle of an append, is cut off if truncate is set.
+	 * @return hint entries for the records of the segment.
+	 * @throws IOException if the segment can not be read, or if it has a
+	 * 		bad tail that may not be truncated.
+	 */
+	private List<HintFile.Entry> scan(LogSegment segment, boolean truncate)
+			throws IOException {
+		List<HintFile.Entry> entries = new ArrayList<HintFile.Entry>();
+		long offset = 0;
+		try (DataInputStream in = segment.openScanner()) {
+			LogRecord record;
+			while ((record = LogRecord.read(in, offset)) != null) {
+				offset += record.size();
+				entries.add(new HintFile.Entry(record));
+			}
+		} catch (EOFException | LogRecord.CorruptRecordException e) {
+			if (!truncate) {
+				throw e;
+			}
+			logger.warn("Truncating segment " + segment.getFile()
+					+ " at offset " + offset + ": " + e.getMessage());
+			segment.truncate(offset);
+		}
+		return entries;
+	}
+
+	/**
+	 * Replays the records of a segment into the key directory. Records only
+	 * win over what is already known about their key if their sequence
+	 * number is higher, so segments can be replayed concurrently and in any
+	 * order. Tombstones are entered like values, to be dropped once all
+	 * segments have been replayed.
+	 * @return the highest sequence number in the segment.
+	 */
+	private long index(LogSegment segment, List<HintFile.Entry> entries) {
+		long maxSeq = 0;
+		for (HintFile.Entry record : entries) {
+			segment.noteSeq(record.seq);
+			maxSeq = Math.max(maxSeq, record.seq);
+			KeyDirEntry entry = new KeyDirEntry(segment.getId(),
+					record.valueOffset(), record.valueLength,
+					record.recordSize(), record.seq);
+			while (true) {
+				KeyDirEntry current = keyDir.putIfAbsent(record.key, entry);
+				if (current == null || current.seq > record.seq
+						|| keyDir.replace(record.key, current, entry)) {
+					break;
+				}
+			}
+		}
+		return maxSeq;
+	}
+
+	private void writeHintLater(final LogSegment segment) {
+		hintWriter.execute(new Runnable() {
+			public void run() {
+				try {
+					writeHint(segment, scan(segment, false));
+				} catch (IOException e) {
+					logHintFailure(segment, e);
+				}
+			}
+		});
+	}
+
+	private void writeHintLater(final LogSegment segment,
+			final List<HintFile.Entry> entries) {
+		hintWriter.execute(new Runnable() {
+			public void run() {
+				try {
+					writeHint(segment, entries);
+				} catch (IOException e) {
+					logHintFailure(segment, e);
+				}
+			}
+		});
+	}
+
+	private void writeHint(LogSegment segment, List<HintFile.Entry> entries)
+			throws IOException {
+		try {
+			HintFile.write(dir, segment, entries);
+		} catch (ClosedChannelException e) {
+			// Compacted away meanwhile, there is nothing left to hint.
+		}
+	}
+
+	private void logHintFailure(LogSegment segment, IOException e) {
+		logger.warn("Unable to write hint for segment " + segment.getFile()
+				+ ", it will be scanned on the next start", e);
+	}
+
+	private static ThreadFactory daemonThreads(final String name) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	private static long millis(long nanos) {
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+
+	/**
+	 * One version of a value as it sits in a segment file. If compaction
+	 * moves the value while it is being read, reading continues from the
+	 * new copy; if the key is written or deleted meanwhile, reading fails
+	 * rather than mixing two versions.
+	 */
+	private class SegmentValue implements StoredValue {
+
+		private final String key;
+		private KeyDirEntry entry;
+
+		private SegmentValue(String key, KeyDirEntry entry) {
+			this.key = key;
+			this.entry = entry;
+		}
+
+		public int getLength() {
+			return entry.valueLength;
+		}
+
+		public String read() throws IOException {
+			while (true) {
+				LogSegment segment = segments.get(entry.segmentId);
+				try {
+					if (segment != null) {
+						return new String(KVLogStore.this.read(segment, entry),
+								LogRecord.CHARSET);
+					}
+				} catch (ClosedChannelException e) {
+					// Compacted away under us, continue from the new copy.
+				}
+				follow();
+			}
+		}
+
+		/**
+		 * Writes the value to target straight from the segment file, without
+		 * copying it through the heap.
+		 */
+		public void transferTo(WritableByteChannel target) throws IOException {
+			long done = 0;
+			while (done < entry.valueLength) {
+				done += transferTo(done, target);
+			}
+		}
+
+		public long transferTo(long position, WritableByteChannel target)
+				throws IOException {
+			while (true) {
+				LogSegment segment = segments.get(entry.segmentId);
+				try {
+					if (segment != null) {
+						return segment.transferTo(entry.valueOffset + position,
+								entry.valueLength - position, target);
+					}
+				} catch (ClosedChannelException e) {
+					if (segment.isOpen()) {
+						// It was target that got closed.
+						throw e;
+					}
+				}
+				follow();
+			}
+		}
+
+		/**
+		 * Moves on to where compaction copied the value to.
+		 */
+		private void follow() throws IOException {
+			KeyDirEntry current = keyDir.get(key);
+			if (current == entry) {
+				throw new IOException("Segment " + entry.segmentId
+						+ " of key '" + key + "' is gone");
+			}
+			if (current == null || current.seq != entry.seq) {
+				throw new IOException("Value of key '" + key
+						+ "' changed while it was read");
+			}
+			entry = current;
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Background work of a {@link KVLsmStore}: flushes sealed memtables to
+ * tables and merges tables with size-tiered compaction. Whenever
+ * {@link #TIER_SIZE} tables that are adjacent in age are within a factor of
+ * {@link #SIZE_RATIO} of each other in size, they are merged into one.
+ * Tables of odd sizes can keep such runs from forming, so beyond
+ * {@link #MAX_TABLES} tables the smallest run is merged regardless. Merging
+ * only adjacent tables keeps the order in which tables shadow each other
+ * intact.
+ */
+class KVLsmCompactor implements Runnable {
+
+	static final int TIER_SIZE = 4;
+	static final double SIZE_RATIO = 2.0;
+	static final int MAX_TABLES = 16;
+	static final long INTERVAL_MILLIS = 10 * 1000;
+
+	private static Logger logger = Logger.getRootLogger();
+
+	private final KVLsmStore store;
+	private final Object pauseLock = new Object();
+	private volatile boolean stopped;
+	private boolean wakeUp;
+	private Thread thread;
+
+	KVLsmCompactor(KVLsmStore store) {
+		this.store = store;
+	}
+
+	synchronized void start() {
+		stopped = false;
+		thread = new Thread(this, "kv-lsm-compactor");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the compaction thread after the flush or merge in progress.
+	 */
+	synchronized void stop() {
+		synchronized (pauseLock) {
+			stopped = true;
+			pauseLock.notifyAll();
+		}
+		if (thread != null) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			thread = null;
+		}
+	}
+
+	/**
+	 * Asks for a flush, e.g. because a memtable was sealed.
+	 */
+	void wakeUp() {
+		synchronized (pauseLock) {
+			wakeUp = true;
+			pauseLock.notifyAll();
+		}
+	}
+
+	public void run() {
+		while (!stopped) {
+			try {
+				flushAll();
+				compact();
+			} catch (IOException e) {
+				logger.error("Error! LSM compaction failed", e);
+			}
+			synchronized (pauseLock) {
+				if (!wakeUp && !stopped) {
+					try {
+						pauseLock.wait(INTERVAL_MILLIS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				wakeUp = false;
+			}
+		}
+	}
+
+	/**
+	 * Flushes all sealed memtables, oldest first.
+	 */
+	void flushAll() throws IOException {
+		synchronized (store.maintenanceLock) {
+			while (!stopped) {
+				List<MemTable> memTables = store.current().memTables;
+				if (memTables.size() < 2) {
+					return;
+				}
+				flush(memTables.get(memTables.size() - 1));
+			}
+		}
+	}
+
+	/**
+	 * Runs merges until no run of tables is due anymore.
+	 * @return number of tables that were merged away.
+	 */
+	int compact() throws IOException {
+		int merged = 0;
+		synchronized (store.maintenanceLock) {
+			List<SSTable> run;
+			while (!stopped && (run = dueRun(store.current().tables)) != null) {
+				merge(run, store.current().tables);
+				merged += run.size();
+			}
+		}
+		return merged;
+	}
+
+	private void flush(MemTable memTable) throws IOException {
+		long start = System.currentTimeMillis();
+		SSTableWriter writer = new SSTableWriter(store.getDir(), memTable.getId());
+		try {
+			for (Map.Entry<String, byte[]> entry : memTable.entries().entrySet()) {
+				writer.add(entry.getKey(), entry.getValue());
+			}
+			writer.finish(memTable.getId(), memTable.getId());
+		} catch (IOException | RuntimeException e) {
+			writer.abort();
+			throw e;
+		}
+		SSTable table = SSTable.open(store.getDir(), memTable.getId());
+		store.flushed(memTable, table);
+		logger.info("Flushed memtable " + memTable.getId() + " with "
+				+ writer.entryCount() + " entries to " + table.size()
+				+ " bytes in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * @param tables all tables, newest first.
+	 * @return the newest run of TIER_SIZE adjacent tables of similar size,
+	 * 		or the smallest run if there are too many tables, or null if no
+	 * 		merge is due.
+	 */
+	static List<SSTable> dueRun(List<SSTable> tables) {
+		int smallest = -1;
+		long smallestTotal = Long.MAX_VALUE;
+		for (int i = 0; i + TIER_SIZE <= tables.size(); i++) {
+			long min = Long.MAX_VALUE;
+			long max = 0;
+			long total = 0;
+			for (int j = i; j < i + TIER_SIZE; j++) {
+				min = Math.min(min, tables.get(j).size());
+				max = Math.max(max, tables.get(j).size());
+				total += tables.get(j).size();
+			}
+			if (max <= SIZE_RATIO * min) {
+				return new ArrayList<SSTable>(tables.subList(i, i + TIER_SIZE));
+			}
+			if (total < smallestTotal) {
+				smallest = i;
+				smallestTotal = total;
+			}
+		}
+		if (tables.size() > MAX_TABLES) {
+			return new ArrayList<SSTable>(tables.subList(smallest,
+					smallest + TIER_SIZE));
+		}
+		return null;
+	}
+
+	/**
+	 * Merges a run of adjacent tables, keeping the newest entry of each
+	 * key. Tombstones are dropped if no older table remains that they would
+	 * have to shadow.
+	 */
+	private void merge(List<SSTable> run, List<SSTable> tables)
+			throws IOException {
+		long start = System.currentTimeMillis();
+		boolean bottom = tables.get(tables.size() - 1) == run.get(run.size() - 1);
+		PriorityQueue<Source> queue = new PriorityQueue<Source>();
+		long before = 0;
+		long minMemTableId = Long.MAX_VALUE;
+		long maxMemTableId = 0;
+		for (int age = 0; age < run.size(); age++) {
+			SSTable table = run.get(age);
+			before += table.size();
+			minMemTableId = Math.min(minMemTableId, table.minMemTableId());
+			maxMemTableId = Math.max(maxMemTableId, table.maxMemTableId());
+			Source source = new Source(table.cursor(), age);
+			if (source.advance()) {
+				queue.add(source);
+			}
+		}
+		int id = store.newTableId();
+		SSTableWriter writer = new SSTableWriter(store.getDir(), id);
+		try {
+			String lastKey = null;
+			while (!queue.isEmpty()) {
+				if (stopped) {
+					writer.abort();
+					return;
+				}
+				Source source = queue.poll();
+				String key = source.cursor.key();
+				// The newest table comes first among equal keys.
+				if (!key.equals(lastKey)) {
+					lastKey = key;
+					byte[] value = source.cursor.value();
+					if (value != KVLsmStore.TOMBSTONE || !bottom) {
+						writer.add(key, value);
+					}
+				}
+				if (source.advance()) {
+					queue.add(source);
+				}
+			}
+			if (writer.entryCount() == 0) {
+				writer.abort();
+				store.merged(run, null);
+				return;
+			}
+			writer.finish(minMemTableId, maxMemTableId);
+		} catch (IOException | RuntimeException e) {
+			writer.abort();
+			throw e;
+		}
+		SSTable output = SSTable.open(store.getDir(), id);
+		store.merged(run, output);
+		logger.info("Merged " + run.size() + " tables from " + before
+				+ " to " + output.size() + " bytes in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * One input of a merge, ordered by its current key and then by age.
+	 */
+	private static final class Source implements Comparable<Source> {
+
+		final SSTable.Cursor cursor;
+		final int age;
+
+		Source(SSTable.Cursor cursor, int age) {
+			this.cursor = cursor;
+			this.age = age;
+		}
+
+		boolean advance() throws IOException {
+			return cursor.next();
+		}
+
+		public int compareTo(Source other) {
+			int cmp = cursor.key().compareTo(other.cursor.key());
+			return cmp != 0 ? cmp : Integer.compare(age, other.age);
+		}
+	}
+}
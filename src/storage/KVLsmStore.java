@@ -0,0 +1,492 @@
+package storage;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Log-structured merge-tree storage for write-heavy workloads. Writes are
+ * appended to the write-ahead log of the active {@link MemTable} and then
+ * entered into it. A memtable that has grown beyond the configured size is
+ * sealed, replaced by a fresh one and flushed to an immutable, sorted
+ * {@link SSTable} in the background, after which its log is deleted. Runs
+ * of tables of similar size are merged by a {@link KVLsmCompactor}, which
+ * keeps the number of tables a lookup has to consult low.
+ * <p>
+ * Lookups consult the memtables and then the tables, newest first, and
+ * stop at the first one that knows the key. Deletes are written as
+ * tombstones, which shadow older values until a merge that reaches the
+ * oldest table drops both. Readers never lock: they work on an immutable
+ * {@link Version} of the memtables and tables, which writers and the
+ * compactor replace as a whole.
+ * <p>
+ * Like {@link KVLogStore}, writes are made durable by fsyncs shared through
+ * a {@link GroupCommitter}.
+ */
+public class KVLsmStore implements StorageEngine {
+
+	/** Marks a deleted key in memtables and tables. Compared by identity. */
+	static final byte[] TOMBSTONE = new byte[0];
+
+	public static final long DEFAULT_MEMTABLE_SIZE = 4 * 1024 * 1024;
+	/** Sealed memtables allowed to wait for a flush before writers block. */
+	static final int MAX_SEALED_MEMTABLES = 2;
+	static final String WAL_DIR = "wal";
+
+	private static Logger logger = Logger.getRootLogger();
+
+	private final File dir;
+	private final File walDir;
+	private final long memTableSize;
+	private final GroupCommitter committer;
+	private final KVLsmCompactor compactor;
+
+	private final Object writeLock = new Object();
+	/** Held while tables are flushed or merged, and by clear(). */
+	final Object maintenanceLock = new Object();
+	private volatile Version current;
+	private int nextId = 1;
+	private long nextSeq = 1;
+	private boolean closed;
+
+	/**
+	 * The memtables and tables making up the store at one point in time,
+	 * newest first. The first memtable is the one taking writes.
+	 */
+	static final class Version {
+
+		final List<MemTable> memTables;
+		final List<SSTable> tables;
+
+		Version(List<MemTable> memTables, List<SSTable> tables) {
+			this.memTables = Collections.unmodifiableList(memTables);
+			this.tables = Collections.unmodifiableList(tables);
+		}
+	}
+
+	public KVLsmStore(String dirPath) {
+		this(dirPath, DEFAULT_MEMTABLE_SIZE, KVLogStore.DEFAULT_SYNC_DELAY_MICROS,
+				KVLogStore.DEFAULT_SYNC_BATCH_SIZE);
+	}
+
+	/**
+	 * @param dirPath directory holding the tables and logs.
+	 * @param memTableSize size in bytes after which a memtable is flushed.
+	 * @param syncDelayMicros longest time a write waits for others to share
+	 * 			its fsync.
+	 * @param syncBatchSize number of pending writes that triggers an
+	 * 			immediate fsync.
+	 */
+	public KVLsmStore(String dirPath, long memTableSize, long syncDelayMicros,
+			int syncBatchSize) {
+		this.dir = new File(dirPath);
+		this.walDir = new File(dir, WAL_DIR);
+		this.memTableSize = memTableSize;
+		this.committer = new GroupCommitter("lsm-wal", syncDelayMicros,
+				syncBatchSize);
+		this.compactor = new KVLsmCompactor(this);
+	}
+
+	/**
+	 * Opens the tables on disk and replays the write-ahead logs of
+	 * memtables that were not flushed yet.
+	 */
+	public void open() throws IOException {
+		synchronized (writeLock) {
+			long start = System.nanoTime();
+			if (!walDir.isDirectory() && !walDir.mkdirs()) {
+				throw new IOException("Unable to create storage directory " + walDir);
+			}
+			List<SSTable> tables = new ArrayList<SSTable>();
+			String[] names = dir.list();
+			for (String name : names == null ? new String[0] : names) {
+				int id = SSTable.idOf(name);
+				if (id >= 0) {
+					tables.add(SSTable.open(dir, id));
+					nextId = Math.max(nextId, id + 1);
+				} else if (name.endsWith(SSTable.TMP_SUFFIX)) {
+					new File(dir, name).delete();
+				}
+			}
+			tables = dropMerged(tables);
+			Collections.sort(tables, NEWEST_FIRST);
+			long flushedId = 0;
+			for (SSTable table : tables) {
+				flushedId = Math.max(flushedId, table.maxMemTableId());
+				nextId = (int) Math.max(nextId, table.maxMemTableId() + 1);
+			}
+
+			List<MemTable> memTables = new ArrayList<MemTable>();
+			List<Integer> walIds = new ArrayList<Integer>();
+			names = walDir.list();
+			for (String name : names == null ? new String[0] : names) {
+				int id = LogSegment.idOf(name);
+				if (id >= 0) {
+					walIds.add(id);
+				}
+			}
+			Collections.sort(walIds, Collections.reverseOrder());
+			for (int id : walIds) {
+				nextId = Math.max(nextId, id + 1);
+				LogSegment wal = LogSegment.open(walDir, id);
+				if (id <= flushedId || wal.size() == 0) {
+					// Flushed already, the log just was not deleted yet.
+					wal.delete();
+					continue;
+				}
+				MemTable memTable = new MemTable(id, wal);
+				replay(memTable);
+				memTables.add(memTable);
+			}
+			memTables.add(0, newMemTable());
+			current = new Version(memTables, tables);
+			closed = false;
+			committer.start();
+			compactor.start();
+			logger.info("Opened LSM storage at " + dir + " with "
+					+ tables.size() + " tables and " + (memTables.size() - 1)
+					+ " logs to flush in "
+					+ (System.nanoTime() - start) / 1000000 + " ms");
+		}
+	}
+
+	public String get(String key) throws IOException {
+		byte[] value = lookup(key);
+		return value == null ? null : new String(value, LogRecord.CHARSET);
+	}
+
+	/**
+	 * Values of this engine are read onto the heap before they are sent.
+	 */
+	public StoredValue locate(String key) throws IOException {
+		byte[] value = lookup(key);
+		return value == null ? null : new HeapStoredValue(value);
+	}
+
+	public boolean contains(String key) throws IOException {
+		return lookup(key) != null;
+	}
+
+	public void put(String key, String value) throws IOException {
+		awaitDurable(write(key, value));
+	}
+
+	public void delete(String key) throws IOException {
+		awaitDurable(write(key, null));
+	}
+
+	/**
+	 * Logs and applies a put, or a delete if value is null. Blocks while
+	 * the flushes lag too far behind.
+	 */
+	public long write(String key, String value) throws IOException {
+		byte[] keyBytes = key.getBytes(LogRecord.CHARSET);
+		byte[] valueBytes = value == null ? null : value.getBytes(LogRecord.CHARSET);
+		synchronized (writeLock) {
+			while (current.memTables.size() > MAX_SEALED_MEMTABLES + 1 && !closed) {
+				try {
+					writeLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for a flush");
+				}
+			}
+			if (closed) {
+				throw new IOException("Storage at " + dir + " is closed");
+			}
+			MemTable memTable = current.memTables.get(0);
+			memTable.getWal().append(LogRecord.encode(nextSeq++, keyBytes, valueBytes));
+			memTable.put(key, valueBytes == null ? TOMBSTONE : valueBytes);
+			long ticket = committer.register(memTable.getWal());
+			if (memTable.bytes() >= memTableSize) {
+				seal();
+			}
+			return ticket;
+		}
+	}
+
+	public void awaitDurable(long ticket) throws IOException {
+		if (ticket > 0) {
+			committer.await(ticket);
+		}
+	}
+
+	/**
+	 * Collects the live keys by replaying every table and memtable, which
+	 * is only meant to be done rarely, e.g. at startup.
+	 */
+	public Collection<String> keys() throws IOException {
+		while (true) {
+			Version version = current;
+			Set<String> keys = new HashSet<String>();
+			try {
+				for (int i = version.tables.size() - 1; i >= 0; i--) {
+					SSTable.Cursor cursor = version.tables.get(i).cursor();
+					while (cursor.next()) {
+						apply(keys, cursor.key(), cursor.value());
+					}
+				}
+			} catch (ClosedChannelException e) {
+				if (current == version) {
+					throw e;
+				}
+				continue;
+			}
+			for (int i = version.memTables.size() - 1; i >= 0; i--) {
+				for (Map.Entry<String, byte[]> entry
+						: version.memTables.get(i).entries().entrySet()) {
+					apply(keys, entry.getKey(), entry.getValue());
+				}
+			}
+			return Collections.unmodifiableSet(keys);
+		}
+	}
+
+	/**
+	 * Counts the live keys, which takes as long as {@link #keys()}.
+	 */
+	public int size() throws IOException {
+		return keys().size();
+	}
+
+	/**
+	 * Seals the active memtable and flushes all sealed memtables right away.
+	 */
+	public void flush() throws IOException {
+		synchronized (writeLock) {
+			if (!current.memTables.get(0).isEmpty()) {
+				seal();
+			}
+		}
+		compactor.flushAll();
+	}
+
+	/**
+	 * Runs all due merges right away.
+	 * @return number of tables that were merged away.
+	 */
+	public int compact() throws IOException {
+		return compactor.compact();
+	}
+
+	/**
+	 * @return number of tables on disk.
+	 */
+	public int getTableCount() {
+		return current.tables.size();
+	}
+
+	public void clear() throws IOException {
+		synchronized (maintenanceLock) {
+			synchronized (writeLock) {
+				Version version = current;
+				for (MemTable memTable : version.memTables) {
+					memTable.deleteWal();
+				}
+				for (SSTable table : version.tables) {
+					table.delete();
+				}
+				List<MemTable> memTables = new ArrayList<MemTable>();
+				memTables.add(newMemTable());
+				current = new Version(memTables, new ArrayList<SSTable>());
+				writeLock.notifyAll();
+			}
+		}
+	}
+
+	public void close() {
+		compactor.stop();
+		committer.stop();
+		synchronized (writeLock) {
+			closed = true;
+			writeLock.notifyAll();
+			Version version = current;
+			if (version == null) {
+				return;
+			}
+			try {
+				for (MemTable memTable : version.memTables) {
+					memTable.getWal().close();
+				}
+				for (SSTable table : version.tables) {
+					table.close();
+				}
+			} catch (IOException e) {
+				logger.error("Error! Unable to close storage at " + dir, e);
+			}
+		}
+	}
+
+	Version current() {
+		return current;
+	}
+
+	File getDir() {
+		return dir;
+	}
+
+	/**
+	 * Reserves an id for a merged table.
+	 */
+	int newTableId() {
+		synchronized (writeLock) {
+			return nextId++;
+		}
+	}
+
+	/**
+	 * Replaces a sealed memtable with the table it was flushed to.
+	 */
+	void flushed(MemTable memTable, SSTable table) throws IOException {
+		synchronized (writeLock) {
+			List<MemTable> memTables = new ArrayList<MemTable>(current.memTables);
+			memTables.remove(memTable);
+			List<SSTable> tables = new ArrayList<SSTable>(current.tables);
+			tables.add(table);
+			Collections.sort(tables, NEWEST_FIRST);
+			current = new Version(memTables, tables);
+			writeLock.notifyAll();
+		}
+		memTable.deleteWal();
+	}
+
+	/**
+	 * Replaces merged tables with their merge, which may be null if
+	 * nothing survived the merge. Readers still holding on to the old
+	 * tables retry on the new version.
+	 */
+	void merged(List<SSTable> inputs, SSTable output) throws IOException {
+		synchronized (writeLock) {
+			List<SSTable> tables = new ArrayList<SSTable>(current.tables);
+			tables.removeAll(inputs);
+			if (output != null) {
+				tables.add(output);
+			}
+			Collections.sort(tables, NEWEST_FIRST);
+			current = new Version(new ArrayList<MemTable>(current.memTables),
+					tables);
+		}
+		for (SSTable table : inputs) {
+			table.delete();
+		}
+	}
+
+	/**
+	 * @return the newest value, or {@link #TOMBSTONE}, known for key, or
+	 * 		null if the key is not stored. Tombstones are turned into null.
+	 */
+	private byte[] lookup(String key) throws IOException {
+		while (true) {
+			Version version = current;
+			try {
+				byte[] value = null;
+				for (MemTable memTable : version.memTables) {
+					value = memTable.get(key);
+					if (value != null) {
+						break;
+					}
+				}
+				if (value == null) {
+					for (SSTable table : version.tables) {
+						value = table.get(key);
+						if (value != null) {
+							break;
+						}
+					}
+				}
+				return value == TOMBSTONE ? null : value;
+			} catch (ClosedChannelException e) {
+				// Table was merged away under us, look the key up again.
+				if (current == version) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Starts a new active memtable and hands the old one to the compactor.
+	 * Called under the write lock.
+	 */
+	private void seal() throws IOException {
+		List<MemTable> memTables = new ArrayList<MemTable>(current.memTables);
+		memTables.add(0, newMemTable());
+		current = new Version(memTables, new ArrayList<SSTable>(current.tables));
+		compactor.wakeUp();
+	}
+
+	private MemTable newMemTable() throws IOException {
+		int id = nextId++;
+		return new MemTable(id, LogSegment.create(walDir, id));
+	}
+
+	/**
+	 * Rebuilds a memtable from its log, cutting off a torn tail.
+	 */
+	private void replay(MemTable memTable) throws IOException {
+		LogSegment wal = memTable.getWal();
+		long offset = 0;
+		try (DataInputStream in = wal.openScanner()) {
+			LogRecord record;
+			while ((record = LogRecord.read(in, offset)) != null) {
+				offset += record.size();
+				nextSeq = Math.max(nextSeq, record.seq + 1);
+				memTable.put(record.key,
+						record.isTombstone() ? TOMBSTONE : record.value);
+			}
+		} catch (EOFException | LogRecord.CorruptRecordException e) {
+			logger.warn("Truncating log " + wal.getFile() + " at offset "
+					+ offset + ": " + e.getMessage());
+			wal.truncate(offset);
+		}
+	}
+
+	/**
+	 * Deletes tables left behind by a merge that was interrupted after its
+	 * output was complete.
+	 */
+	private static List<SSTable> dropMerged(List<SSTable> tables)
+			throws IOException {
+		List<SSTable> kept = new ArrayList<SSTable>();
+		for (SSTable table : tables) {
+			boolean covered = false;
+			for (SSTable other : tables) {
+				covered |= table.isCoveredBy(other);
+			}
+			if (covered) {
+				logger.info("Deleting merged table " + table.getFile());
+				table.delete();
+			} else {
+				kept.add(table);
+			}
+		}
+		return kept;
+	}
+
+	private static void apply(Set<String> keys, String key, byte[] value) {
+		if (value == TOMBSTONE) {
+			keys.remove(key);
+		} else {
+			keys.add(key);
+		}
+	}
+
+	static final Comparator<SSTable> NEWEST_FIRST = new Comparator<SSTable>() {
+		public int compare(SSTable a, SSTable b) {
+			return Long.compare(b.maxMemTableId(), a.maxMemTableId());
+		}
+	};
+}
@@ -0,0 +1,337 @@
+package storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Storage that lives in memory only, for data that may be lost on a crash
+ * in exchange for throughput. Writes never touch the disk; instead a
+ * background thread periodically writes a point-in-time snapshot of all
+ * keys, which is loaded again on {@link #open()}. Whatever was written
+ * since the last snapshot is lost on a crash, but not on {@link #close()},
+ * which takes a final snapshot.
+ * <p>
+ * Snapshots do not block writers. Every write gets a sequence number, and
+ * while a snapshot is being taken, a write keeps the version it replaces
+ * reachable from the new one. The snapshot then writes, for each key, the
+ * newest version no newer than the sequence number it started at. Deletes
+ * during a snapshot leave a tombstone behind for the same reason. Both are
+ * cleaned up once the snapshot is complete.
+ */
+public class KVMemoryStore implements StorageEngine {
+
+	public static final long DEFAULT_SNAPSHOT_INTERVAL_MILLIS = 60 * 1000;
+	static final String SNAPSHOT_FILE = "memory.snapshot";
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private static Logger logger = Logger.getRootLogger();
+
+	private final File dir;
+	private final long snapshotIntervalMillis;
+	private final Map<String, Version> entries =
+			new ConcurrentHashMap<String, Version>();
+	private final AtomicLong nextSeq = new AtomicLong(1);
+	/**
+	 * Shared by writers, exclusive while a snapshot picks its sequence
+	 * number, so that no write straddles the start of a snapshot.
+	 */
+	private final ReadWriteLock snapshotStart = new ReentrantReadWriteLock();
+	/** Serializes snapshots with each other and with clear(). */
+	private final Object snapshotLock = new Object();
+	private final Object pauseLock = new Object();
+	private volatile boolean snapshotting;
+	private volatile boolean stopped;
+	private Thread thread;
+
+	/**
+	 * One version of the value of a key, null for a tombstone.
+	 */
+	private static final class Version {
+
+		final String value;
+		final long seq;
+		volatile Version previous;
+
+		Version(String value, long seq, Version previous) {
+			this.value = value;
+			this.seq = seq;
+			this.previous = previous;
+		}
+	}
+
+	public KVMemoryStore(String dirPath) {
+		this(dirPath, DEFAULT_SNAPSHOT_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * @param dirPath directory holding the snapshot.
+	 * @param snapshotIntervalMillis pause between two snapshots, 0 to only
+	 * 			take one on close.
+	 */
+	public KVMemoryStore(String dirPath, long snapshotIntervalMillis) {
+		this.dir = new File(dirPath);
+		this.snapshotIntervalMillis = snapshotIntervalMillis;
+	}
+
+	/**
+	 * Loads the latest snapshot and starts taking new ones.
+	 */
+	public void open() throws IOException {
+		long start = System.currentTimeMillis();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create storage directory " + dir);
+		}
+		File file = new File(dir, SNAPSHOT_FILE);
+		if (file.isFile()) {
+			long offset = 0;
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file), 64 * 1024))) {
+				LogRecord record;
+				while ((record = LogRecord.read(in, offset)) != null) {
+					offset += record.size();
+					entries.put(record.key, new Version(
+							new String(record.value, LogRecord.CHARSET),
+							record.seq, null));
+					nextSeq.set(Math.max(nextSeq.get(), record.seq + 1));
+				}
+			} catch (EOFException | LogRecord.CorruptRecordException e) {
+				// Snapshots are renamed into place once complete, so this is
+				// damage rather than a crash mid-write.
+				throw new IOException("Corrupt snapshot " + file + " at offset "
+						+ offset, e);
+			}
+		}
+		new File(dir, SNAPSHOT_FILE + TMP_SUFFIX).delete();
+		if (snapshotIntervalMillis > 0) {
+			stopped = false;
+			thread = new Thread(new Runnable() {
+				public void run() {
+					snapshotPeriodically();
+				}
+			}, "kv-snapshotter");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		logger.info("Opened in-memory storage with " + entries.size()
+				+ " keys from " + file + " in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	public String get(String key) {
+		Version version = entries.get(key);
+		return version == null ? null : version.value;
+	}
+
+	public StoredValue locate(String key) {
+		String value = get(key);
+		return value == null ? null
+				: new HeapStoredValue(value.getBytes(LogRecord.CHARSET));
+	}
+
+	public boolean contains(String key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * Applies a put, or a delete if value is null. Writes are not durable
+	 * until the next snapshot, so the ticket is always 0.
+	 */
+	public long write(String key, String value) {
+		snapshotStart.readLock().lock();
+		try {
+			while (true) {
+				Version current = entries.get(key);
+				if (value == null && current == null) {
+					return 0;
+				}
+				long seq = nextSeq.getAndIncrement();
+				// Only a running snapshot may still need the replaced version.
+				boolean keep = snapshotting && current != null;
+				if (value == null && !keep) {
+					if (entries.remove(key, current)) {
+						return 0;
+					}
+					continue;
+				}
+				Version version = new Version(value, seq, keep ? current : null);
+				if (current == null ? entries.putIfAbsent(key, version) == null
+						: entries.replace(key, current, version)) {
+					return 0;
+				}
+			}
+		} finally {
+			snapshotStart.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Writes are never waited for.
+	 */
+	public void awaitDurable(long ticket) {
+	}
+
+	public Collection<String> keys() {
+		List<String> keys = new ArrayList<String>(entries.size());
+		for (Map.Entry<String, Version> entry : entries.entrySet()) {
+			if (entry.getValue().value != null) {
+				keys.add(entry.getKey());
+			}
+		}
+		return Collections.unmodifiableList(keys);
+	}
+
+	public int size() {
+		return keys().size();
+	}
+
+	/**
+	 * Writes a snapshot of all keys as of now. Writers carry on meanwhile.
+	 */
+	public void snapshot() throws IOException {
+		synchronized (snapshotLock) {
+			long start = System.currentTimeMillis();
+			long snapshotSeq;
+			snapshotStart.writeLock().lock();
+			try {
+				snapshotting = true;
+				snapshotSeq = nextSeq.get() - 1;
+			} finally {
+				snapshotStart.writeLock().unlock();
+			}
+			File file = new File(dir, SNAPSHOT_FILE);
+			File tmp = new File(dir, SNAPSHOT_FILE + TMP_SUFFIX);
+			long keys = 0;
+			try {
+				FileOutputStream fileOut = new FileOutputStream(tmp);
+				try (OutputStream out = new BufferedOutputStream(fileOut,
+						64 * 1024)) {
+					for (Map.Entry<String, Version> entry : entries.entrySet()) {
+						Version version = entry.getValue();
+						while (version != null && version.seq > snapshotSeq) {
+							version = version.previous;
+						}
+						if (version != null && version.value != null) {
+							ByteBuffer record = LogRecord.encode(version.seq,
+									entry.getKey().getBytes(LogRecord.CHARSET),
+									version.value.getBytes(LogRecord.CHARSET));
+							out.write(record.array(), record.position(),
+									record.remaining());
+							keys++;
+						}
+					}
+					out.flush();
+					fileOut.getFD().sync();
+				}
+				Files.move(tmp.toPath(), file.toPath(),
+						StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				snapshotStart.writeLock().lock();
+				try {
+					snapshotting = false;
+				} finally {
+					snapshotStart.writeLock().unlock();
+				}
+				prune();
+			}
+			logger.info("Wrote snapshot of " + keys + " keys to " + file
+					+ " in " + (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+
+	public void clear() throws IOException {
+		synchronized (snapshotLock) {
+			snapshotStart.writeLock().lock();
+			try {
+				entries.clear();
+			} finally {
+				snapshotStart.writeLock().unlock();
+			}
+			File file = new File(dir, SNAPSHOT_FILE);
+			if (!file.delete() && file.exists()) {
+				throw new IOException("Unable to delete snapshot " + file);
+			}
+		}
+	}
+
+	/**
+	 * Stops the snapshot thread and takes a last snapshot.
+	 */
+	public void close() {
+		synchronized (pauseLock) {
+			stopped = true;
+			pauseLock.notifyAll();
+		}
+		if (thread != null) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			thread = null;
+		}
+		try {
+			snapshot();
+		} catch (IOException e) {
+			logger.error("Error! Unable to write snapshot to " + dir, e);
+		}
+	}
+
+	private void snapshotPeriodically() {
+		while (true) {
+			synchronized (pauseLock) {
+				if (stopped) {
+					return;
+				}
+				try {
+					pauseLock.wait(snapshotIntervalMillis);
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (stopped) {
+					return;
+				}
+			}
+			try {
+				snapshot();
+			} catch (IOException e) {
+				logger.error("Error! Unable to write snapshot to " + dir, e);
+			}
+		}
+	}
+
+	/**
+	 * Drops the versions and tombstones kept for a snapshot that is done.
+	 */
+	private void prune() {
+		for (Map.Entry<String, Version> entry : entries.entrySet()) {
+			Version version = entry.getValue();
+			if (version.value == null) {
+				entries.remove(entry.getKey(), version);
+			} else {
+				version.previous = null;
+			}
+		}
+	}
+}
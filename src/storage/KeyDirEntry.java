@@ -0,0 +1,24 @@
+package storage;
+
+/**
+ * Location of the latest value of a key: the segment holding it and the
+ * position and length of the value bytes within that segment, along with
+ * the sequence number and on-disk size of the record.
+ */
+final class KeyDirEntry {
+
+	final int segmentId;
+	final long valueOffset;
+	final int valueLength;
+	final int recordSize;
+	final long seq;
+
+	KeyDirEntry(int segmentId, long valueOffset, int valueLength,
+			int recordSize, long seq) {
+		this.segmentId = segmentId;
+		this.valueOffset = valueOffset;
+		this.valueLength = valueLength;
+		this.recordSize = recordSize;
+		this.seq = seq;
+	}
+}
@@ -0,0 +1,152 @@
+package storage;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * A single entry of a log segment. On disk a record is laid out as
+ * <pre>
+ *   crc (4) | seq (8) | key length (4) | value length (4) | key | value
+ * </pre>
+ * where the CRC covers everything after itself and a value length of
+ * {@link #TOMBSTONE} marks a deleted key. The sequence number orders writes
+ * to the same key independently of the segment they ended up in, which
+ * lets compaction move records into new segments.
+ */
+final class LogRecord {
+
+	static final Charset CHARSET = Charset.forName("UTF-8");
+	static final int HEADER_SIZE = 20;
+	static final int TOMBSTONE = -1;
+	static final int MAX_KEY_LENGTH = 1024;
+	static final int MAX_VALUE_LENGTH = 16 * 1024 * 1024;
+
+	final long seq;
+	final String key;
+	final byte[] value;
+	final long offset;
+	private final int keyLength;
+
+	private LogRecord(long seq, String key, int keyLength, byte[] value,
+			long offset) {
+		this.seq = seq;
+		this.key = key;
+		this.keyLength = keyLength;
+		this.value = value;
+		this.offset = offset;
+	}
+
+	boolean isTombstone() {
+		return value == null;
+	}
+
+	/**
+	 * @return total number of bytes the record occupies in its segment.
+	 */
+	int size() {
+		return size(keyLength, value == null ? TOMBSTONE : value.length);
+	}
+
+	int keyLength() {
+		return keyLength;
+	}
+
+	/**
+	 * @return offset of the first value byte within the segment.
+	 */
+	long valueOffset() {
+		return offset + HEADER_SIZE + keyLength;
+	}
+
+	static int size(int keyLength, int valueLength) {
+		return HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+	}
+
+	/**
+	 * Encodes a record ready to be appended to a segment.
+	 * @param value the value bytes, or null to encode a tombstone.
+	 */
+	static ByteBuffer encode(long seq, byte[] key, byte[] value) {
+		int valueLength = value == null ? TOMBSTONE : value.length;
+		ByteBuffer buf = ByteBuffer.allocate(size(key.length, valueLength));
+		buf.putInt(0);
+		buf.putLong(seq);
+		buf.putInt(key.length);
+		buf.putInt(valueLength);
+		buf.put(key);
+		if (value != null) {
+			buf.put(value);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(buf.array(), 4, buf.position() - 4);
+		buf.putInt(0, (int) crc.getValue());
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Re-encodes a record read from one segment for appending to another.
+	 */
+	ByteBuffer encode() {
+		return encode(seq, key.getBytes(CHARSET), value);
+	}
+
+	/**
+	 * Reads the next record from a sequential segment scan.
+	 * @param offset position of the record within the segment.
+	 * @return the record, or null if the end of the segment is reached.
+	 * @throws EOFException if the record is truncated.
+	 * @throws CorruptRecordException if the record fails its checksum.
+	 */
+	static LogRecord read(DataInputStream in, long offset) throws IOException {
+		int crcValue;
+		try {
+			crcValue = in.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+		long seq = in.readLong();
+		int keyLength = in.readInt();
+		int valueLength = in.readInt();
+		if (keyLength <= 0 || keyLength > MAX_KEY_LENGTH
+				|| valueLength < TOMBSTONE || valueLength > MAX_VALUE_LENGTH) {
+			throw new CorruptRecordException("Corrupt record header at offset " + offset);
+		}
+		byte[] keyBytes = new byte[keyLength];
+		in.readFully(keyBytes);
+		byte[] value = null;
+		if (valueLength != TOMBSTONE) {
+			value = new byte[valueLength];
+			in.readFully(value);
+		}
+		CRC32 crc = new CRC32();
+		ByteBuffer fields = ByteBuffer.allocate(HEADER_SIZE - 4);
+		fields.putLong(seq).putInt(keyLength).putInt(valueLength);
+		crc.update(fields.array());
+		crc.update(keyBytes);
+		if (value != null) {
+			crc.update(value);
+		}
+		if ((int) crc.getValue() != crcValue) {
+			throw new CorruptRecordException("Checksum mismatch for record at offset " + offset);
+		}
+		return new LogRecord(seq, new String(keyBytes, CHARSET), keyLength, value,
+				offset);
+	}
+
+	/**
+	 * Signals a record whose header or checksum does not add up.
+	 */
+	static class CorruptRecordException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		CorruptRecordException(String message) {
+			super(message);
+		}
+	}
+}
@@ -0,0 +1,268 @@
+package storage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One append-only data file of a {@link KVLogStore}. Only the active segment
+ * is ever appended to; all reads are positional so that any number of
+ * threads can read from a segment concurrently. Values can either be read
+ * with one positional read each, or be copied out of a read-only memory
+ * mapping of the segment.
+ */
+class LogSegment implements GroupCommitter.Syncable {
+
+	static final String SUFFIX = ".data";
+	/**
+	 * A segment that is still growing is only remapped once it outgrew its
+	 * mapping by this much; reads of the unmapped tail fall back to
+	 * positional reads until then.
+	 */
+	static final long REMAP_STEP = 1024 * 1024;
+
+	private final int id;
+	private final File file;
+	private final FileChannel channel;
+	private volatile long size;
+	private volatile long minSeq = Long.MAX_VALUE;
+	private volatile boolean sealed;
+	private volatile MappedByteBuffer mapped;
+	private final AtomicLong liveBytes = new AtomicLong();
+
+	private LogSegment(int id, File file, FileChannel channel) throws IOException {
+		this.id = id;
+		this.file = file;
+		this.channel = channel;
+		this.size = channel.size();
+	}
+
+	/**
+	 * Opens an existing segment, e.g. one found at startup.
+	 */
+	static LogSegment open(File dir, int id) throws IOException {
+		File file = fileFor(dir, id);
+		return new LogSegment(id, file, FileChannel.open(file.toPath(),
+				StandardOpenOption.READ, StandardOpenOption.WRITE));
+	}
+
+	/**
+	 * Creates a new, empty segment to be appended to.
+	 */
+	static LogSegment create(File dir, int id) throws IOException {
+		File file = fileFor(dir, id);
+		// A hint left behind by an earlier segment with this id is stale.
+		HintFile.delete(dir, id);
+		return new LogSegment(id, file, FileChannel.open(file.toPath(),
+				StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+				StandardOpenOption.WRITE));
+	}
+
+	static File fileFor(File dir, int id) {
+		return new File(dir, String.format("%010d", id) + SUFFIX);
+	}
+
+	/**
+	 * @return the id encoded in a segment file name, or -1 if the name is
+	 * 		not one of a segment.
+	 */
+	static int idOf(String fileName) {
+		if (!fileName.endsWith(SUFFIX)) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(fileName.substring(0,
+					fileName.length() - SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	int getId() {
+		return id;
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	long size() {
+		return size;
+	}
+
+	/**
+	 * @return the lowest sequence number of any record in the segment.
+	 */
+	long minSeq() {
+		return minSeq;
+	}
+
+	void noteSeq(long seq) {
+		if (seq < minSeq) {
+			minSeq = seq;
+		}
+	}
+
+	long liveBytes() {
+		return liveBytes.get();
+	}
+
+	/**
+	 * Adjusts the number of bytes taken up by records the key directory
+	 * still points to.
+	 */
+	void addLiveBytes(long delta) {
+		liveBytes.addAndGet(delta);
+	}
+
+	/**
+	 * @return share of the segment that is still live, between 0 and 1.
+	 */
+	double liveRatio() {
+		long total = size;
+		return total == 0 ? 1.0 : (double) liveBytes.get() / total;
+	}
+
+	/**
+	 * Appends an encoded record. Callers serialize appends.
+	 * @return offset of the record within the segment.
+	 */
+	long append(ByteBuffer record) throws IOException {
+		long offset = size;
+		long position = offset;
+		while (record.hasRemaining()) {
+			position += channel.write(record, position);
+		}
+		size = position;
+		return offset;
+	}
+
+	/**
+	 * Reads length bytes starting at offset with a single positional read
+	 * where the OS allows it.
+	 */
+	byte[] read(long offset, int length) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		long position = offset;
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf, position);
+			if (n < 0) {
+				throw new IOException("Unexpected end of segment " + file);
+			}
+			position += n;
+		}
+		return buf.array();
+	}
+
+	/**
+	 * Hands up to count bytes starting at position to target, letting the
+	 * kernel copy them if it can.
+	 * @return number of bytes transferred.
+	 */
+	long transferTo(long position, long count, WritableByteChannel target)
+			throws IOException {
+		return channel.transferTo(position, count, target);
+	}
+
+	boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	/**
+	 * Forces appended records to the storage device.
+	 */
+	public void sync() throws IOException {
+		channel.force(false);
+	}
+
+	/**
+	 * Reads length bytes starting at offset from the memory mapping of the
+	 * segment, mapping or remapping it first if needed. This saves the read
+	 * system call and the kernel's copy into a read buffer, but not the
+	 * copy into the array returned, nor that of decoding it.
+	 */
+	byte[] readMapped(long offset, int length) throws IOException {
+		MappedByteBuffer buf = mapped;
+		if (buf == null || offset + length > buf.limit()) {
+			buf = remap(offset + length);
+			if (buf == null) {
+				return read(offset, length);
+			}
+		}
+		ByteBuffer view = buf.duplicate();
+		view.position((int) offset);
+		byte[] value = new byte[length];
+		// Straight from the page cache.
+		view.get(value);
+		return value;
+	}
+
+	/**
+	 * Marks the segment as complete, so that the next read maps all of it.
+	 */
+	void seal() {
+		sealed = true;
+	}
+
+	/**
+	 * @return a mapping covering at least end bytes, or null if the read
+	 * 		should rather go through the channel.
+	 */
+	private synchronized MappedByteBuffer remap(long end) throws IOException {
+		MappedByteBuffer buf = mapped;
+		if (buf != null && end <= buf.limit()) {
+			return buf;
+		}
+		long current = size;
+		long mappedSize = buf == null ? 0 : buf.limit();
+		if (current > Integer.MAX_VALUE || end > current
+				|| (!sealed && buf != null && current - mappedSize < REMAP_STEP)) {
+			return null;
+		}
+		buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, current);
+		mapped = buf;
+		return buf;
+	}
+
+	/**
+	 * Opens a sequential reader over the records of the segment.
+	 */
+	DataInputStream openScanner() throws IOException {
+		return new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), 64 * 1024));
+	}
+
+	/**
+	 * Cuts off everything after length, e.g. a torn write at the tail.
+	 */
+	void truncate(long length) throws IOException {
+		channel.truncate(length);
+		size = length;
+	}
+
+	void close() throws IOException {
+		// The mapping stays valid until it is garbage collected, so readers
+		// still holding on to it are not affected.
+		mapped = null;
+		channel.close();
+	}
+
+	/**
+	 * Deletes the segment along with its hint file, if any.
+	 */
+	synchronized void delete() throws IOException {
+		close();
+		if (!file.delete() && file.exists()) {
+			throw new IOException("Unable to delete segment " + file);
+		}
+		HintFile.delete(file.getParentFile(), id);
+	}
+}
@@ -0,0 +1,91 @@
+package storage;
+
+import java.io.IOException;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The in-memory, sorted part of a {@link KVLsmStore}. Writes go to the
+ * write-ahead log of the memtable first, which is what the memtable is
+ * rebuilt from after a restart; once the memtable has been flushed to an
+ * {@link SSTable} the log is deleted. Deletes are kept as
+ * {@link KVLsmStore#TOMBSTONE}s so that they shadow older tables.
+ */
+final class MemTable {
+
+	/** Rough per-entry overhead of the skip list, counted towards its size. */
+	private static final int ENTRY_OVERHEAD = 64;
+
+	private final int id;
+	private final LogSegment wal;
+	private final ConcurrentSkipListMap<String, byte[]> entries =
+			new ConcurrentSkipListMap<String, byte[]>();
+	private final AtomicLong bytes = new AtomicLong();
+
+	/**
+	 * @param id orders the memtable against other memtables and tables;
+	 * 			newer data has higher ids.
+	 * @param wal the write-ahead log of the memtable.
+	 */
+	MemTable(int id, LogSegment wal) {
+		this.id = id;
+		this.wal = wal;
+	}
+
+	int getId() {
+		return id;
+	}
+
+	LogSegment getWal() {
+		return wal;
+	}
+
+	/**
+	 * Enters a value, or a tombstone, that is already in the log.
+	 */
+	void put(String key, byte[] value) {
+		byte[] previous = entries.put(key, value);
+		long delta = value.length;
+		if (previous == null) {
+			delta += 2 * key.length() + ENTRY_OVERHEAD;
+		} else {
+			delta -= previous.length;
+		}
+		bytes.addAndGet(delta);
+	}
+
+	/**
+	 * @return the value of key, {@link KVLsmStore#TOMBSTONE} if it was
+	 * 		deleted, or null if the memtable does not know key.
+	 */
+	byte[] get(String key) {
+		return entries.get(key);
+	}
+
+	/**
+	 * @return approximate number of bytes the memtable takes up.
+	 */
+	long bytes() {
+		return bytes.get();
+	}
+
+	boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	/**
+	 * @return the entries in key order. Only stable once the memtable no
+	 * 		longer takes writes.
+	 */
+	NavigableMap<String, byte[]> entries() {
+		return entries;
+	}
+
+	/**
+	 * Deletes the log of a memtable that has been flushed.
+	 */
+	void deleteWal() throws IOException {
+		wal.delete();
+	}
+}
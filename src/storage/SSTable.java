@@ -0,0 +1,286 @@
+package storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * An immutable, sorted table of a {@link KVLsmStore}. On disk a table is a
+ * run of data blocks, each holding entries
+ * <pre>
+ *   key length (4) | value length (4) | key | value
+ * </pre>
+ * in key order, where a value length of {@link LogRecord#TOMBSTONE} marks a
+ * deleted key. The blocks are followed by an index holding the first key,
+ * offset, length and CRC of every block, and a fixed-size footer. The index
+ * is kept in memory, so a lookup costs one block read.
+ * <p>
+ * Besides its id, which only names the file, a table carries the range of
+ * memtable ids whose data it holds. Tables with higher ranges shadow those
+ * with lower ones.
+ */
+final class SSTable {
+
+	static final String SUFFIX = ".sst";
+	static final String TMP_SUFFIX = ".tmp";
+	static final int BLOCK_SIZE = 4 * 1024;
+	static final int MAGIC = 0x4c534d31;
+	private static final int FOOTER_SIZE = 44;
+
+	private final int id;
+	private final File file;
+	private final FileChannel channel;
+	private final long size;
+	private final String[] firstKeys;
+	private final long[] blockOffsets;
+	private final int[] blockLengths;
+	private final int[] blockCrcs;
+	/** Lowest and highest id of the memtables whose data the table holds. */
+	private final long minMemTableId;
+	private final long maxMemTableId;
+	private final long entryCount;
+
+	private SSTable(int id, File file, FileChannel channel) throws IOException {
+		this.id = id;
+		this.file = file;
+		this.channel = channel;
+		this.size = channel.size();
+		if (size < FOOTER_SIZE) {
+			throw corrupt("too short");
+		}
+		ByteBuffer footer = readFully(size - FOOTER_SIZE, FOOTER_SIZE);
+		long indexOffset = footer.getLong();
+		int indexLength = footer.getInt();
+		int indexCrc = footer.getInt();
+		minMemTableId = footer.getLong();
+		maxMemTableId = footer.getLong();
+		entryCount = footer.getLong();
+		if (footer.getInt() != MAGIC || indexOffset < 0 || indexLength < 0
+				|| indexOffset + indexLength != size - FOOTER_SIZE) {
+			throw corrupt("bad footer");
+		}
+		ByteBuffer index = readFully(indexOffset, indexLength);
+		CRC32 crc = new CRC32();
+		crc.update(index.array());
+		if ((int) crc.getValue() != indexCrc) {
+			throw corrupt("index checksum mismatch");
+		}
+		int blocks = 0;
+		String[] keys = new String[16];
+		long[] offsets = new long[16];
+		int[] lengths = new int[16];
+		int[] crcs = new int[16];
+		while (index.hasRemaining()) {
+			if (blocks == keys.length) {
+				keys = Arrays.copyOf(keys, 2 * blocks);
+				offsets = Arrays.copyOf(offsets, 2 * blocks);
+				lengths = Arrays.copyOf(lengths, 2 * blocks);
+				crcs = Arrays.copyOf(crcs, 2 * blocks);
+			}
+			byte[] key = new byte[index.getInt()];
+			index.get(key);
+			keys[blocks] = new String(key, LogRecord.CHARSET);
+			offsets[blocks] = index.getLong();
+			lengths[blocks] = index.getInt();
+			crcs[blocks] = index.getInt();
+			blocks++;
+		}
+		firstKeys = Arrays.copyOf(keys, blocks);
+		blockOffsets = Arrays.copyOf(offsets, blocks);
+		blockLengths = Arrays.copyOf(lengths, blocks);
+		blockCrcs = Arrays.copyOf(crcs, blocks);
+	}
+
+	static SSTable open(File dir, int id) throws IOException {
+		File file = fileFor(dir, id);
+		FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ);
+		try {
+			return new SSTable(id, file, channel);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	static File fileFor(File dir, int id) {
+		return new File(dir, String.format("%010d", id) + SUFFIX);
+	}
+
+	/**
+	 * @return the id encoded in a table file name, or -1 if the name is not
+	 * 		one of a table.
+	 */
+	static int idOf(String fileName) {
+		if (!fileName.endsWith(SUFFIX)) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(fileName.substring(0,
+					fileName.length() - SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	int getId() {
+		return id;
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	long size() {
+		return size;
+	}
+
+	long minMemTableId() {
+		return minMemTableId;
+	}
+
+	long maxMemTableId() {
+		return maxMemTableId;
+	}
+
+	long entryCount() {
+		return entryCount;
+	}
+
+	/**
+	 * @return true if this table holds data from a subset of the memtables
+	 * 		other does, e.g. because it was merged into other.
+	 */
+	boolean isCoveredBy(SSTable other) {
+		return other != this && other.minMemTableId <= minMemTableId
+				&& maxMemTableId <= other.maxMemTableId
+				&& (other.minMemTableId != minMemTableId
+						|| other.maxMemTableId != maxMemTableId || other.id > id);
+	}
+
+	/**
+	 * @return the value of key, {@link KVLsmStore#TOMBSTONE} if it was
+	 * 		deleted, or null if the table does not know key.
+	 */
+	byte[] get(String key) throws IOException {
+		int pos = Arrays.binarySearch(firstKeys, key);
+		int block = pos >= 0 ? pos : -pos - 2;
+		if (block < 0) {
+			return null;
+		}
+		Cursor cursor = new Cursor(block, block + 1);
+		while (cursor.next()) {
+			int cmp = cursor.key().compareTo(key);
+			if (cmp == 0) {
+				return cursor.value();
+			}
+			if (cmp > 0) {
+				break;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return a cursor over all entries in key order.
+	 */
+	Cursor cursor() {
+		return new Cursor(0, firstKeys.length);
+	}
+
+	void close() throws IOException {
+		channel.close();
+	}
+
+	void delete() throws IOException {
+		close();
+		if (!file.delete() && file.exists()) {
+			throw new IOException("Unable to delete table " + file);
+		}
+	}
+
+	private ByteBuffer readFully(long offset, int length) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		long position = offset;
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf, position);
+			if (n < 0) {
+				throw new IOException("Unexpected end of table " + file);
+			}
+			position += n;
+		}
+		buf.flip();
+		return buf;
+	}
+
+	private IOException corrupt(String reason) {
+		return new IOException("Corrupt table " + file + ": " + reason);
+	}
+
+	/**
+	 * Walks over the entries of a range of blocks, one block read at a time.
+	 */
+	final class Cursor {
+
+		private final int endBlock;
+		private int nextBlock;
+		private ByteBuffer block;
+		private String key;
+		private byte[] value;
+
+		private Cursor(int startBlock, int endBlock) {
+			this.nextBlock = startBlock;
+			this.endBlock = endBlock;
+		}
+
+		/**
+		 * Moves to the next entry.
+		 * @return false if there is none.
+		 */
+		boolean next() throws IOException {
+			while (block == null || !block.hasRemaining()) {
+				if (nextBlock == endBlock) {
+					return false;
+				}
+				block = readBlock(nextBlock++);
+			}
+			byte[] keyBytes = new byte[block.getInt()];
+			int valueLength = block.getInt();
+			block.get(keyBytes);
+			key = new String(keyBytes, LogRecord.CHARSET);
+			if (valueLength == LogRecord.TOMBSTONE) {
+				value = KVLsmStore.TOMBSTONE;
+			} else {
+				value = new byte[valueLength];
+				block.get(value);
+			}
+			return true;
+		}
+
+		String key() {
+			return key;
+		}
+
+		/**
+		 * @return the value, or {@link KVLsmStore#TOMBSTONE}.
+		 */
+		byte[] value() {
+			return value;
+		}
+
+		private ByteBuffer readBlock(int block) throws IOException {
+			ByteBuffer buf = readFully(blockOffsets[block], blockLengths[block]);
+			CRC32 crc = new CRC32();
+			crc.update(buf.array());
+			if ((int) crc.getValue() != blockCrcs[block]) {
+				throw corrupt("checksum mismatch in block at offset "
+						+ blockOffsets[block]);
+			}
+			return buf;
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package storage;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/**
+ * Writes an {@link SSTable}. Entries have to be added in key order. The
+ * table is written to a temporary file that only takes the name of the
+ * table once it is complete and synced, so a crash never leaves a partial
+ * table behind.
+ */
+final class SSTableWriter {
+
+	private final File file;
+	private final File tmp;
+	private final FileOutputStream fileOut;
+	private final DataOutputStream out;
+	private final ByteArrayOutputStream block = new ByteArrayOutputStream(
+			2 * SSTable.BLOCK_SIZE);
+	private final DataOutputStream blockOut = new DataOutputStream(block);
+	private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+	private final DataOutputStream indexOut = new DataOutputStream(index);
+	private long position;
+	private String firstKey;
+	private String lastKey;
+	private long entryCount;
+
+	SSTableWriter(File dir, int id) throws IOException {
+		this.file = SSTable.fileFor(dir, id);
+		this.tmp = new File(dir, file.getName() + SSTable.TMP_SUFFIX);
+		this.fileOut = new FileOutputStream(tmp);
+		this.out = new DataOutputStream(new BufferedOutputStream(fileOut,
+				64 * 1024));
+	}
+
+	/**
+	 * Adds the next entry.
+	 * @param value the value, or {@link KVLsmStore#TOMBSTONE}.
+	 */
+	void add(String key, byte[] value) throws IOException {
+		if (lastKey != null && key.compareTo(lastKey) <= 0) {
+			throw new IllegalArgumentException("Key '" + key
+					+ "' is out of order");
+		}
+		if (firstKey == null) {
+			firstKey = key;
+		}
+		byte[] keyBytes = key.getBytes(LogRecord.CHARSET);
+		blockOut.writeInt(keyBytes.length);
+		blockOut.writeInt(value == KVLsmStore.TOMBSTONE
+				? LogRecord.TOMBSTONE : value.length);
+		blockOut.write(keyBytes);
+		if (value != KVLsmStore.TOMBSTONE) {
+			blockOut.write(value);
+		}
+		lastKey = key;
+		entryCount++;
+		if (block.size() >= SSTable.BLOCK_SIZE) {
+			writeBlock();
+		}
+	}
+
+	long entryCount() {
+		return entryCount;
+	}
+
+	/**
+	 * Writes the index and footer and moves the table into place.
+	 * @param minMemTableId lowest memtable id whose data the table holds.
+	 * @param maxMemTableId highest memtable id whose data the table holds.
+	 */
+	void finish(long minMemTableId, long maxMemTableId) throws IOException {
+		try {
+			writeBlock();
+			byte[] indexBytes = index.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(indexBytes);
+			long indexOffset = position;
+			out.write(indexBytes);
+			out.writeLong(indexOffset);
+			out.writeInt(indexBytes.length);
+			out.writeInt((int) crc.getValue());
+			out.writeLong(minMemTableId);
+			out.writeLong(maxMemTableId);
+			out.writeLong(entryCount);
+			out.writeInt(SSTable.MAGIC);
+			out.flush();
+			fileOut.getFD().sync();
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Gives up on the table.
+	 */
+	void abort() {
+		try {
+			out.close();
+		} catch (IOException e) {
+			// Going away anyway.
+		}
+		tmp.delete();
+	}
+
+	private void writeBlock() throws IOException {
+		if (block.size() == 0) {
+			return;
+		}
+		byte[] bytes = block.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		byte[] keyBytes = firstKey.getBytes(LogRecord.CHARSET);
+		indexOut.writeInt(keyBytes.length);
+		indexOut.write(keyBytes);
+		indexOut.writeLong(position);
+		indexOut.writeInt(bytes.length);
+		indexOut.writeInt((int) crc.getValue());
+		out.write(bytes);
+		position += bytes.length;
+		block.reset();
+		firstKey = null;
+	}
+}
@@ -0,0 +1,67 @@
+package storage;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Persistent key-value storage behind a KVServer. Writes are split into
+ * {@link #write(String, String)}, which makes them visible right away, and
+ * {@link #awaitDurable(long)}, so that callers holding locks of their own
+ * can release them before waiting for the disk.
+ */
+public interface StorageEngine {
+
+	/**
+	 * Loads what is on disk. Must be called before any other method.
+	 * @throws IOException if the storage can not be read.
+	 */
+	public void open() throws IOException;
+
+	/**
+	 * @return the value stored for key, or null if there is none.
+	 */
+	public String get(String key) throws IOException;
+
+	/**
+	 * Looks up the value of key for sending it elsewhere, which some
+	 * engines can do without reading it onto the heap first.
+	 * @return the stored value, or null if there is none.
+	 */
+	public StoredValue locate(String key) throws IOException;
+
+	/**
+	 * @return true if a value is stored for key.
+	 */
+	public boolean contains(String key) throws IOException;
+
+	/**
+	 * Stores value for key, or deletes key if value is null, without
+	 * waiting for the write to become durable.
+	 * @return ticket to pass to {@link #awaitDurable(long)}.
+	 */
+	public long write(String key, String value) throws IOException;
+
+	/**
+	 * Blocks until the write behind ticket, and all writes before it, are
+	 * durable.
+	 * @throws IOException if the write could not be made durable.
+	 */
+	public void awaitDurable(long ticket) throws IOException;
+
+	/**
+	 * @return the stored keys.
+	 */
+	public Collection<String> keys() throws IOException;
+
+	/**
+	 * @return number of stored keys.
+	 */
+	public int size() throws IOException;
+
+	/**
+	 * Drops every key, on disk as well.
+	 */
+	public void clear() throws IOException;
+
+	public void close();
+}
@@ -0,0 +1,35 @@
+package storage;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A value as located by {@link StorageEngine#locate(String)}, to be read
+ * or sent on later.
+ */
+public interface StoredValue {
+
+	/**
+	 * @return length of the value in bytes.
+	 */
+	public int getLength();
+
+	/**
+	 * Reads the value onto the heap.
+	 */
+	public String read() throws IOException;
+
+	/**
+	 * Writes the value to target, straight from disk where the engine
+	 * supports it.
+	 */
+	public void transferTo(WritableByteChannel target) throws IOException;
+
+	/**
+	 * Writes as much of the value from position on as target takes, which
+	 * for a non-blocking target may be nothing.
+	 * @return number of bytes written.
+	 */
+	public long transferTo(long position, WritableByteChannel target)
+			throws IOException;
+}
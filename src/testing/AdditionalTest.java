@@ -1,5 +1,7 @@
 package testing;
 
+import java.util.Properties;
+
 import org.junit.Test;
 
 import app_kvServer.KVServer;
@@ -16,6 +18,8 @@ public class AdditionalTest extends TestCase {
 	
 	private KVServer kvServer;
 	private KVStore kvClient;
+	/** Closed after the test, unlike the servers sharing ./db/. */
+	private KVServer ownServer;
 
 	public void setUp() {
 		kvClient = new KVStore("localhost", 50000);
@@ -27,6 +31,11 @@ public class AdditionalTest extends TestCase {
 
 	public void tearDown() {
 		kvClient.disconnect();
+		if (ownServer != null) {
+			ownServer.clearStorage();
+			ownServer.close();
+			ownServer = null;
+		}
 	}
 
 	@Test
@@ -124,4 +133,44 @@ public class AdditionalTest extends TestCase {
 
 		assertTrue(ex == null && response.getStatus() == StatusType.DELETE_SUCCESS);
 	}
+	
+	@Test
+	public void testConcurrentClients() throws Exception {
+		Properties options = new Properties();
+		options.setProperty(KVServer.DB_PATH, "db/testing/concurrent");
+		final KVServer server = new KVServer(1234, 16, "LRU", options);
+		ownServer = server;
+		server.clearStorage();
+		final Exception[] failure = new Exception[1];
+		Thread[] clients = new Thread[8];
+		for (int t = 0; t < clients.length; t++) {
+			final int id = t;
+			clients[t] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < 200; i++) {
+							String key = "c" + id + "-" + (i % 20);
+							server.putKV(key, "v" + i);
+							if (!("v" + i).equals(server.getKV(key)))
+								throw new Exception("Lost write to " + key);
+							// All clients share this key.
+							server.putKV("shared", "v" + id);
+						}
+					} catch (Exception e) {
+						failure[0] = e;
+					}
+				}
+			};
+			clients[t].start();
+		}
+		for (Thread client : clients) {
+			client.join();
+		}
+		assertNull(failure[0]);
+		String shared = server.getKV("shared");
+		server.clearCache();
+		assertEquals(shared, server.getKV("shared"));
+		server.clearStorage();
+		assertFalse(server.inStorage("shared"));
+	}
 }
@@ -27,7 +27,22 @@ public class AllTests {
 		clientSuite.addTestSuite(ConnectionTest.class);
 		clientSuite.addTestSuite(InteractionTest.class);
 		clientSuite.addTestSuite(AdditionalTest.class);
+		clientSuite.addTestSuite(FrontEndTest.class);
+		clientSuite.addTestSuite(BinaryProtocolTest.class);
+		clientSuite.addTestSuite(PipelineTest.class);
+		clientSuite.addTestSuite(BatchOperationsTest.class);
+		clientSuite.addTestSuite(AsyncOperationsTest.class);
+		clientSuite.addTestSuite(ConnectionPoolTest.class);
+		clientSuite.addTestSuite(NearCacheTest.class);
+		clientSuite.addTestSuite(HedgedReadsTest.class);
+		clientSuite.addTestSuite(BatchingWriterTest.class);
 		clientSuite.addTestSuite(KVCacheTest.class);
+		clientSuite.addTestSuite(KVLogStoreTest.class);
+		clientSuite.addTestSuite(KVLsmStoreTest.class);
+		clientSuite.addTestSuite(KVMemoryStoreTest.class);
+		clientSuite.addTestSuite(CountingBloomFilterTest.class);
+		clientSuite.addTestSuite(MessageReaderTest.class);
+		clientSuite.addTestSuite(TextMessageTest.class);
 		return clientSuite;
 	}
 	
@@ -0,0 +1,105 @@
+package testing;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+import app_kvServer.KVServer;
+
+import client.KVStore;
+
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+
+public class AsyncOperationsTest extends ServerTestCase {
+
+	@Test
+	public void testAsyncOperations() throws Exception {
+		forEachFrontEnd(50035, new ClientCheck() {
+			public void run(KVServer server, KVStore client) throws Exception {
+				List<CompletableFuture<KVMessage>> puts =
+						new ArrayList<CompletableFuture<KVMessage>>();
+				for (int i = 0; i < 200; i++)
+					puts.add(client.putAsync("async" + i, "v" + i, 0));
+				for (int i = 0; i < puts.size(); i++) {
+					KVMessage response = puts.get(i).get(10, TimeUnit.SECONDS);
+					assertEquals("async" + i, response.getKey());
+					assertEquals("v" + i, response.getValue());
+					assertTrue(response.getStatus() == StatusType.PUT_SUCCESS
+							|| response.getStatus() == StatusType.PUT_UPDATE);
+				}
+				List<CompletableFuture<KVMessage>> gets =
+						new ArrayList<CompletableFuture<KVMessage>>();
+				for (int i = 199; i >= 0; i--)
+					gets.add(client.getAsync("async" + i, 10000));
+				for (int i = 0; i < gets.size(); i++) {
+					KVMessage response = gets.get(i).get(10, TimeUnit.SECONDS);
+					assertEquals(StatusType.GET_SUCCESS, response.getStatus());
+					assertEquals("v" + (199 - i), response.getValue());
+				}
+				assertEquals(StatusType.DELETE_SUCCESS, client
+						.putAsync("async0", "", 0).get().getStatus());
+				assertEquals(StatusType.GET_ERROR, client
+						.getAsync("async0", 0).get().getStatus());
+			}
+		});
+	}
+
+	@Test
+	public void testAsyncDeadlines() throws Exception {
+		// A server that never answers.
+		closeAfter(new ServerSocket(50026));
+		KVStore client = newClient(50026, false, 1);
+		CompletableFuture<KVMessage> timed = client.getAsync("key", 200);
+		CompletableFuture<KVMessage> untimed = client.getAsync("key", 0);
+		try {
+			timed.get(5, TimeUnit.SECONDS);
+			fail("Answered by a silent server");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		assertFalse(untimed.isDone());
+		client.disconnect();
+		try {
+			untimed.get(5, TimeUnit.SECONDS);
+			fail("Answered after the connection closed");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+
+	@Test
+	public void testUnreadableResponse() throws Exception {
+		// A server that answers with a message that does not parse.
+		final ServerSocket garbled = closeAfter(new ServerSocket(50038));
+		Thread server = new Thread() {
+			public void run() {
+				try {
+					Socket socket = garbled.accept();
+					socket.getOutputStream().write("not json\r".getBytes());
+					socket.getOutputStream().flush();
+				} catch (IOException e) {
+					// Closed by the test.
+				}
+			}
+		};
+		server.start();
+		KVStore client = newClient(50038, false, 1);
+		CompletableFuture<KVMessage> untimed = client.getAsync("key", 0);
+		try {
+			untimed.get(5, TimeUnit.SECONDS);
+			fail("Answered by an unreadable response");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+		server.join(5000);
+	}
+}
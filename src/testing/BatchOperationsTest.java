@@ -0,0 +1,69 @@
+package testing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import app_kvServer.KVServer;
+
+import client.KVStore;
+
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+
+public class BatchOperationsTest extends ServerTestCase {
+
+	@Test
+	public void testBatchOperations() throws Exception {
+		forEachFrontEnd(50021, new ClientCheck() {
+			public void run(KVServer server, KVStore client) throws Exception {
+				client.put("batch0", "old");
+				// More keys than are sent in one batch.
+				Map<String, String> pairs = new LinkedHashMap<String, String>();
+				List<String> keys = new ArrayList<String>();
+				for (int i = 0; i < 300; i++) {
+					pairs.put("batch" + i, "v" + i);
+					keys.add("batch" + i);
+				}
+				pairs.put("bad key", "v");
+				keys.add("bad key");
+				pairs.put("empty", "");
+				keys.add("empty");
+				List<KVMessage> results = client.putAll(pairs);
+				assertEquals(302, results.size());
+				assertEquals(StatusType.PUT_UPDATE, results.get(0).getStatus());
+				for (int i = 1; i < 300; i++) {
+					assertEquals("batch" + i, results.get(i).getKey());
+					assertTrue(results.get(i).getStatus() == StatusType.PUT_SUCCESS
+							|| results.get(i).getStatus() == StatusType.PUT_UPDATE);
+					assertEquals("v" + i, results.get(i).getValue());
+				}
+				assertEquals(StatusType.PUT_ERROR, results.get(300).getStatus());
+				assertEquals(StatusType.PUT_ERROR, results.get(301).getStatus());
+
+				server.clearCache();
+				results = client.getAll(keys);
+				for (int i = 0; i < 300; i++) {
+					assertEquals(StatusType.GET_SUCCESS, results.get(i).getStatus());
+					assertEquals("v" + i, results.get(i).getValue());
+				}
+				assertEquals(StatusType.GET_ERROR, results.get(300).getStatus());
+				assertEquals(StatusType.GET_ERROR, results.get(301).getStatus());
+				assertEquals("v42", client.get("batch42").getValue());
+
+				results = client.deleteAll(keys.subList(0, 150));
+				assertEquals(150, results.size());
+				for (KVMessage result : results)
+					assertEquals(StatusType.DELETE_SUCCESS, result.getStatus());
+				results = client.getAll(Arrays.asList("batch1", "batch151"));
+				assertEquals(StatusType.GET_ERROR, results.get(0).getStatus());
+				assertEquals("v151", results.get(1).getValue());
+				assertTrue(client.getAll(new ArrayList<String>()).isEmpty());
+			}
+		});
+	}
+}
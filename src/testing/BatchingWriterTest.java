@@ -0,0 +1,67 @@
+package testing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import app_kvServer.KVServer;
+
+import client.BatchingWriter;
+import client.KVStore;
+
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+
+public class BatchingWriterTest extends ServerTestCase {
+
+	@Test
+	public void testBatchingWriter() throws Exception {
+		int port = 50034;
+		KVServer server = startServer(port);
+		KVStore client = connect(port, true);
+		server.clearStorage();
+		BatchingWriter writer = client.batchingWriter(100, 1000000);
+		List<CompletableFuture<KVMessage>> futures =
+				new ArrayList<CompletableFuture<KVMessage>>();
+		for (int i = 0; i < 1000; i++)
+			futures.add(writer.put("merged" + i % 50, "v" + i));
+		futures.add(writer.put("merged48", ""));
+		assertFalse(futures.get(0).isDone());
+		writer.flush();
+		// A batch of 100 keys is sent by the put filling it.
+		for (int i = 0; i < 100; i++)
+			futures.add(writer.put("batched" + i, "v" + i));
+		for (CompletableFuture<KVMessage> future : futures) {
+			assertTrue(future.isDone());
+			StatusType status = future.get().getStatus();
+			assertTrue(status == StatusType.PUT_SUCCESS
+					|| status == StatusType.PUT_UPDATE
+					|| status == StatusType.DELETE_SUCCESS);
+		}
+		assertEquals(1101, writer.getWrites());
+		assertEquals(951, writer.getMergedWrites());
+		assertEquals(2, writer.getBatches());
+		assertEquals("v999", client.get("merged49").getValue());
+		assertEquals("v950", client.get("merged0").getValue());
+		assertEquals(StatusType.GET_ERROR, client.get("merged48").getStatus());
+		assertEquals("v99", client.get("batched99").getValue());
+		writer.close();
+
+		// A lone write is sent after its delay.
+		BatchingWriter timed = client.batchingWriter(100, 1000);
+		assertEquals(StatusType.PUT_SUCCESS, timed.put("lone", "v")
+				.get(5, TimeUnit.SECONDS).getStatus());
+		timed.close();
+		try {
+			timed.put("lone", "w").get(5, TimeUnit.SECONDS);
+			fail("Written after close");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+}
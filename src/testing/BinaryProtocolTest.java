@@ -0,0 +1,41 @@
+package testing;
+
+import org.junit.Test;
+
+import app_kvServer.KVServer;
+
+import client.KVStore;
+
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+
+public class BinaryProtocolTest extends ServerTestCase {
+
+	@Test
+	public void testBinaryProtocol() throws Exception {
+		String[] frontEnds = { "threads", "selector" };
+		for (int f = 0; f < frontEnds.length; f++) {
+			int port = 50016 + f;
+			KVServer server = startServer(port, frontEnd(frontEnds[f]));
+			KVStore binary = connect(port, true);
+			KVStore json = connect(port, false);
+			String value = "a \"quoted\"\nvalue";
+			binary.put("bin", "");
+			KVMessage response = binary.put("bin", value);
+			assertEquals(StatusType.PUT_SUCCESS, response.getStatus());
+			assertEquals(value, response.getValue());
+			assertEquals(StatusType.PUT_UPDATE,
+					binary.put("bin", value).getStatus());
+			// Both protocols share the same data.
+			assertEquals(value, json.get("bin").getValue());
+			server.clearCache();
+			response = binary.get("bin");
+			assertEquals(StatusType.GET_SUCCESS, response.getStatus());
+			assertEquals(value, response.getValue());
+			assertEquals(StatusType.DELETE_SUCCESS,
+					binary.put("bin", "").getStatus());
+			assertEquals(StatusType.GET_ERROR, binary.get("bin").getStatus());
+			stopServer(server);
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package testing;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import app_kvServer.KVServer;
+
+import client.KVStore;
+
+import common.messages.KVMessage.StatusType;
+
+public class ConnectionPoolTest extends ServerTestCase {
+
+	@Test
+	public void testConnectionPool() throws Exception {
+		int port = 50027;
+		Properties options = frontEnd("selector");
+		KVServer server = startServer(port, options);
+		final KVStore client = connect(port, true, 3);
+		server.clearStorage();
+		assertEquals(1, client.getOpenConnections());
+		final AtomicReference<Throwable> failure =
+				new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final int thread = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < 50; i++) {
+							String key = "pool" + thread + "_" + i;
+							client.put(key, "v" + i);
+							assertEquals("v" + i, client.get(key).getValue());
+							assertTrue(client.getOpenConnections() <= 3);
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join(30000);
+		assertNull(failure.get());
+		assertEquals(800, client.getConnectionLeases() - 1);
+		assertEquals(0, client.getLeasedConnections());
+		assertTrue(client.getOpenConnections() >= 1);
+		assertTrue(client.getConnectionWaitMillis() >= 0);
+
+		// The pooled connections go stale with a new server.
+		stopServer(server);
+		startServer(port, options);
+		assertEquals("v7", client.get("pool3_7").getValue());
+		assertEquals(StatusType.PUT_UPDATE,
+				client.put("pool3_7", "w").getStatus());
+
+		client.disconnect();
+		try {
+			client.get("pool3_7");
+			fail("Served after disconnect");
+		} catch (IOException e) {
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package testing;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import storage.CountingBloomFilter;
+
+
+public class CountingBloomFilterTest extends TestCase {
+
+	@Test
+	public void testNoFalseNegatives() {
+		CountingBloomFilter filter = new CountingBloomFilter(1000, 0.01);
+		for (int i = 0; i < 1000; i++) {
+			filter.add("key" + i);
+		}
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(filter.mightContain("key" + i));
+		}
+	}
+
+	@Test
+	public void testFalsePositiveRate() {
+		CountingBloomFilter filter = new CountingBloomFilter(1000, 0.01);
+		for (int i = 0; i < 1000; i++) {
+			filter.add("key" + i);
+		}
+		int falsePositives = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (filter.mightContain("other" + i)) {
+				falsePositives++;
+			}
+		}
+		assertTrue(falsePositives < 300);
+		assertTrue(filter.expectedFalsePositiveRate() < 0.02);
+	}
+
+	@Test
+	public void testRemove() {
+		CountingBloomFilter filter = new CountingBloomFilter(1000, 0.01);
+		filter.add("key1");
+		filter.add("key2");
+		filter.remove("key1");
+		assertFalse(filter.mightContain("key1"));
+		assertTrue(filter.mightContain("key2"));
+	}
+}
@@ -0,0 +1,130 @@
+package testing;
+
+import java.net.Socket;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import app_kvServer.KVServer;
+
+import client.KVStore;
+
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+
+public class FrontEndTest extends ServerTestCase {
+
+	@Test
+	public void testConnectionLimits() throws Exception {
+		Properties options = new Properties();
+		options.setProperty(KVServer.MAX_CONNECTION_THREADS, "1");
+		options.setProperty(KVServer.MAX_QUEUED_CONNECTIONS, "1");
+		KVServer server = startServer(50013, options);
+		waitFor(server, 0, 0);
+		Socket served = closeAfter(connectTo(50013));
+		waitFor(server, 1, 0);
+		closeAfter(connectTo(50013));
+		waitFor(server, 1, 1);
+		Socket rejected = closeAfter(connectTo(50013));
+		rejected.setSoTimeout(5000);
+		assertEquals(-1, rejected.getInputStream().read());
+		assertEquals(1, server.getRejectedConnections());
+
+		// The queued connection gets the thread once the first is gone.
+		served.close();
+		waitFor(server, 1, 0);
+	}
+
+	@Test
+	public void testSelectorFrontEnd() throws Exception {
+		Properties options = new Properties();
+		options.setProperty(KVServer.FRONT_END, "selector");
+		options.setProperty(KVServer.EVENT_LOOPS, "2");
+		KVServer server = startServer(50014, options);
+		StringBuilder large = new StringBuilder();
+		while (large.length() < 100000)
+			large.append("0123456789");
+		waitFor(server, 0, 0);
+		KVStore[] clients = new KVStore[3];
+		for (int i = 0; i < clients.length; i++)
+			clients[i] = connect(50014, false);
+		waitFor(server, clients.length, 0);
+		for (int i = 0; i < clients.length; i++) {
+			String key = "sel" + i;
+			clients[i].put(key, "");
+			assertEquals(StatusType.PUT_SUCCESS,
+					clients[i].put(key, large.toString() + i).getStatus());
+		}
+		// Values not in the cache are streamed from storage.
+		server.clearCache();
+		for (int i = 0; i < clients.length; i++) {
+			KVMessage response = clients[(i + 1) % clients.length]
+					.get("sel" + i);
+			assertEquals(StatusType.GET_SUCCESS, response.getStatus());
+			assertEquals(large.toString() + i, response.getValue());
+			assertEquals(StatusType.DELETE_SUCCESS,
+					clients[i].put("sel" + i, "").getStatus());
+			assertEquals(StatusType.GET_ERROR,
+					clients[i].get("sel" + i).getStatus());
+		}
+		clients[0].disconnect();
+		waitFor(server, clients.length - 1, 0);
+	}
+
+	@Test
+	public void testShardedServer() throws Exception {
+		Properties options = new Properties();
+		options.setProperty(KVServer.SHARDS, "3");
+		KVServer server = startServer(50015, 30, options);
+		KVStore[] clients = { connect(50015, false), connect(50015, false) };
+		server.clearStorage();
+		for (int i = 0; i < 60; i++) {
+			assertEquals(StatusType.PUT_SUCCESS, clients[i % 2]
+					.put("shard" + i, "v" + i).getStatus());
+		}
+		server.clearCache();
+		for (int i = 0; i < 60; i++) {
+			// Read through the other connection, and thus mostly through
+			// another shard's event loop.
+			KVMessage response = clients[(i + 1) % 2].get("shard" + i);
+			assertEquals(StatusType.GET_SUCCESS, response.getStatus());
+			assertEquals("v" + i, response.getValue());
+			assertTrue(server.inStorage("shard" + i));
+		}
+		long[] counts = server.getShardRequestCounts();
+		assertEquals(3, counts.length);
+		long total = 0;
+		for (long count : counts) {
+			assertTrue(count > 0);
+			total += count;
+		}
+		assertEquals(120, total);
+		server.clearStorage();
+		assertEquals(StatusType.GET_ERROR,
+				clients[0].get("shard0").getStatus());
+	}
+
+	@Test
+	public void testShardedClose() throws Exception {
+		Properties options = new Properties();
+		options.setProperty(KVServer.SHARDS, "3");
+		options.setProperty(KVServer.WRITE_BACK, "true");
+		options.setProperty(KVServer.DB_PATH, "db/testing/shards");
+		KVServer server = new KVServer(50040, 30, "LRU", options);
+		server.clearStorage();
+		for (int i = 0; i < 60; i++)
+			server.putKV("closed" + i, "v" + i);
+		// Closing flushes what the write-back caches still hold.
+		server.close();
+		server = new KVServer(50040, 30, "LRU", options);
+		try {
+			for (int i = 0; i < 60; i++) {
+				assertTrue(server.inStorage("closed" + i));
+				assertEquals("v" + i, server.getKV("closed" + i));
+			}
+		} finally {
+			server.clearStorage();
+			server.close();
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package testing;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import app_kvServer.KVServer;
+
+import client.KVStore;
+
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+
+public class HedgedReadsTest extends ServerTestCase {
+
+	@Test
+	public void testHedgedReads() throws Exception {
+		int port = 50032;
+		KVServer server = startServer(port);
+		KVStore client = newClient(port, true, 1);
+		// Half of the gets are slower than the median, but hedges are
+		// limited to 10 per 100 gets.
+		client.enableHedgedReads(0.5, 10);
+		client.connect();
+		server.clearStorage();
+		for (int i = 0; i < 10; i++)
+			client.put("hedged" + i, "value" + i);
+		assertEquals(Long.MAX_VALUE, client.getHedgeDelayMicros());
+		int reads = 1000;
+		for (int i = 0; i < reads; i++) {
+			KVMessage res = client.get("hedged" + i % 10, 5000);
+			assertEquals(StatusType.GET_SUCCESS, res.getStatus());
+			assertEquals("value" + i % 10, res.getValue());
+		}
+		assertEquals(StatusType.GET_ERROR,
+				client.get("missing", 5000).getStatus());
+		assertTrue(client.getHedgeDelayMicros() < Long.MAX_VALUE);
+		assertTrue(client.getHedgedReads() <= reads / 10 + 10);
+		assertTrue(client.getHedgesWon() <= client.getHedgedReads());
+	}
+
+	@Test
+	public void testReadDeadlines() throws Exception {
+		// A server that never answers.
+		closeAfter(new ServerSocket(50033));
+		KVStore client = connect(50033, false);
+		long start = System.nanoTime();
+		try {
+			client.get("key", 200);
+			fail("Answered by a silent server");
+		} catch (SocketTimeoutException e) {
+			// Expected.
+		}
+		try {
+			client.put("key", "value", 200);
+			fail("Answered by a silent server");
+		} catch (SocketTimeoutException e) {
+			// Expected.
+		}
+		client.enableHedgedReads(0.95, 5);
+		try {
+			client.get("key", 200);
+			fail("Answered by a silent server");
+		} catch (SocketTimeoutException e) {
+			// Expected.
+		}
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+	}
+
+	@Test
+	public void testDeadlineOverWholeResponse() throws Exception {
+		// A server that sends its response a byte at a time.
+		final ServerSocket slow = closeAfter(new ServerSocket(50039));
+		Thread server = new Thread() {
+			public void run() {
+				try {
+					Socket socket = slow.accept();
+					socket.getInputStream().read();
+					byte[] response = ("{\"status\":\"GET_SUCCESS\","
+							+ "\"key\":\"key\",\"value\":\"value\"}\r")
+							.getBytes();
+					for (byte b : response) {
+						socket.getOutputStream().write(b);
+						socket.getOutputStream().flush();
+						Thread.sleep(100);
+					}
+				} catch (IOException | InterruptedException e) {
+					// Closed by the test.
+				}
+			}
+		};
+		server.start();
+		KVStore client = connect(50039, false);
+		long start = System.nanoTime();
+		try {
+			client.get("key", 300);
+			fail("Answered after the deadline");
+		} catch (SocketTimeoutException e) {
+			// Expected.
+		}
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+		slow.close();
+		server.join(10000);
+	}
+}
@@ -1,8 +1,17 @@
 package testing;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import cache.KVCacheWriter;
+import cache.KVEvictionListener;
 import cache.KVFIFOCache;
 import cache.KVLFUCache;
 import cache.KVLRUCache;
+import cache.KVWriteBackCache;
 import junit.framework.TestCase;
 
 import org.junit.Test;
@@ -58,6 +67,61 @@ public class KVCacheTest extends TestCase {
 		Assert.assertEquals(null, lruCache.get("key3"));
 	}
 	
+	@Test
+	public void testLRUGetUpdatesRecency() {
+		KVLRUCache lruCache = new KVLRUCache(2);
+		lruCache.set("key1", "val1");
+		lruCache.set("key2", "val2");
+		Assert.assertEquals("val1", lruCache.get("key1"));
+		lruCache.set("key3", "val3");
+		Assert.assertEquals("val1", lruCache.get("key1"));
+		Assert.assertEquals(null, lruCache.get("key2"));
+	}
+
+	@Test
+	public void testLRUConcurrentHitsAndWrites() throws Exception {
+		final int capacity = 64;
+		final int keys = 256;
+		final KVLRUCache lruCache = new KVLRUCache(capacity);
+		final AtomicInteger evictions = new AtomicInteger();
+		final AtomicReference<String> error = new AtomicReference<String>();
+		lruCache.setEvictionListener(new KVEvictionListener() {
+			public void onEvict(String key, String value) {
+				evictions.incrementAndGet();
+			}
+		});
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final int seed = t;
+			threads[t] = new Thread() {
+				public void run() {
+					Random random = new Random(seed);
+					for (int i = 0; i < 20000; i++) {
+						String key = "key" + random.nextInt(keys);
+						if (random.nextInt(10) == 0) {
+							lruCache.set(key, "val" + key);
+						} else {
+							String value = lruCache.get(key);
+							if (value != null && !value.equals("val" + key))
+								error.set(key + " mapped to " + value);
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		Assert.assertNull(error.get());
+		int cached = 0;
+		for (int i = 0; i < keys; i++) {
+			if (lruCache.get("key" + i) != null)
+				cached++;
+		}
+		Assert.assertTrue(cached <= capacity);
+		Assert.assertTrue(evictions.get() > 0);
+	}
+	
 	@Test
 	public void testLFUGetSet() {
 		KVLFUCache lfuCache = new KVLFUCache(2);
@@ -86,4 +150,55 @@ public class KVCacheTest extends TestCase {
 		Assert.assertEquals(null, lfuCache.get("key2"));
 		Assert.assertEquals("val3", lfuCache.get("key3"));
 	}
+
+	@Test
+	public void testWriteBackFlushesOnEvictAndClose() {
+		final Map<String, String> storage = new HashMap<String, String>();
+		KVWriteBackCache cache = new KVWriteBackCache(new KVLRUCache(2),
+				new KVCacheWriter() {
+					public void writeAll(Map<String, String> entries) {
+						storage.putAll(entries);
+					}
+				}, 60000, 1024 * 1024);
+		cache.set("key1", "val1");
+		cache.set("key1", "val1b");
+		cache.set("key2", "val2");
+		Assert.assertTrue(storage.isEmpty());
+		Assert.assertTrue(cache.isDirty("key1"));
+
+		// Evicting dirty key1 writes it right away.
+		cache.set("key3", "val3");
+		Assert.assertEquals("val1b", storage.get("key1"));
+		Assert.assertFalse(cache.isDirty("key1"));
+		Assert.assertEquals(null, storage.get("key2"));
+		Assert.assertEquals("val2", cache.get("key2"));
+
+		cache.delete("key2");
+		cache.close();
+		Assert.assertEquals(null, storage.get("key2"));
+		Assert.assertEquals("val3", storage.get("key3"));
+	}
+
+	@Test
+	public void testWriteBackEvictionListener() {
+		final Map<String, String> storage = new HashMap<String, String>();
+		KVWriteBackCache cache = new KVWriteBackCache(new KVLRUCache(1),
+				new KVCacheWriter() {
+					public void writeAll(Map<String, String> entries) {
+						storage.putAll(entries);
+					}
+				}, 60000, 1024 * 1024);
+		final Map<String, String> evicted = new HashMap<String, String>();
+		cache.setEvictionListener(new KVEvictionListener() {
+			public void onEvict(String key, String value) {
+				evicted.put(key, value);
+			}
+		});
+		cache.set("key1", "val1");
+		cache.set("key2", "val2");
+		Assert.assertEquals("val1", evicted.get("key1"));
+		// Still written back.
+		Assert.assertEquals("val1", storage.get("key1"));
+		cache.close();
+	}
 }
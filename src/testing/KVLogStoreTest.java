@@ -0,0 +1,250 @@
+package testing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import storage.KVLogCompactor;
+import storage.KVLogStore;
+import storage.StoredValue;
+
+
+public class KVLogStoreTest extends TestCase {
+
+	private File dir;
+	private KVLogStore store;
+
+	public void setUp() throws IOException {
+		dir = new File("db/testing/logstore");
+		deleteDir(dir);
+		store = new KVLogStore(dir.getPath(), 256);
+		store.open();
+	}
+
+	public void tearDown() {
+		store.close();
+		deleteDir(dir);
+	}
+
+	@Test
+	public void testPutGetDelete() throws IOException {
+		store.put("key1", "val1");
+		store.put("key2", "val2");
+		store.put("key1", "val1b");
+		assertEquals("val1b", store.get("key1"));
+		assertEquals("val2", store.get("key2"));
+		store.delete("key2");
+		assertFalse(store.contains("key2"));
+		assertNull(store.get("key2"));
+		assertNull(store.get("missing"));
+	}
+
+	@Test
+	public void testReopenRebuildsKeyDir() throws IOException {
+		for (int i = 0; i < 50; i++) {
+			store.put("key" + i, "value" + i);
+		}
+		store.delete("key7");
+		store.put("key3", "updated");
+		store.close();
+
+		store = new KVLogStore(dir.getPath(), 256);
+		store.open();
+		assertEquals(49, store.size());
+		assertEquals("updated", store.get("key3"));
+		assertEquals("value42", store.get("key42"));
+		assertFalse(store.contains("key7"));
+	}
+
+	@Test
+	public void testTornTailIsTruncated() throws IOException {
+		store.put("key1", "val1");
+		store.put("key2", "val2");
+		store.close();
+
+		File segment = newestSegment();
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		raf.setLength(raf.length() - 2);
+		raf.close();
+
+		store = new KVLogStore(dir.getPath(), 256);
+		store.open();
+		assertEquals("val1", store.get("key1"));
+		assertFalse(store.contains("key2"));
+	}
+
+	@Test
+	public void testClear() throws IOException {
+		store.put("key1", "val1");
+		store.clear();
+		assertFalse(store.contains("key1"));
+		store.put("key2", "val2");
+		assertEquals("val2", store.get("key2"));
+	}
+
+	@Test
+	public void testCompactionKeepsLatestValues() throws IOException {
+		for (int round = 0; round < 10; round++) {
+			for (int i = 0; i < 20; i++) {
+				store.put("key" + i, "value" + i + "-" + round);
+			}
+		}
+		store.delete("key5");
+		long before = diskUsage();
+
+		KVLogCompactor compactor = new KVLogCompactor(store, 0.5,
+				Long.MAX_VALUE, 0);
+		assertTrue(compactor.compact() > 0);
+		assertTrue(diskUsage() < before);
+		assertEquals("value3-9", store.get("key3"));
+		assertFalse(store.contains("key5"));
+		store.close();
+
+		store = new KVLogStore(dir.getPath(), 256);
+		store.open();
+		assertEquals(19, store.size());
+		assertEquals("value19-9", store.get("key19"));
+		assertFalse(store.contains("key5"));
+	}
+
+	@Test
+	public void testGroupCommitSharesFsyncs() throws Exception {
+		Thread[] writers = new Thread[8];
+		final Exception[] failure = new Exception[1];
+		for (int t = 0; t < writers.length; t++) {
+			final int id = t;
+			writers[t] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < 50; i++) {
+							store.put("key" + id + "-" + i, "value" + i);
+						}
+					} catch (IOException e) {
+						failure[0] = e;
+					}
+				}
+			};
+			writers[t].start();
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		assertNull(failure[0]);
+		assertEquals(400, store.getSyncedWriteCount());
+		assertTrue(store.getSyncCount() < 400);
+	}
+
+	@Test
+	public void testMappedReadsFollowGrowthAndCompaction() throws IOException {
+		store.setReadMode(KVLogStore.ReadMode.MMAP);
+		for (int round = 0; round < 10; round++) {
+			for (int i = 0; i < 20; i++) {
+				store.put("key" + i, "value" + i + "-" + round);
+				assertEquals("value" + i + "-" + round, store.get("key" + i));
+			}
+		}
+		KVLogCompactor compactor = new KVLogCompactor(store, 0.5,
+				Long.MAX_VALUE, 0);
+		assertTrue(compactor.compact() > 0);
+		for (int i = 0; i < 20; i++) {
+			assertEquals("value" + i + "-9", store.get("key" + i));
+		}
+		store.put("key0", "after");
+		assertEquals("after", store.get("key0"));
+	}
+
+	@Test
+	public void testStoredValueTransfersAcrossCompaction() throws IOException {
+		for (int round = 0; round < 10; round++) {
+			for (int i = 0; i < 20; i++) {
+				store.put("key" + i, "value" + i + "-" + round);
+			}
+		}
+		StoredValue value = store.locate("key4");
+		assertEquals("value4-9".length(), value.getLength());
+		assertNull(store.locate("missing"));
+
+		KVLogCompactor compactor = new KVLogCompactor(store, 0.5,
+				Long.MAX_VALUE, 0);
+		assertTrue(compactor.compact() > 0);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		value.transferTo(Channels.newChannel(out));
+		assertEquals("value4-9", out.toString("UTF-8"));
+
+		store.put("key4", "changed");
+		assertEquals("value4-9", value.read());
+	}
+
+	@Test
+	public void testReopenFromHints() throws IOException {
+		for (int i = 0; i < 50; i++) {
+			store.put("key" + i, "value" + i);
+		}
+		store.delete("key7");
+		store.put("key3", "updated");
+		store.close();
+		for (File file : dir.listFiles()) {
+			if (file.getName().endsWith(".data")) {
+				assertTrue(new File(dir, file.getName().replace(".data", ".hint"))
+						.exists());
+			}
+		}
+
+		store = new KVLogStore(dir.getPath(), 256);
+		store.open();
+		assertEquals(49, store.size());
+		assertEquals("updated", store.get("key3"));
+		assertFalse(store.contains("key7"));
+		store.put("key50", "value50");
+		store.close();
+
+		// A hint that does not match its segment is ignored.
+		File segment = newestSegment();
+		File hint = new File(dir, segment.getName().replace(".data", ".hint"));
+		RandomAccessFile raf = new RandomAccessFile(hint, "rw");
+		raf.seek(0);
+		raf.write(0xff);
+		raf.close();
+
+		store = new KVLogStore(dir.getPath(), 256);
+		store.open();
+		assertEquals(50, store.size());
+		assertEquals("value50", store.get("key50"));
+		assertEquals("value42", store.get("key42"));
+	}
+
+	private long diskUsage() {
+		long total = 0;
+		for (File file : dir.listFiles()) {
+			total += file.length();
+		}
+		return total;
+	}
+
+	private File newestSegment() {
+		File newest = null;
+		for (File file : dir.listFiles()) {
+			if (file.getName().endsWith(".data") && file.length() > 0 && (newest == null
+					|| file.getName().compareTo(newest.getName()) > 0)) {
+				newest = file;
+			}
+		}
+		return newest;
+	}
+
+	private static void deleteDir(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+}
@@ -0,0 +1,127 @@
+package testing;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import storage.KVLsmStore;
+
+
+public class KVLsmStoreTest extends TestCase {
+
+	private File dir;
+	private KVLsmStore store;
+
+	public void setUp() throws IOException {
+		dir = new File("db/testing/lsmstore");
+		deleteDir(dir);
+		store = open();
+	}
+
+	public void tearDown() {
+		store.close();
+		deleteDir(dir);
+	}
+
+	@Test
+	public void testPutGetDelete() throws IOException {
+		store.put("key1", "val1");
+		store.put("key2", "val2");
+		store.put("key1", "val1b");
+		assertEquals("val1b", store.get("key1"));
+		assertEquals("val2", store.get("key2"));
+		store.delete("key2");
+		assertFalse(store.contains("key2"));
+		assertNull(store.get("key2"));
+		assertNull(store.get("missing"));
+	}
+
+	@Test
+	public void testReadsAcrossFlushedTables() throws IOException {
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < 100; i++) {
+				store.put("key" + i, "value" + i + "-" + round);
+			}
+			store.flush();
+		}
+		store.delete("key5");
+		store.put("key6", "memtable");
+		assertTrue(store.getTableCount() >= 3);
+		assertEquals("value42-2", store.get("key42"));
+		assertEquals("memtable", store.get("key6"));
+		assertNull(store.get("key5"));
+		assertEquals(99, store.size());
+	}
+
+	@Test
+	public void testReopenReplaysLog() throws IOException {
+		for (int i = 0; i < 50; i++) {
+			store.put("key" + i, "value" + i);
+		}
+		store.flush();
+		store.delete("key7");
+		store.put("key3", "updated");
+		store.close();
+
+		store = open();
+		assertEquals(49, store.size());
+		assertEquals("updated", store.get("key3"));
+		assertEquals("value42", store.get("key42"));
+		assertFalse(store.contains("key7"));
+	}
+
+	@Test
+	public void testCompactionDropsShadowedEntries() throws IOException {
+		for (int round = 0; round < 8; round++) {
+			for (int i = 0; i < 100; i++) {
+				store.put("key" + i, "value" + i + "-" + round);
+			}
+			store.flush();
+		}
+		for (int i = 0; i < 100; i += 2) {
+			store.delete("key" + i);
+		}
+		store.flush();
+		store.compact();
+		assertTrue(store.getTableCount() < 9);
+		assertNull(store.get("key10"));
+		assertEquals("value11-7", store.get("key11"));
+		store.close();
+
+		store = open();
+		assertEquals(50, store.size());
+		assertEquals("value99-7", store.get("key99"));
+		assertFalse(store.contains("key98"));
+	}
+
+	@Test
+	public void testClear() throws IOException {
+		store.put("key1", "val1");
+		store.flush();
+		store.put("key2", "val2");
+		store.clear();
+		assertFalse(store.contains("key1"));
+		assertFalse(store.contains("key2"));
+		store.put("key3", "val3");
+		assertEquals("val3", store.get("key3"));
+	}
+
+	private KVLsmStore open() throws IOException {
+		KVLsmStore store = new KVLsmStore(dir.getPath(), 1024, 100, 64);
+		store.open();
+		return store;
+	}
+
+	private static void deleteDir(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				deleteDir(file);
+			}
+		}
+		dir.delete();
+	}
+}
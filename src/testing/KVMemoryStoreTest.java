@@ -0,0 +1,110 @@
+package testing;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import storage.KVMemoryStore;
+
+
+public class KVMemoryStoreTest extends TestCase {
+
+	private File dir;
+	private KVMemoryStore store;
+
+	public void setUp() throws IOException {
+		dir = new File("db/testing/memorystore");
+		deleteDir(dir);
+		store = open();
+	}
+
+	public void tearDown() {
+		store.close();
+		deleteDir(dir);
+	}
+
+	@Test
+	public void testPutGetDelete() throws IOException {
+		store.write("key1", "val1");
+		store.write("key2", "val2");
+		store.write("key1", "val1b");
+		assertEquals("val1b", store.get("key1"));
+		assertEquals("val2", store.get("key2"));
+		store.write("key2", null);
+		assertFalse(store.contains("key2"));
+		assertNull(store.get("key2"));
+		assertEquals(1, store.size());
+	}
+
+	@Test
+	public void testCloseTakesSnapshot() throws IOException {
+		for (int i = 0; i < 50; i++) {
+			store.write("key" + i, "value" + i);
+		}
+		store.write("key7", null);
+		store.close();
+
+		store = open();
+		assertEquals(49, store.size());
+		assertEquals("value42", store.get("key42"));
+		assertFalse(store.contains("key7"));
+	}
+
+	@Test
+	public void testSnapshotIsPointInTime() throws Exception {
+		final int keys = 1000;
+		final boolean[] done = new boolean[1];
+		// Each round writes all keys in order, every third round deletes
+		// them, so a consistent snapshot shows a round up to some key and
+		// the round before from there on.
+		Thread writer = new Thread() {
+			public void run() {
+				for (int round = 0; !done[0]; round++) {
+					for (int i = 0; i < keys; i++) {
+						store.write("key" + i,
+								round % 3 == 2 ? null : String.valueOf(round));
+					}
+				}
+			}
+		};
+		writer.start();
+		Thread.sleep(20);
+		store.snapshot();
+		done[0] = true;
+		writer.join();
+
+		// Without closing, so that only the snapshot is seen.
+		KVMemoryStore loaded = open();
+		int changes = 0;
+		String previous = loaded.get("key0");
+		for (int i = 1; i < keys; i++) {
+			String value = loaded.get("key" + i);
+			if (value == null ? previous != null : !value.equals(previous)) {
+				changes++;
+			}
+			previous = value;
+		}
+		loaded.clear();
+		assertTrue(changes <= 1);
+		assertFalse(new File(dir, "memory.snapshot").exists());
+	}
+
+	private KVMemoryStore open() throws IOException {
+		KVMemoryStore store = new KVMemoryStore(dir.getPath(), 0);
+		store.open();
+		return store;
+	}
+
+	private static void deleteDir(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+}
@@ -0,0 +1,164 @@
+package testing;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import common.messages.BinaryMessage;
+import common.messages.KVEntry;
+import common.messages.KVMessage.StatusType;
+import common.messages.MessageReader;
+
+
+public class MessageReaderTest extends TestCase {
+
+	private static final byte LINE_FEED = 0x0A;
+
+	/**
+	 * Hands out at most chunk bytes per read, like a socket would.
+	 */
+	private static InputStream chunked(byte[] bytes, final int chunk) {
+		return new ByteArrayInputStream(bytes) {
+			public synchronized int read(byte[] b, int off, int len) {
+				return super.read(b, off, Math.min(len, chunk));
+			}
+		};
+	}
+
+	private static String text(byte[] bytes) {
+		return new String(bytes);
+	}
+
+	@Test
+	public void testSeveralMessagesPerRead() throws Exception {
+		MessageReader reader = new MessageReader(chunked(
+				"one\ntwo\nthree\n".getBytes(), 1024), LINE_FEED, 128);
+		assertEquals("one", text(reader.readMessage()));
+		assertEquals("two", text(reader.readMessage()));
+		assertEquals("three", text(reader.readMessage()));
+		assertEquals("", text(reader.readMessage()));
+	}
+
+	@Test
+	public void testMessagesSpanningReads() throws Exception {
+		StringBuilder large = new StringBuilder();
+		while (large.length() < 20000)
+			large.append("0123456789");
+		MessageReader reader = new MessageReader(chunked(
+				(large + "\nend").getBytes(), 777), LINE_FEED, 128 * 1024);
+		assertEquals(large.toString(), text(reader.readMessage()));
+		// What is left once the stream ends.
+		assertEquals("end", text(reader.readMessage()));
+	}
+
+	@Test
+	public void testLongMessagesAreCut() throws Exception {
+		byte[] bytes = new byte[250];
+		Arrays.fill(bytes, (byte) 'x');
+		bytes[249] = LINE_FEED;
+		MessageReader reader = new MessageReader(chunked(bytes, 64),
+				LINE_FEED, 100);
+		assertEquals(100, reader.readMessage().length);
+		assertEquals(100, reader.readMessage().length);
+		assertEquals(49, reader.readMessage().length);
+	}
+
+	@Test
+	public void testReadFullyAfterMessage() throws Exception {
+		MessageReader reader = new MessageReader(chunked(
+				"head\nabcdefghij\nnext\n".getBytes(), 7), LINE_FEED, 128);
+		assertEquals("head", text(reader.readMessage()));
+		assertEquals("abcdefghij", text(reader.readFully(10)));
+		assertEquals("", text(reader.readMessage()));
+		assertEquals("next", text(reader.readMessage()));
+		try {
+			reader.readFully(1);
+			fail("Expected the stream to end");
+		} catch (EOFException e) {
+		}
+	}
+
+	@Test
+	public void testBinaryMessageRoundTrip() throws Exception {
+		byte[] put = new BinaryMessage(StatusType.PUT, "k\u00e9y",
+				"line\nfeed \"quoted\"").getMsgBytes();
+		byte[] get = new BinaryMessage(StatusType.GET, "key", null)
+				.getMsgBytes();
+		byte[] both = new byte[put.length + get.length];
+		System.arraycopy(put, 0, both, 0, put.length);
+		System.arraycopy(get, 0, both, put.length, get.length);
+
+		MessageReader reader = new MessageReader(chunked(both, 3), LINE_FEED,
+				128);
+		BinaryMessage msg = BinaryMessage.read(reader, 128);
+		assertEquals(StatusType.PUT, msg.getStatus());
+		assertEquals("k\u00e9y", msg.getKey());
+		assertEquals("line\nfeed \"quoted\"", msg.getValue());
+		msg = BinaryMessage.read(reader, 128);
+		assertEquals(StatusType.GET, msg.getStatus());
+		assertNull(msg.getValue());
+
+		ByteBuffer buf = ByteBuffer.wrap(both, 0, put.length - 1);
+		assertNull(BinaryMessage.decode(buf, 128));
+		assertEquals(0, buf.position());
+		buf = ByteBuffer.wrap(both);
+		assertEquals("k\u00e9y", BinaryMessage.decode(buf, 128).getKey());
+		assertEquals("key", BinaryMessage.decode(buf, 128).getKey());
+		assertFalse(buf.hasRemaining());
+
+		byte[] tagged = new BinaryMessage(StatusType.GET, "key", null, 1 << 20)
+				.getMsgBytes();
+		assertEquals(BinaryMessage.MAX_HEADER_SIZE + 3, tagged.length);
+		msg = BinaryMessage.read(new MessageReader(chunked(tagged, 5),
+				LINE_FEED, 128), 128);
+		assertEquals(StatusType.GET, msg.getStatus());
+		assertEquals(1 << 20, msg.getId());
+		assertEquals("key", msg.getKey());
+		assertNull(BinaryMessage.decode(ByteBuffer.wrap(tagged, 0,
+				tagged.length - 1), 128));
+		assertEquals(1 << 20, BinaryMessage.decode(ByteBuffer.wrap(tagged),
+				128).getId());
+
+		List<KVEntry> entries = new ArrayList<KVEntry>();
+		entries.add(new KVEntry(StatusType.GET_SUCCESS, "a", "\u00e9"));
+		entries.add(new KVEntry(StatusType.GET_ERROR, "b", null));
+		entries.add(new KVEntry(null, "c", ""));
+		byte[] batch = new BinaryMessage(StatusType.BATCH_SUCCESS, entries, 3)
+				.getMsgBytes();
+		msg = BinaryMessage.read(new MessageReader(chunked(batch, 4),
+				LINE_FEED, 128), 128);
+		assertEquals(StatusType.BATCH_SUCCESS, msg.getStatus());
+		assertEquals(3, msg.getId());
+		assertNull(msg.getKey());
+		assertEquals(3, msg.getEntries().size());
+		assertEquals("\u00e9", msg.getEntries().get(0).getValue());
+		assertNull(msg.getEntries().get(1).getValue());
+		assertNull(msg.getEntries().get(2).getStatus());
+		assertEquals("", msg.getEntries().get(2).getValue());
+		assertEquals(3, BinaryMessage.decode(ByteBuffer.wrap(batch), 128)
+				.getEntries().size());
+		// A batch whose entries run past its value.
+		batch[batch.length - 1] = 100;
+		try {
+			BinaryMessage.decode(ByteBuffer.wrap(batch), 128);
+			fail("Accepted truncated entries");
+		} catch (IOException e) {
+		}
+
+		try {
+			BinaryMessage.read(new MessageReader(chunked(put, 1024),
+					LINE_FEED, 128), 8);
+			fail("Accepted a message longer than the limit");
+		} catch (IOException e) {
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package testing;
+
+import org.junit.Test;
+
+import app_kvServer.KVServer;
+
+import client.KVStore;
+
+public class NearCacheTest extends ServerTestCase {
+
+	@Test
+	public void testNearCache() throws Exception {
+		for (int f = 0; f < FRONT_ENDS.length; f++) {
+			int port = 50028 + f;
+			KVServer server = startServer(port, frontEnd(FRONT_ENDS[f]));
+			KVStore writer = connect(port, false);
+			// JSON on one front end, binary on the others.
+			KVStore reader = newClient(port, f > 0, 1);
+			reader.enableNearCache(100, "LRU", 0);
+			reader.connect();
+			server.clearStorage();
+			writer.put("near", "v1");
+			writer.put("other", "o1");
+			// Cached once the subscription is there.
+			long deadline = System.currentTimeMillis() + 5000;
+			while (reader.getNearCacheHits() == 0
+					&& System.currentTimeMillis() < deadline) {
+				assertEquals("v1", reader.get("near").getValue());
+			}
+			assertTrue(reader.getNearCacheHits() > 0);
+			assertTrue(server.getTrackedKeys() >= 1);
+			assertEquals("o1", reader.get("other").getValue());
+
+			writer.put("near", "v2");
+			awaitValue(reader, "near", "v2");
+			assertEquals("o1", reader.get("other").getValue());
+			writer.put("near", "");
+			awaitValue(reader, "near", null);
+
+			// Our own writes are read back right away.
+			reader.put("other", "o2");
+			assertEquals("o2", reader.get("other").getValue());
+			reader.putAsync("other", "o3", 0).join();
+			assertEquals("o3", reader.get("other").getValue());
+			reader.get("other");
+			server.clearStorage();
+			awaitValue(reader, "other", null);
+			assertTrue(reader.getNearCacheHitRate() > 0);
+			stopServer(server);
+		}
+	}
+
+	@Test
+	public void testNearCacheTimeToLive() throws Exception {
+		int port = 50031;
+		KVServer server = startServer(port);
+		KVStore reader = newClient(port, true, 1);
+		reader.enableNearCache(2, "FIFO", 300);
+		reader.connect();
+		server.clearStorage();
+		reader.put("ttl", "v");
+		long deadline = System.currentTimeMillis() + 5000;
+		while (reader.getNearCacheHits() == 0
+				&& System.currentTimeMillis() < deadline) {
+			assertEquals("v", reader.get("ttl").getValue());
+		}
+		long hits = reader.getNearCacheHits();
+		assertEquals("v", reader.get("ttl").getValue());
+		assertEquals(hits + 1, reader.getNearCacheHits());
+		Thread.sleep(400);
+		long misses = reader.getNearCacheMisses();
+		assertEquals("v", reader.get("ttl").getValue());
+		assertEquals(misses + 1, reader.getNearCacheMisses());
+	}
+
+	/**
+	 * Reads key until its value is expected, cached or not.
+	 */
+	private static void awaitValue(KVStore client, String key, String expected)
+			throws Exception {
+		String value = null;
+		for (int i = 0; i < 100; i++) {
+			value = client.get(key).getValue();
+			if (expected == null ? value == null : expected.equals(value)) {
+				// Now cached, if found.
+				client.get(key);
+				return;
+			}
+			Thread.sleep(50);
+		}
+		assertEquals(expected, value);
+	}
+}
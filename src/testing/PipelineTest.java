@@ -0,0 +1,56 @@
+package testing;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import app_kvServer.KVServer;
+
+import client.KVStore;
+import client.Pipeline;
+
+import common.messages.KVMessage;
+import common.messages.KVMessage.StatusType;
+
+public class PipelineTest extends ServerTestCase {
+
+	@Test
+	public void testPipelining() throws Exception {
+		StringBuilder builder = new StringBuilder();
+		while (builder.length() < 20000)
+			builder.append("0123456789");
+		final String large = builder.toString();
+		forEachFrontEnd(50018, new ClientCheck() {
+			public void run(KVServer server, KVStore client) throws Exception {
+				Pipeline pipeline = client.pipelined();
+				// More requests and bytes than are sent at once.
+				for (int i = 0; i < 300; i++)
+					pipeline.put("pipe" + i, i % 50 == 0 ? large + i : "v" + i);
+				pipeline.get("pipe7").put("pipe7", "").get("pipe7");
+				List<KVMessage> responses = pipeline.sync();
+				assertEquals(303, responses.size());
+				for (int i = 0; i < 300; i++) {
+					KVMessage response = responses.get(i);
+					assertEquals("pipe" + i, response.getKey());
+					assertTrue(response.getStatus() == StatusType.PUT_SUCCESS
+							|| response.getStatus() == StatusType.PUT_UPDATE);
+				}
+				assertEquals("v7", responses.get(300).getValue());
+				assertEquals(StatusType.DELETE_SUCCESS,
+						responses.get(301).getStatus());
+				assertEquals(StatusType.GET_ERROR,
+						responses.get(302).getStatus());
+				assertTrue(pipeline.sync().isEmpty());
+
+				server.clearCache();
+				for (int i = 0; i < 300; i += 50)
+					pipeline.get("pipe" + i);
+				responses = pipeline.sync();
+				for (int i = 0; i < responses.size(); i++)
+					assertEquals(large + (50 * i), responses.get(i).getValue());
+				// Requests not pipelined still work in between.
+				assertEquals("v1", client.get("pipe1").getValue());
+			}
+		});
+	}
+}
@@ -0,0 +1,172 @@
+package testing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import app_kvServer.KVServer;
+
+import client.KVStore;
+
+import junit.framework.TestCase;
+
+/**
+ * Base of the tests that run KVServers of their own, each on a port of its
+ * own, and talk to them through KVStores. The servers started and the
+ * clients made during a test are stopped after it.
+ */
+public abstract class ServerTestCase extends TestCase {
+
+	/** Front ends a server can run, as set up by {@link #frontEnd}. */
+	protected static final String[] FRONT_ENDS = { "threads", "selector",
+			"shards" };
+
+	/**
+	 * A check run against one server through one of its clients.
+	 */
+	protected interface ClientCheck {
+
+		void run(KVServer server, KVStore client) throws Exception;
+	}
+
+	private final List<KVServer> servers = new ArrayList<KVServer>();
+	private final List<Thread> serverThreads = new ArrayList<Thread>();
+	private final List<KVStore> clients = new ArrayList<KVStore>();
+	private final List<Closeable> closeables = new ArrayList<Closeable>();
+
+	public void tearDown() throws Exception {
+		for (KVStore client : clients)
+			client.disconnect();
+		clients.clear();
+		for (Closeable closeable : closeables)
+			closeable.close();
+		closeables.clear();
+		while (!servers.isEmpty())
+			stopServer(servers.get(0));
+	}
+
+	/**
+	 * @return options running a server with frontEnd, one of
+	 * 		{@link #FRONT_ENDS}.
+	 */
+	protected static Properties frontEnd(String frontEnd) {
+		Properties options = new Properties();
+		if (frontEnd.equals("shards"))
+			options.setProperty(KVServer.SHARDS, "2");
+		else
+			options.setProperty(KVServer.FRONT_END, frontEnd);
+		return options;
+	}
+
+	protected KVServer startServer(int port) throws Exception {
+		return startServer(port, 16, new Properties());
+	}
+
+	protected KVServer startServer(int port, Properties options)
+			throws Exception {
+		return startServer(port, 16, options);
+	}
+
+	/**
+	 * Runs a server with an LRU cache on a thread of its own.
+	 * @return the server, once it accepts connections.
+	 */
+	protected KVServer startServer(int port, int cacheSize, Properties options)
+			throws Exception {
+		final KVServer server = new KVServer(port, cacheSize, "LRU", options);
+		Thread serverThread = new Thread() {
+			public void run() {
+				server.run();
+			}
+		};
+		serverThread.start();
+		servers.add(server);
+		serverThreads.add(serverThread);
+		connectTo(port).close();
+		return server;
+	}
+
+	protected void stopServer(KVServer server) throws InterruptedException {
+		int index = servers.indexOf(server);
+		servers.remove(index);
+		server.kill();
+		serverThreads.remove(index).join(5000);
+	}
+
+	/**
+	 * @return a client of the server on port, disconnected after the test,
+	 * 		that is not connected yet.
+	 */
+	protected KVStore newClient(int port, boolean binary, int maxConnections) {
+		KVStore client = new KVStore("localhost", port, binary, maxConnections);
+		clients.add(client);
+		return client;
+	}
+
+	protected KVStore connect(int port, boolean binary) throws IOException {
+		return connect(port, binary, 1);
+	}
+
+	protected KVStore connect(int port, boolean binary, int maxConnections)
+			throws IOException {
+		KVStore client = newClient(port, binary, maxConnections);
+		client.connect();
+		return client;
+	}
+
+	/**
+	 * Closes closeable after the test.
+	 * @return closeable.
+	 */
+	protected <T extends Closeable> T closeAfter(T closeable) {
+		closeables.add(closeable);
+		return closeable;
+	}
+
+	/**
+	 * Runs check against a server with each front end, on ports from
+	 * firstPort on, through a JSON client and then a binary one. Each
+	 * server starts out empty.
+	 */
+	protected void forEachFrontEnd(int firstPort, ClientCheck check)
+			throws Exception {
+		for (int f = 0; f < FRONT_ENDS.length; f++) {
+			int port = firstPort + f;
+			KVServer server = startServer(port, frontEnd(FRONT_ENDS[f]));
+			server.clearStorage();
+			check.run(server, connect(port, false));
+			check.run(server, connect(port, true));
+			stopServer(server);
+		}
+	}
+
+	protected static Socket connectTo(int port) throws Exception {
+		for (int attempt = 0; ; attempt++) {
+			try {
+				return new Socket("localhost", port);
+			} catch (ConnectException e) {
+				// The server thread may not be listening yet.
+				if (attempt == 50)
+					throw e;
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	protected static void waitFor(KVServer server, int active, int queued)
+			throws InterruptedException {
+		for (int i = 0; i < 100; i++) {
+			if (server.getActiveConnections() == active
+					&& server.getQueuedConnections() == queued)
+				return;
+			Thread.sleep(50);
+		}
+		fail("Expected " + active + " active and " + queued + " queued, got "
+				+ server.getActiveConnections() + " and "
+				+ server.getQueuedConnections());
+	}
+}
@@ -0,0 +1,128 @@
+package testing;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import common.messages.KVEntry;
+import common.messages.KVMessage.StatusType;
+import common.messages.TextMessage;
+
+
+public class TextMessageTest extends TestCase {
+
+	private static String wire(TextMessage msg)
+			throws UnsupportedEncodingException {
+		return new String(msg.getMsgBytes(), "UTF-8");
+	}
+
+	private static TextMessage parse(String json)
+			throws UnsupportedEncodingException {
+		return new TextMessage(json.getBytes("UTF-8"));
+	}
+
+	@Test
+	public void testEncodingMatchesJsonSimple() throws Exception {
+		// Field order and escapes as written by json-simple.
+		assertEquals("{\"operation\":\"PUT\",\"value\":\"a\\/b \\\"q\\\"\\n"
+				+ "\\u001F\\u2028\u00e9\",\"key\":\"k\"}\n\r",
+				wire(new TextMessage("PUT", "k", "a/b \"q\"\n\u001f\u2028\u00e9")));
+		assertEquals("{\"framing\":\"raw\",\"operation\":\"GET\","
+				+ "\"value\":\"\",\"key\":\"k\"}\n\r",
+				wire(new TextMessage("GET", "k", "", true)));
+		assertEquals("{\"value\":null,\"key\":\"k\",\"status\":\"GET_ERROR\"}\n\r",
+				wire(new TextMessage(StatusType.GET_ERROR, "k", null)));
+		assertEquals("{\"length\":42,\"key\":\"k\",\"status\":\"GET_SUCCESS\"}\n\r",
+				wire(new TextMessage(StatusType.GET_SUCCESS, "k", 42)));
+	}
+
+	@Test
+	public void testTaggedMessages() throws Exception {
+		TextMessage request = new TextMessage("GET", "k", "", true);
+		request.setId(7);
+		assertEquals("{\"id\":7,\"framing\":\"raw\",\"operation\":\"GET\","
+				+ "\"value\":\"\",\"key\":\"k\"}\n\r", wire(request));
+		TextMessage response = parse(
+				"{\"id\":7,\"length\":3,\"key\":\"k\",\"status\":\"GET_SUCCESS\"}");
+		assertEquals(7, response.getId());
+		assertEquals(-1, parse("{\"key\":\"k\"}").getId());
+	}
+
+	@Test
+	public void testBatchMessages() throws Exception {
+		List<KVEntry> entries = new ArrayList<KVEntry>();
+		entries.add(new KVEntry(null, "a", "1"));
+		entries.add(new KVEntry(null, "b", null));
+		TextMessage request = new TextMessage("MPUT", entries);
+		assertEquals("{\"operation\":\"MPUT\",\"entries\":[{\"key\":\"a\","
+				+ "\"value\":\"1\"},{\"key\":\"b\"}]}\n\r", wire(request));
+		byte[] bytes = request.getMsgBytes();
+		TextMessage received = new TextMessage(
+				Arrays.copyOf(bytes, bytes.length - 2));
+		assertEquals(StatusType.MPUT, received.getStatus());
+		assertNull(received.getKey());
+		assertEquals(2, received.getEntries().size());
+		assertEquals("1", received.getEntries().get(0).getValue());
+		assertNull(received.getEntries().get(1).getValue());
+
+		TextMessage response = parse("{\"entries\":[{\"status\":\"PUT_SUCCESS\","
+				+ "\"key\":\"a\",\"value\":\"1\"}, {\"status\":\"PUT_ERROR\","
+				+ "\"key\":\"b\"}],\"status\":\"BATCH_SUCCESS\"}");
+		assertEquals(StatusType.BATCH_SUCCESS, response.getStatus());
+		assertEquals(StatusType.PUT_ERROR,
+				response.getEntries().get(1).getStatus());
+		assertTrue(parse("{\"entries\":[],\"status\":\"BATCH_ERROR\"}")
+				.getEntries().isEmpty());
+		assertNull(parse("{\"key\":\"k\"}").getEntries());
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		String value = "tab\t \\ / \"quoted\" \u00e9\u20ac \ud83d\ude00 \u2000";
+		TextMessage sent = new TextMessage("PUT", "key", value);
+		byte[] bytes = sent.getMsgBytes();
+		// As received, up to the line feed.
+		byte[] line = new byte[bytes.length - 2];
+		System.arraycopy(bytes, 0, line, 0, line.length);
+		TextMessage received = new TextMessage(line);
+		assertEquals(StatusType.PUT, received.getStatus());
+		assertEquals("key", received.getKey());
+		assertEquals(value, received.getValue());
+		assertFalse(received.isRawFraming());
+		assertEquals(-1, received.getValueLength());
+	}
+
+	@Test
+	public void testParseResponses() throws Exception {
+		TextMessage header = parse(
+				" {\"length\": 7, \"key\":\"k\",\"status\":\"GET_SUCCESS\"}\n");
+		assertEquals(StatusType.GET_SUCCESS, header.getStatus());
+		assertEquals(7, header.getValueLength());
+		assertNull(header.getValue());
+		TextMessage request = parse("\r{\"framing\":\"raw\",\"extra\":[1],"
+				+ "\"operation\":\"GET\",\"key\":\"k\"}");
+		// Arrays are not part of the protocol.
+		assertNull(request.getStatus());
+		request = parse("\r{\"framing\":\"raw\",\"extra\":-1.5e3,"
+				+ "\"operation\":\"GET\",\"key\":\"k\",\"status\":\"PUT\"}");
+		assertEquals(StatusType.GET, request.getStatus());
+		assertTrue(request.isRawFraming());
+		assertEquals("k", request.getKey());
+	}
+
+	@Test
+	public void testMalformedMessages() throws Exception {
+		String[] malformed = { "", "{", "{\"key\":\"k\"", "{\"key\":k}",
+				"{\"operation\":\"FETCH\"}", "{\"value\":\"\\x\"}" };
+		for (String json : malformed) {
+			TextMessage msg = parse(json);
+			assertNull(json, msg.getStatus());
+			assertNull(json, msg.getKey());
+		}
+	}
+}